@@ -16,23 +16,64 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.ResultReceiver;
+import android.provider.LiveFolders;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
+import android.util.Log;
+import android.view.LayoutInflater;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  */
@@ -44,6 +85,9 @@ import java.util.GregorianCalendar;
  */
 public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
+    // Tag used to log the benchmark results.
+    private static final String TAG = "NotePadProviderTest";
+
     // A URI that the provider does not offer, for testing error handling.
     private static final Uri INVALID_URI =
         Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "invalid");
@@ -153,6 +197,9 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
                 TEST_NOTES[index].getContentValues()  // the values map to insert
             );
         }
+
+        // The notes were inserted around the provider, so its in-memory indexes have to be rebuilt.
+        getProvider().invalidateIndexesForTest();
     }
 
     /*
@@ -186,9 +233,13 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. This should return the export type, which is the only stream
+        // MIME type the content provider provides for multiple notes.
+        String[] exportTypes = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(1, exportTypes.length);
+        assertEquals(NotePad.Notes.EXPORT_MIME_TYPE, exportTypes[0]);
+        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT));
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -790,6 +841,2336 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests full-text search through the search URI. Both the title and the note columns are
+     * indexed, terms are matched as prefixes, and the index follows updates and deletions.
+     */
+    public void testSearch() {
+        // Inserts the test data. The index is maintained by triggers, so direct inserts count.
+        insertData();
+
+        // A term that only appears in one title should match exactly one note.
+        Cursor cursor = mMockResolver.query(searchUri("Note3"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[3].title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // A term that only appears in the note bodies should match every note.
+        cursor = mMockResolver.query(searchUri("this is"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Terms are matched as prefixes, and all of them must match.
+        cursor = mMockResolver.query(searchUri("not 7"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Search text without any terms returns nothing.
+        cursor = mMockResolver.query(searchUri("  *\"() "), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Updates to the body are reflected in the index.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "A completely different body");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note5" });
+        cursor = mMockResolver.query(searchUri("complete"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Deleted notes disappear from the index.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note5" });
+        cursor = mMockResolver.query(searchUri("complete"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests reading the notes directory one page at a time. Following the next page position
+     * from page to page must return every note exactly once, in the page sort order, including
+     * notes that have the same modification date.
+     */
+    public void testPagedQueries() {
+        insertData();
+
+        // Adds notes that share a modification date, so that pages have to be split by ID.
+        for (int index = 0; index < 4; index++) {
+            NoteInfo note = new NoteInfo("Tied" + index, "Same date " + index);
+            note.setCreationDate(START_DATE);
+            note.setModificationDate(START_DATE + ONE_WEEK_MILLIS);
+            mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, note.getContentValues());
+        }
+        getProvider().invalidateIndexesForTest();
+
+        // Reads the expected order in one query.
+        String[] projection = { NotePad.Notes.COLUMN_NAME_TITLE };
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.PAGE_SORT_ORDER);
+        List<String> expected = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            expected.add(cursor.getString(0));
+        }
+        cursor.close();
+
+        // Reads the same notes three at a time. The projection does not include the columns
+        // needed for the next page position, so the provider has to add them.
+        final int PAGE_SIZE = 3;
+        List<String> paged = new ArrayList<String>();
+        String after = null;
+        int pages = 0;
+        do {
+            Uri.Builder builder = NotePad.Notes.CONTENT_PAGE_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                            Integer.toString(PAGE_SIZE));
+            if (after != null) {
+                builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, after);
+            }
+            cursor = mMockResolver.query(builder.build(), projection, null, null, null);
+            assertTrue(cursor.getCount() <= PAGE_SIZE);
+            int titleIndex = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE);
+            while (cursor.moveToNext()) {
+                paged.add(cursor.getString(titleIndex));
+            }
+            after = cursor.getExtras().getString(NotePad.Notes.EXTRA_NEXT_PAGE);
+            cursor.close();
+            pages++;
+        } while (after != null && pages <= expected.size());
+        assertEquals(expected, paged);
+
+        // A selection is applied within the page.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_PAGE_URI, projection,
+                NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?", new String[] { "Tied%" }, null);
+        assertEquals(4, cursor.getCount());
+        assertNull(cursor.getExtras().getString(NotePad.Notes.EXTRA_NEXT_PAGE));
+        cursor.close();
+
+        // Invalid page sizes and positions are rejected.
+        String[][] invalid = {
+                { NotePad.Notes.QUERY_PARAMETER_LIMIT, "0" },
+                { NotePad.Notes.QUERY_PARAMETER_LIMIT, "ten" },
+                { NotePad.Notes.QUERY_PARAMETER_AFTER, "12345" },
+                { NotePad.Notes.QUERY_PARAMETER_AFTER, "1,x" } };
+        for (String[] parameter : invalid) {
+            try {
+                mMockResolver.query(NotePad.Notes.CONTENT_PAGE_URI.buildUpon()
+                        .appendQueryParameter(parameter[0], parameter[1]).build(),
+                        projection, null, null, null);
+                fail("Expected an IllegalArgumentException for " + parameter[1]);
+            } catch (IllegalArgumentException e) {
+                // success
+            }
+        }
+    }
+
+    /*
+     * Tests that change notifications are coalesced. A change to a single note is sent for that
+     * note, changes to several notes are sent once for the notes directory, and every URI that
+     * changes more than once in a batch or a time window is only sent once. The mock resolver
+     * ignores notifications, so the notifications are recorded by a subclass instead.
+     */
+    public void testNotificationCoalescing() throws InterruptedException {
+        final List<Uri> delivered = new ArrayList<Uri>();
+        // Counts down once for each expected notification: two batches and one time window.
+        final CountDownLatch allDelivered = new CountDownLatch(3);
+        NotificationCoalescer notifier =
+                new NotificationCoalescer(mMockResolver, NotePad.Notes.CONTENT_URI) {
+            @Override
+            void deliver(Uri uri) {
+                synchronized (delivered) {
+                    delivered.add(uri);
+                }
+                allDelivered.countDown();
+            }
+        };
+        Uri note1 = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        Uri note2 = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2);
+
+        // Repeated changes to one note in a batch are sent once, for the note, at the end.
+        notifier.beginBatch();
+        notifier.notifyChange(note1);
+        notifier.notifyChange(note1);
+        synchronized (delivered) {
+            assertTrue(delivered.isEmpty());
+        }
+        notifier.endBatch();
+        synchronized (delivered) {
+            assertEquals(Arrays.asList(note1), delivered);
+            delivered.clear();
+        }
+
+        // Changes to several notes in a batch are sent once, for the directory.
+        notifier.beginBatch();
+        notifier.notifyChange(note1);
+        notifier.notifyChange(note2);
+        notifier.notifyChange(note1);
+        notifier.endBatch();
+        synchronized (delivered) {
+            assertEquals(Arrays.asList(NotePad.Notes.CONTENT_URI), delivered);
+            delivered.clear();
+        }
+
+        // A batch without changes sends nothing.
+        notifier.beginBatch();
+        notifier.endBatch();
+        synchronized (delivered) {
+            assertTrue(delivered.isEmpty());
+        }
+
+        // Changes outside of a batch are sent once when the time window closes.
+        notifier.notifyChange(note2);
+        notifier.notifyChange(note2);
+        notifier.notifyChange(note2);
+        assertTrue(allDelivered.await(NotificationCoalescer.WINDOW_MILLIS * 20,
+                TimeUnit.MILLISECONDS));
+        Thread.sleep(NotificationCoalescer.WINDOW_MILLIS * 2);
+        synchronized (delivered) {
+            assertEquals(Arrays.asList(note2), delivered);
+        }
+    }
+
+    /*
+     * Tests the edit journal. Edits appended to a note are applied when the note is read, without
+     * rewriting the stored text, and update the note's date and snippet right away. They are
+     * folded into the stored text when the notes directory is read or the whole text is written.
+     */
+    public void testEditJournal() throws Exception {
+        NoteInfo note = new NoteInfo("Journal", "Hello world");
+        note.setCreationDate(START_DATE);
+        note.setModificationDate(START_DATE);
+        long noteId = mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, note.getContentValues());
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+        Uri editsUri = Uri.withAppendedPath(noteUri, NotePad.NoteEdits.CONTENT_DIRECTORY);
+        assertEquals(NotePad.NoteEdits.CONTENT_TYPE, mMockResolver.getType(editsUri));
+
+        // Replaces " world" with ", journal", then inserts a prefix at the start.
+        ContentValues[] edits = { newEdit(5, 6, ", journal"), newEdit(0, 0, ">> ") };
+        assertEquals(edits.length, mMockResolver.bulkInsert(editsUri, edits));
+
+        // Reading the note applies the edits and reports the time of the last one.
+        String[] projection = {
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE };
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(">> Hello, journal", cursor.getString(0));
+        assertTrue(cursor.getLong(1) > START_DATE);
+        cursor.close();
+
+        // The stored text was not rewritten.
+        assertEquals("Hello world", readStoredNote(noteId));
+        assertEquals(2, countEdits(noteId));
+
+        // The modification date and the snippet were updated with the edits, so the list
+        // projection, which does not include the text, shows the edited note before the journal
+        // is folded. This holds for the directory and for the pages served by the list index.
+        String[] listProjection = { NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, NotePad.Notes.COLUMN_NAME_SNIPPET };
+        for (Uri listUri : new Uri[] { NotePad.Notes.CONTENT_URI, NotePad.Notes.CONTENT_PAGE_URI }) {
+            cursor = mMockResolver.query(listUri, listProjection, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(noteId, cursor.getLong(0));
+            assertTrue(cursor.getLong(1) > START_DATE);
+            assertEquals(NoteSnippet.of(">> Hello, journal"), cursor.getString(2));
+            cursor.close();
+        }
+
+        // Reading a journaled note does not take a write transaction, so it does not wait for a
+        // writer. The note cache is cleared so that the read goes to the database.
+        getProvider().getNoteCacheForTest().invalidateAll();
+        final Uri readUri = noteUri;
+        String text = readWhileWriting(new Callable<String>() {
+            public String call() {
+                return querySingleString(readUri,
+                        new String[] { NotePad.Notes.COLUMN_NAME_NOTE });
+            }
+        });
+        assertEquals(">> Hello, journal", text);
+
+        // Reading the note text from the directory applies the journal as the rows are read,
+        // with the snippet made from the edited text, and folds the journal into the stored text
+        // later on the background thread.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, new String[] {
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_SNIPPET }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(">> Hello, journal", cursor.getString(0));
+        assertTrue(cursor.getLong(1) > START_DATE);
+        assertEquals(NoteSnippet.of(">> Hello, journal"), cursor.getString(2));
+        cursor.close();
+        getProvider().awaitBackgroundWorkForTest();
+        assertEquals(">> Hello, journal", readStoredNote(noteId));
+        assertEquals(0, countEdits(noteId));
+
+        // Writing the whole text discards the edits made before it.
+        mMockResolver.insert(editsUri, newEdit(0, 3, ""));
+        assertEquals(1, countEdits(noteId));
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, countEdits(noteId));
+        assertEquals("Rewritten", readStoredNote(noteId));
+
+        // Edits to a note that does not exist are rejected, as are invalid positions.
+        try {
+            mMockResolver.insert(Uri.withAppendedPath(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId + 1),
+                    NotePad.NoteEdits.CONTENT_DIRECTORY), newEdit(0, 0, "x"));
+            fail("Expected an SQLException");
+        } catch (SQLException e) {
+            // success
+        }
+        try {
+            mMockResolver.insert(editsUri, newEdit(-1, 0, "x"));
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // success
+        }
+    }
+
+    // Creates the values for one edit in a note's journal.
+    private static ContentValues newEdit(int position, int deleted, String inserted) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.NoteEdits.COLUMN_NAME_POSITION, position);
+        values.put(NotePad.NoteEdits.COLUMN_NAME_DELETED, deleted);
+        values.put(NotePad.NoteEdits.COLUMN_NAME_INSERTED, inserted);
+        return values;
+    }
+
+    // Reads a note's text directly from the database, without applying its journal.
+    private String readStoredNote(long noteId) {
+        return DatabaseUtils.stringForQuery(mDb, "SELECT " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?",
+                new String[] { Long.toString(noteId) });
+    }
+
+    // Runs a read on another thread while a write transaction is held open on a third, and
+    // returns its result. Fails if the read waits for the writer.
+    private <T> T readWhileWriting(Callable<T> read) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final CountDownLatch writing = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            Future<?> writer = executor.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    mDb.beginTransaction();
+                    try {
+                        writing.countDown();
+                        release.await();
+                    } finally {
+                        mDb.endTransaction();
+                    }
+                    return null;
+                }
+            });
+            T result;
+            try {
+                assertTrue(writing.await(5, TimeUnit.SECONDS));
+                result = executor.submit(read).get(5, TimeUnit.SECONDS);
+            } finally {
+                release.countDown();
+            }
+            writer.get(5, TimeUnit.SECONDS);
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Counts the edits in a note's journal that have not been folded into its text.
+    private long countEdits(long noteId) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                + NotePad.NoteEdits.TABLE_NAME + " WHERE "
+                + NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { Long.toString(noteId) });
+    }
+
+    /*
+     * Tests notes whose text is too long to be stored in the table. The table keeps the start of
+     * the text and the name of the file that holds the rest, and the whole text is streamed from
+     * the note's URI.
+     */
+    public void testLargeNotesStoredInFiles() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int line = 0; builder.length() <= NotePad.Notes.MAX_INLINE_NOTE_LENGTH; line++) {
+            builder.append("Line ").append(line).append(" of a very long note\n");
+        }
+        String text = builder.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // The row holds a file name and only the start of the text.
+        String[] projection = { NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE_FILE };
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(text.startsWith(cursor.getString(0)));
+        assertTrue(cursor.getString(0).length() < text.length());
+        assertNotNull(cursor.getString(1));
+        cursor.close();
+
+        // The whole text is read from the note's URI.
+        assertEquals(text, readStream(mMockResolver.openInputStream(noteUri)));
+
+        // The text/plain stream contains the title, an empty line and the whole text.
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        assertEquals("Long\n\n" + text + "\n", readStream(descriptor.createInputStream()));
+
+        // The file name cannot be written by clients.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE_FILE, "../note_pad.db");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(text, readStream(mMockResolver.openInputStream(noteUri)));
+
+        // A short text moves the note back into the table.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short again");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Short again", cursor.getString(0));
+        assertTrue(cursor.isNull(1));
+        cursor.close();
+        try {
+            mMockResolver.openInputStream(noteUri);
+            fail("Expected a FileNotFoundException");
+        } catch (FileNotFoundException e) {
+            // success
+        }
+
+        // Edits cannot be journaled against the start of a text stored in a file.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        try {
+            mMockResolver.insert(Uri.withAppendedPath(noteUri, NotePad.NoteEdits.CONTENT_DIRECTORY),
+                    newEdit(0, 0, "x"));
+            fail("Expected an SQLException");
+        } catch (SQLException e) {
+            // success
+        }
+    }
+
+    // Reads a UTF-8 stream to the end and closes it.
+    private static String readStream(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Tests compressed note bodies, and compares the size of the database and the latency of
+     * writes and reads for compressed and raw bodies on a synthetic corpus of prose and log notes.
+     * The results are logged under TAG.
+     */
+    public void testCompressionBenchmark() {
+        Random random = new Random(COMPRESSION_NOTES);
+        String[] corpus = new String[COMPRESSION_NOTES];
+        for (int index = 0; index < COMPRESSION_NOTES; index++) {
+            corpus[index] = index % 2 == 0 ? syntheticProse(random) : syntheticLog(random);
+        }
+
+        long[] raw = runCompressionPass(corpus, false);
+        long[] compressed = runCompressionPass(corpus, true);
+
+        Log.i(TAG, "Note bodies: raw " + raw[0] + " bytes stored, " + raw[1] + " bytes on disk, "
+                + raw[2] + "us/write, " + raw[3] + "us/read; compressed " + compressed[0]
+                + " bytes stored, " + compressed[1] + " bytes on disk, " + compressed[2]
+                + "us/write, " + compressed[3] + "us/read");
+
+        // Prose and logs compress well, so the stored bodies must at least halve.
+        assertTrue("raw " + raw[0] + " bytes, compressed " + compressed[0] + " bytes",
+                compressed[0] * 2 < raw[0]);
+
+        // Compressed bodies are always written whole, so they do not accept journaled edits.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                cursor.getLong(0));
+        cursor.close();
+        try {
+            mMockResolver.insert(Uri.withAppendedPath(noteUri, NotePad.NoteEdits.CONTENT_DIRECTORY),
+                    newEdit(0, 0, "x"));
+            fail("Expected an SQLException");
+        } catch (SQLException e) {
+            // success
+        }
+    }
+
+    // Number of notes in the corpus used by testCompressionBenchmark.
+    private static final int COMPRESSION_NOTES = 200;
+
+    // Approximate length in characters of each note in the corpus.
+    private static final int COMPRESSION_NOTE_LENGTH = 16 * 1024;
+
+    private static final String[] CORPUS_WORDS = {
+            "the", "note", "meeting", "project", "and", "of", "to", "review", "release", "a",
+            "in", "for", "design", "with", "team", "on", "deadline", "is", "that", "budget",
+            "we", "should", "follow", "up", "next", "week", "draft", "customer", "feedback", "it" };
+
+    private static final String[] CORPUS_LEVELS = { "DEBUG", "INFO", "WARN", "ERROR" };
+
+    // Generates a note of sentences built from a small vocabulary.
+    private static String syntheticProse(Random random) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < COMPRESSION_NOTE_LENGTH) {
+            int words = 6 + random.nextInt(12);
+            for (int word = 0; word < words; word++) {
+                String next = CORPUS_WORDS[random.nextInt(CORPUS_WORDS.length)];
+                if (word == 0) {
+                    next = Character.toUpperCase(next.charAt(0)) + next.substring(1);
+                }
+                text.append(next).append(word == words - 1 ? ". " : " ");
+            }
+            if (random.nextInt(5) == 0) {
+                text.append("\n\n");
+            }
+        }
+        return text.toString();
+    }
+
+    // Generates a note of timestamped log lines.
+    private static String syntheticLog(Random random) {
+        StringBuilder text = new StringBuilder();
+        long time = START_DATE;
+        while (text.length() < COMPRESSION_NOTE_LENGTH) {
+            time += random.nextInt(5000);
+            text.append(time).append(' ')
+                    .append(CORPUS_LEVELS[random.nextInt(CORPUS_LEVELS.length)])
+                    .append(" worker-").append(random.nextInt(8))
+                    .append(": processed request ").append(random.nextInt(100000))
+                    .append(" in ").append(random.nextInt(500)).append("ms\n");
+        }
+        return text.toString();
+    }
+
+    /*
+     * Replaces all of the notes with the corpus, with compression turned on or off, and reads
+     * each note back. Returns the bytes stored in the note columns, the size of the database
+     * file, and the mean latency of a write and of a read in microseconds.
+     */
+    private long[] runCompressionPass(String[] corpus, boolean compress) {
+        getProvider().setCompressionEnabledForTest(compress);
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+
+        Uri[] uris = new Uri[corpus.length];
+        ContentValues values = new ContentValues();
+        long start = System.nanoTime();
+        for (int index = 0; index < corpus.length; index++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note" + index);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, corpus[index]);
+            uris[index] = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        long writeMicros = (System.nanoTime() - start) / 1000 / corpus.length;
+
+        String[] projection = { NotePad.Notes.COLUMN_NAME_NOTE };
+        start = System.nanoTime();
+        for (int index = 0; index < corpus.length; index++) {
+            Cursor cursor = mMockResolver.query(uris[index], projection, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(corpus[index], cursor.getString(0));
+            cursor.close();
+        }
+        long readMicros = (System.nanoTime() - start) / 1000 / corpus.length;
+
+        long stored = DatabaseUtils.longForQuery(mDb, "SELECT TOTAL(LENGTH(CAST("
+                + NotePad.Notes.COLUMN_NAME_NOTE + " AS BLOB)) + IFNULL(LENGTH("
+                + NotePadProvider.COLUMN_NAME_NOTE_COMPRESSED + "), 0)) FROM "
+                + NotePad.Notes.TABLE_NAME, null);
+        mDb.execSQL("VACUUM");
+        long disk = DatabaseUtils.longForQuery(mDb, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(mDb, "PRAGMA page_size", null);
+        return new long[] { stored, disk, writeMicros, readMicros };
+    }
+
+    /*
+     * Tests the snippet column. The provider derives it from the note text on every write, so
+     * the list and live folders can show a preview without reading the text.
+     */
+    public void testSnippets() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Snippet");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "\n  First line\n\n\tsecond   line  \n");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Whitespace is collapsed and trimmed.
+        String[] projection = { NotePad.Notes.COLUMN_NAME_SNIPPET };
+        assertEquals("First line second line", querySingleString(noteUri, projection));
+
+        // Long text is cut to the maximum length, and a snippet written by a client is ignored.
+        StringBuilder text = new StringBuilder();
+        while (text.length() < NoteSnippet.SOURCE_LENGTH * 2) {
+            text.append("word ");
+        }
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, "Written by a client");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        String snippet = querySingleString(noteUri, projection);
+        assertTrue(snippet.length() <= NoteSnippet.MAX_LENGTH);
+        assertTrue(text.toString().startsWith(snippet));
+
+        // An update that does not write the text keeps the snippet.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(snippet, querySingleString(noteUri, projection));
+
+        // Live folders show the snippet as the description of each note.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.LIVE_FOLDER_URI,
+                new String[] { LiveFolders._ID, LiveFolders.NAME, LiveFolders.DESCRIPTION },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Renamed", cursor.getString(1));
+        assertEquals(snippet, cursor.getString(2));
+        cursor.close();
+    }
+
+    // Queries a single string column of a single note.
+    private String querySingleString(Uri uri, String[] projection) {
+        Cursor cursor = mMockResolver.query(uri, projection, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests the export of all notes from the notes URI. Each line of the stream is one JSON
+     * object holding the whole text of a note, whether the text is stored in the table, in a file
+     * or compressed, and whether it has journaled edits that have not been compacted yet.
+     */
+    public void testExport() throws IOException, JSONException {
+        StringBuilder builder = new StringBuilder();
+        for (int line = 0; builder.length() <= NotePad.Notes.MAX_INLINE_NOTE_LENGTH; line++) {
+            builder.append("Line ").append(line).append(" of a very long note\n");
+        }
+        String fileText = builder.toString();
+        String compressedText = fileText.substring(0, 32 * 1024);
+        String quotedText = "He said \"hi\"\n\tand left\\ \u2028\u0001 \uD83D\uDCDD";
+
+        // More notes than one chunk of the export, so that the export reads several chunks.
+        int count = NoteExporter.CHUNK_SIZE + 10;
+        String[] texts = new String[count];
+        ContentValues values = new ContentValues();
+        getProvider().setCompressionEnabledForTest(true);
+        try {
+            for (int index = 0; index < count; index++) {
+                texts[index] = index == 0 ? quotedText
+                        : index == 1 ? fileText
+                        : index == 2 ? compressedText
+                        : "Note " + index;
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Title" + index);
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, texts[index]);
+                values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, 1000L + index);
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 2000L + index);
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            }
+        } finally {
+            getProvider().setCompressionEnabledForTest(false);
+        }
+
+        // An edit that is still in the journal is part of the exported text.
+        String journaledText = fileText.substring(0, 20 * 1024);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, journaledText);
+        Uri journaledUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        mMockResolver.insert(Uri.withAppendedPath(journaledUri, NotePad.NoteEdits.CONTENT_DIRECTORY),
+                newEdit(0, 4, "Row"));
+        journaledText = "Row" + journaledText.substring(4);
+
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_MIME_TYPE, null);
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(descriptor.createInputStream(), "UTF-8"));
+        List<JSONObject> records = new ArrayList<JSONObject>();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                records.add(new JSONObject(line));
+            }
+
+            // The writer closed the pipe without an error, so the export is complete.
+            descriptor.getParcelFileDescriptor().checkError();
+        } finally {
+            reader.close();
+        }
+
+        // The records are in ID order, one for each note.
+        assertEquals(count + 1, records.size());
+        long previousId = 0;
+        for (int index = 0; index < count; index++) {
+            JSONObject record = records.get(index);
+            assertTrue(record.getLong(NotePad.Notes._ID) > previousId);
+            previousId = record.getLong(NotePad.Notes._ID);
+            assertEquals("Title" + index, record.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+            assertEquals(texts[index], record.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+            assertEquals(1000L + index, record.getLong(NotePad.Notes.COLUMN_NAME_CREATE_DATE));
+            assertEquals(2000L + index,
+                    record.getLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+        }
+        assertEquals(journaledText, records.get(count).getString(NotePad.Notes.COLUMN_NAME_NOTE));
+
+        // A note whose file cannot be read fails the export, and the reader sees the error
+        // instead of a stream that looks complete.
+        Cursor cursor = mDb.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE_FILE },
+                NotePad.Notes.COLUMN_NAME_NOTE_FILE + " IS NOT NULL", null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        File noteFile = new File(getProvider().getContext().getDir("notes", Context.MODE_PRIVATE),
+                cursor.getString(0));
+        cursor.close();
+        assertTrue(noteFile.delete());
+        descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_MIME_TYPE, null);
+        InputStream in = descriptor.createInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+            }
+            descriptor.getParcelFileDescriptor().checkError();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // success
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Tests importing notes from a stream. The notes are committed in batches together with the
+     * progress of the import, so an import that fails part of the way through can be resumed with
+     * the same import ID without duplicating the notes that were already committed. The progress is
+     * dropped once the import finishes.
+     */
+    public void testImport() throws IOException {
+        int count = NoteImporter.BATCH_SIZE * 2 + 100;
+        File file = File.createTempFile("import", ".ndjson", getContext().getCacheDir());
+        try {
+            // A malformed note in the second batch stops the import after the first batch.
+            writeImportFile(file, count, NoteImporter.BATCH_SIZE + 10);
+            try {
+                importFile(file, NotePad.Notes.EXPORT_MIME_TYPE, "archive", null);
+                fail("Expected an IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // success
+            }
+            assertEquals(NoteImporter.BATCH_SIZE, countNotes());
+
+            // Importing the repaired stream with the same ID continues after the first batch, and
+            // reports its progress after each batch.
+            writeImportFile(file, count, -1);
+            final List<Long> progress = new ArrayList<Long>();
+            ResultReceiver receiver = new ResultReceiver(null) {
+                @Override
+                protected void onReceiveResult(int resultCode, Bundle resultData) {
+                    progress.add(resultData.getLong(NotePad.Notes.EXTRA_IMPORTED_COUNT));
+                }
+            };
+            Bundle result = importFile(file, NotePad.Notes.EXPORT_MIME_TYPE, "archive", receiver);
+            assertEquals(count, result.getLong(NotePad.Notes.EXTRA_IMPORTED_COUNT));
+            assertEquals(Arrays.asList((long) NoteImporter.BATCH_SIZE * 2, (long) count), progress);
+            assertEquals(count, countNotes());
+            assertEquals(count, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(DISTINCT "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ") FROM " + NotePad.Notes.TABLE_NAME, null));
+
+            // The dates in the stream are kept, and the text gets a snippet like any other insert.
+            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                    new String[] { NotePad.Notes.COLUMN_NAME_NOTE,
+                            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+                            NotePad.Notes.COLUMN_NAME_SNIPPET },
+                    NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Imported 7" }, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Line one\n\"Line two\"", cursor.getString(0));
+            assertEquals(7, cursor.getLong(1));
+            assertEquals("Line one \"Line two\"", cursor.getString(2));
+            cursor.close();
+
+            // The progress of a finished import is not kept.
+            assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteImporter.TABLE_NAME));
+            assertEquals(0, NoteImporter.getCheckpoint(mDb, "archive"));
+
+            // Plain text holds a title line, an optional empty line and the text of each note.
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write("Plain\n\nFirst line\nSecond line\n\f\nTerse\nOnly line\n");
+            writer.close();
+            result = importFile(file, "text/plain", null, null);
+            assertEquals(2, result.getLong(NotePad.Notes.EXTRA_IMPORTED_COUNT));
+            assertEquals(count + 2, countNotes());
+            assertEquals("First line\nSecond line", DatabaseUtils.stringForQuery(mDb, "SELECT "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME
+                    + " WHERE " + NotePad.Notes.COLUMN_NAME_TITLE + " = 'Plain'", null));
+            assertEquals("Only line", DatabaseUtils.stringForQuery(mDb, "SELECT "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME
+                    + " WHERE " + NotePad.Notes.COLUMN_NAME_TITLE + " = 'Terse'", null));
+
+            // Other stream types are rejected.
+            try {
+                importFile(file, "text/html", null, null);
+                fail("Expected an IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // success
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Writes count NDJSON notes to the file, replacing the note at index malformed with a line
+    // that is not JSON.
+    private static void writeImportFile(File file, int count, int malformed) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            for (int index = 0; index < count; index++) {
+                if (index == malformed) {
+                    writer.write("{\"title\": \"Broken\"\n");
+                    continue;
+                }
+                writer.write("{\"_id\":" + (index + 1) + ",\"title\":\"Imported " + index
+                        + "\",\"note\":\"Line one\\n\\\"Line two\\\"\",\"created\":" + index
+                        + ",\"modified\":" + index + "}\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    // Imports the file through the provider's call() method.
+    private Bundle importFile(File file, String mimeType, String importId, ResultReceiver receiver)
+            throws FileNotFoundException {
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.EXTRA_IMPORT_FILE,
+                ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY));
+        extras.putString(NotePad.Notes.EXTRA_IMPORT_ID, importId);
+        extras.putParcelable(NotePad.Notes.EXTRA_IMPORT_RECEIVER, receiver);
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_IMPORT,
+                mimeType, extras);
+    }
+
+    // Counts the notes in the table.
+    private long countNotes() {
+        return DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME);
+    }
+
+    /*
+     * Tests backing up all of the notes and restoring them. The restore replaces the notes that
+     * were changed after the backup, including a note whose text is stored in a file, and a file
+     * that is not a backup leaves the notes untouched.
+     */
+    public void testBackupAndRestore() throws IOException {
+        insertData();
+        StringBuilder builder = new StringBuilder();
+        for (int line = 0; builder.length() <= NotePad.Notes.MAX_INLINE_NOTE_LENGTH; line++) {
+            builder.append("Line ").append(line).append(" of a backed up note\n");
+        }
+        String text = builder.toString();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        Uri longUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long count = countNotes();
+
+        File backup = File.createTempFile("backup", ".zip", getContext().getCacheDir());
+        try {
+            Bundle extras = new Bundle();
+            extras.putParcelable(NotePad.Notes.EXTRA_BACKUP_FILE, ParcelFileDescriptor.open(backup,
+                    ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_TRUNCATE));
+            mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_BACKUP, null, extras);
+            assertTrue(backup.length() > 0);
+
+            // Changes the notes after the backup.
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short now");
+            assertEquals(1, mMockResolver.update(longUri, values, null, null));
+            mMockResolver.delete(NotePad.Notes.CONTENT_URI, NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                    new String[] { TEST_NOTES[0].title });
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "After the backup");
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+            extras = new Bundle();
+            extras.putParcelable(NotePad.Notes.EXTRA_BACKUP_FILE,
+                    ParcelFileDescriptor.open(backup, ParcelFileDescriptor.MODE_READ_ONLY));
+            Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                    NotePad.Notes.METHOD_RESTORE, null, extras);
+            assertEquals(count, result.getInt(NotePad.Notes.EXTRA_RESTORED_COUNT));
+            assertEquals(count, countNotes());
+
+            // The notes are back as they were, with the same IDs.
+            assertEquals(text, readStream(mMockResolver.openInputStream(longUri)));
+            assertEquals(1, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_TITLE
+                    + " = ?", new String[] { TEST_NOTES[0].title }));
+            assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_TITLE
+                    + " = 'After the backup'", null));
+
+            // The search index follows the restored notes.
+            assertEquals(count, DatabaseUtils.longForQuery(mDb,
+                    "SELECT COUNT(*) FROM notes_fts", null));
+
+            // A file that is not a backup is rejected and the notes are unchanged.
+            Writer writer = new OutputStreamWriter(new FileOutputStream(backup), "UTF-8");
+            writer.write("Not a backup");
+            writer.close();
+            extras = new Bundle();
+            extras.putParcelable(NotePad.Notes.EXTRA_BACKUP_FILE,
+                    ParcelFileDescriptor.open(backup, ParcelFileDescriptor.MODE_READ_ONLY));
+            try {
+                mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_RESTORE, null,
+                        extras);
+                fail("Expected an IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // success
+            }
+            assertEquals(count, countNotes());
+        } finally {
+            backup.delete();
+        }
+    }
+
+    /*
+     * Tests the revision history. Each save of a whole text or through the edit journal adds a
+     * revision, stored as a small delta against the one before it with a keyframe every
+     * KEYFRAME_INTERVAL revisions, and any revision can be read back in full.
+     */
+    public void testRevisions() {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 1000) {
+            builder.append("The quick brown fox jumps over the lazy dog. ");
+        }
+        String base = builder.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Revised");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, base + "edit 0");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+        Uri revisionsUri = Uri.withAppendedPath(noteUri, NotePad.NoteRevisions.CONTENT_DIRECTORY);
+
+        // Inserting a note does not record a revision, the editor asks for one when it opens it.
+        assertEquals(0, countRevisions(noteId));
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.NoteRevisions.METHOD_RECORD, Long.toString(noteId), null);
+        long first = result.getLong(NotePad.NoteRevisions.EXTRA_REVISION_ID);
+        assertTrue(first > 0);
+
+        // Recording the same text again returns the same revision.
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.NoteRevisions.METHOD_RECORD, Long.toString(noteId), null);
+        assertEquals(first, result.getLong(NotePad.NoteRevisions.EXTRA_REVISION_ID));
+
+        final int saves = 5;
+        for (int i = 1; i < saves; i++) {
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, base + "edit " + i);
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        }
+
+        // The list holds every revision, newest first, without the text.
+        Cursor cursor = mMockResolver.query(revisionsUri, new String[] {
+                NotePad.NoteRevisions._ID, NotePad.NoteRevisions.COLUMN_NAME_LENGTH
+        }, null, null, null);
+        long[] ids = new long[saves];
+        try {
+            assertEquals(saves, cursor.getCount());
+            for (int i = saves - 1; i >= 0; i--) {
+                assertTrue(cursor.moveToNext());
+                ids[i] = cursor.getLong(0);
+                assertEquals((base + "edit " + i).length(), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(first, ids[0]);
+
+        // Every revision reads back in full, but only the first one is stored in full.
+        for (int i = 0; i < saves; i++) {
+            assertEquals(base + "edit " + i, querySingleString(
+                    ContentUris.withAppendedId(revisionsUri, ids[i]),
+                    new String[] { NotePad.NoteRevisions.COLUMN_NAME_TEXT }));
+        }
+        assertEquals(1, countKeyframes(noteId));
+
+        // A save through the edit journal records a revision of the edited text as well, stored
+        // as a delta like the others.
+        Uri editsUri = Uri.withAppendedPath(noteUri, NotePad.NoteEdits.CONTENT_DIRECTORY);
+        assertEquals(1, mMockResolver.bulkInsert(editsUri,
+                new ContentValues[] { newEdit(0, 3, "A") }));
+        assertEquals(saves + 1, countRevisions(noteId));
+        assertEquals(1, countKeyframes(noteId));
+        cursor = mMockResolver.query(revisionsUri, new String[] { NotePad.NoteRevisions._ID },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long journaled = cursor.getLong(0);
+        cursor.close();
+        assertEquals("A" + (base + "edit " + (saves - 1)).substring(3), querySingleString(
+                ContentUris.withAppendedId(revisionsUri, journaled),
+                new String[] { NotePad.NoteRevisions.COLUMN_NAME_TEXT }));
+        assertEquals(NotePad.NoteRevisions.CONTENT_TYPE, mMockResolver.getType(revisionsUri));
+        assertEquals(NotePad.NoteRevisions.CONTENT_ITEM_TYPE,
+                mMockResolver.getType(ContentUris.withAppendedId(revisionsUri, ids[0])));
+
+        // A revision that does not exist, or belongs to another note, reads as an empty cursor.
+        cursor = mMockResolver.query(ContentUris.withAppendedId(revisionsUri, ids[saves - 1] + 1000),
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        Uri otherNote = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId + 1000);
+        cursor = mMockResolver.query(ContentUris.withAppendedId(
+                Uri.withAppendedPath(otherNote, NotePad.NoteRevisions.CONTENT_DIRECTORY), ids[0]),
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Old revisions are dropped a keyframe group at a time.
+        int total = saves + RevisionHistory.KEYFRAME_INTERVAL * (RevisionHistory.MAX_KEYFRAMES + 1);
+        for (int i = saves; i < total; i++) {
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, base + "edit " + i);
+            mMockResolver.update(noteUri, values, null, null);
+        }
+        assertEquals(RevisionHistory.MAX_KEYFRAMES, countKeyframes(noteId));
+        assertTrue(countRevisions(noteId)
+                <= RevisionHistory.KEYFRAME_INTERVAL * RevisionHistory.MAX_KEYFRAMES);
+        cursor = mMockResolver.query(ContentUris.withAppendedId(revisionsUri, ids[0]), null, null,
+                null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(revisionsUri, new String[] { NotePad.NoteRevisions._ID },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long latest = cursor.getLong(0);
+        cursor.close();
+        assertEquals(base + "edit " + (total - 1), querySingleString(
+                ContentUris.withAppendedId(revisionsUri, latest),
+                new String[] { NotePad.NoteRevisions.COLUMN_NAME_TEXT }));
+
+        // A revision pinned by the editor when it opens the note is stored in full and kept while
+        // older revisions are dropped, until the editor unpins it.
+        Bundle extras = new Bundle();
+        extras.putBoolean(NotePad.NoteRevisions.EXTRA_PIN, true);
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.NoteRevisions.METHOD_RECORD, Long.toString(noteId), extras);
+        long pinned = result.getLong(NotePad.NoteRevisions.EXTRA_REVISION_ID);
+        assertEquals(latest, pinned);
+        Uri pinnedUri = ContentUris.withAppendedId(revisionsUri, pinned);
+        int more = total + RevisionHistory.KEYFRAME_INTERVAL * (RevisionHistory.MAX_KEYFRAMES + 1);
+        for (int i = total; i < more; i++) {
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, base + "edit " + i);
+            mMockResolver.update(noteUri, values, null, null);
+        }
+        assertEquals(base + "edit " + (total - 1), querySingleString(pinnedUri,
+                new String[] { NotePad.NoteRevisions.COLUMN_NAME_TEXT }));
+        assertEquals(RevisionHistory.MAX_KEYFRAMES + 1, countKeyframes(noteId));
+
+        mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.NoteRevisions.METHOD_UNPIN,
+                Long.toString(noteId), null);
+        for (int i = more; i < more + RevisionHistory.KEYFRAME_INTERVAL; i++) {
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, base + "edit " + i);
+            mMockResolver.update(noteUri, values, null, null);
+        }
+        cursor = mMockResolver.query(pinnedUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Deleting the note deletes its revisions.
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(0, countRevisions(noteId));
+    }
+
+    private long countRevisions(long noteId) {
+        return DatabaseUtils.queryNumEntries(mDb, NotePad.NoteRevisions.TABLE_NAME,
+                NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { Long.toString(noteId) });
+    }
+
+    private long countKeyframes(long noteId) {
+        return DatabaseUtils.queryNumEntries(mDb, NotePad.NoteRevisions.TABLE_NAME,
+                NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                        + RevisionHistory.COLUMN_NAME_KEYFRAME + " = 1",
+                new String[] { Long.toString(noteId) });
+    }
+
+    /*
+     * Tests the cache of note rows. Repeated queries of one note are served from memory, and
+     * every change made through the provider is visible to the next query.
+     */
+    public void testNoteCache() {
+        NoteCache cache = getProvider().getNoteCacheForTest();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cached");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Hello world");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        String[] projection = { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE };
+
+        // The first query misses and fills the cache, the second one hits.
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        assertEquals("Hello world", querySingleString(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }));
+        assertEquals(misses + 1, cache.getMissCount());
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertEquals(hits + 1, cache.getHitCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Cached", cursor.getString(0));
+        assertEquals("Hello world", cursor.getString(1));
+        cursor.close();
+
+        // Without a projection, all of the note's columns are returned.
+        cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(noteUri),
+                cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes._ID)));
+        assertTrue(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET) >= 0);
+        assertEquals(-1, cursor.getColumnIndex(NotePadProvider.COLUMN_NAME_NOTE_COMPRESSED));
+        cursor.close();
+
+        // Updates and journaled edits are seen by the next query.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals("Renamed", querySingleString(noteUri, projection));
+        mMockResolver.insert(Uri.withAppendedPath(noteUri, NotePad.NoteEdits.CONTENT_DIRECTORY),
+                newEdit(0, 5, "Goodbye"));
+        assertEquals("Goodbye world", querySingleString(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }));
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Updated by title");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Renamed" }));
+        assertEquals("Updated by title", querySingleString(noteUri, projection));
+
+        // An unknown column is rejected, as it is by the database.
+        try {
+            mMockResolver.query(noteUri, new String[] { "unknown" }, null, null, null);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // success
+        }
+
+        // A deleted note is gone from the cache.
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // A small cache evicts the least recently read notes once it is full.
+        String[] columns = { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE };
+        final int maxBytes = 4000;
+        NoteCache small = new NoteCache(columns, maxBytes);
+        char[] text = new char[300];
+        Arrays.fill(text, 'x');
+        int count = 0;
+        while (small.getEvictionCount() == 0) {
+            count++;
+            small.put(count, new Object[] { (long) count, new String(text) }, small.getGeneration());
+        }
+        assertTrue(small.getBytes() <= maxBytes);
+        assertNull(small.query(1, null));
+        assertNotNull(small.query(count, null));
+        assertNotNull(small.query(2, null));
+        small.put(count + 1, new Object[] { (long) count + 1, new String(text) },
+                small.getGeneration());
+        assertNotNull(small.query(2, null));
+        assertNull(small.query(3, null));
+
+        // A row read before an invalidation, or during a batch, is not cached.
+        long generation = small.getGeneration();
+        small.invalidate(count);
+        small.put(count + 2, new Object[] { (long) count + 2, "Stale" }, generation);
+        assertNull(small.query(count + 2, null));
+        small.beginWrite();
+        small.put(count + 2, new Object[] { (long) count + 2, "Batch" }, small.getGeneration());
+        small.endWrite();
+        assertNull(small.query(count + 2, null));
+
+        // A note too large for its share of the cache is not cached.
+        small.put(count + 3, new Object[] { (long) count + 3, new String(new char[maxBytes]) },
+                small.getGeneration());
+        assertNull(small.query(count + 3, null));
+    }
+
+    /*
+     * Tests reading a note back after it was changed while the editor was paused. The cursor of
+     * a single note can be a snapshot held in memory, so calling requery() on it does not see
+     * the change; the editor queries the note again instead, and that query must return the
+     * new title and text.
+     */
+    public void testRequeryAfterUpdate() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Before");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Hello world");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        String[] projection = { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE };
+
+        // Opens the note the way the editor does.
+        Cursor opened = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(opened.moveToFirst());
+        assertEquals("Before", opened.getString(0));
+
+        // While the editor is paused, the title editor renames the note and a journaled save
+        // changes its text.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "After");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(1, mMockResolver.bulkInsert(
+                Uri.withAppendedPath(noteUri, NotePad.NoteEdits.CONTENT_DIRECTORY),
+                new ContentValues[] { newEdit(0, 5, "Goodbye") }));
+
+        // Querying again on resume sees both changes.
+        Cursor resumed = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(resumed.moveToFirst());
+        assertEquals("After", resumed.getString(0));
+        assertEquals("Goodbye world", resumed.getString(1));
+        resumed.close();
+        opened.close();
+    }
+
+    /*
+     * Tests the in-memory index that answers list queries. After every kind of change made
+     * through the provider, the list read from the index must match the list read from the
+     * database, in the page sort order.
+     */
+    public void testListIndex() throws RemoteException, OperationApplicationException {
+        insertData();
+        assertListMatchesDatabase();
+
+        // A new note is added to the index.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Indexed");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Listed from memory");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertListMatchesDatabase();
+
+        // A changed title, and a modification date that moves the note to the end of the list.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE - ONE_DAY_MILLIS);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertListMatchesDatabase();
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        assertTrue(cursor.moveToLast());
+        assertEquals("Renamed", cursor.getString(0));
+        cursor.close();
+
+        // Deleted notes are removed, one at a time or by a selection.
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertListMatchesDatabase();
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { TEST_NOTES[0].title }));
+        assertListMatchesDatabase();
+
+        // Batches are seen once they are committed.
+        ContentValues[] notes = new ContentValues[3];
+        for (int index = 0; index < notes.length; index++) {
+            notes[index] = new ContentValues();
+            notes[index].put(NotePad.Notes.COLUMN_NAME_TITLE, "Bulk" + index);
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+        assertListMatchesDatabase();
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Batched")
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?",
+                        new String[] { "Bulk%" })
+                .build());
+        mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertListMatchesDatabase();
+
+        // A journaled save is a batch that changes one note, which is updated in place without
+        // reading the whole list again.
+        NoteListIndex index = getProvider().getListIndexForTest();
+        int loads = index.getLoadCount();
+        Uri editedUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2);
+        assertEquals(1, mMockResolver.bulkInsert(
+                Uri.withAppendedPath(editedUri, NotePad.NoteEdits.CONTENT_DIRECTORY),
+                new ContentValues[] { newEdit(0, 4, "That") }));
+        assertListMatchesDatabase();
+        assertEquals(loads, index.getLoadCount());
+
+        // Queries the index cannot answer still go to the database.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE },
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Batched" }, null);
+        assertEquals(notes.length, cursor.getCount());
+        cursor.close();
+    }
+
+    // Checks that the list read through the provider matches the notes table.
+    private void assertListMatchesDatabase() {
+        String[] projection = {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_SNIPPET
+        };
+        Cursor expected = mDb.query(NotePad.Notes.TABLE_NAME, projection, null, null, null, null,
+                NotePad.Notes.PAGE_SORT_ORDER);
+        Cursor actual = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.PAGE_SORT_ORDER);
+        try {
+            assertEquals(expected.getCount(), actual.getCount());
+            while (expected.moveToNext()) {
+                assertTrue(actual.moveToNext());
+                assertEquals(expected.getLong(0), actual.getLong(0));
+                assertEquals(expected.getString(1), actual.getString(1));
+                assertEquals(expected.getLong(2), actual.getLong(2));
+                assertEquals(expected.getString(3), actual.getString(3));
+            }
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    /*
+     * Tests substring search through the trigram index. Any part of a word can be found, ASCII
+     * letters match regardless of case, text without spaces between words (such as Chinese) can
+     * be searched, and the index follows updates and deletions.
+     */
+    public void testSubstringSearch() {
+        // Inserts the test data directly. The notes are queued for indexing by triggers, and
+        // searches find them by their text until they are indexed in the background.
+        insertData();
+
+        // A fragment from the middle of a title matches only that note.
+        Cursor cursor = mMockResolver.query(substringSearchUri("ote3"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[3].title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // Case is ignored, and the text may span words in the body.
+        cursor = mMockResolver.query(substringSearchUri("NOTE 7"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(substringSearchUri("is no"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Text shorter than a trigram is matched too.
+        cursor = mMockResolver.query(substringSearchUri("9"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Every trigram of the text appears in the same note, in the title or the body, but the
+        // text itself does not.
+        cursor = mMockResolver.query(substringSearchUri("is note1"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(substringSearchUri("xyz"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // The index is built at most one chunk per transaction.
+        assertTrue(TrigramIndex.sync(mDb, 2) <= 2);
+        syncTrigramIndex();
+        assertFalse(TrigramIndex.hasPending(mDb));
+
+        // A note whose trigrams are missing from the index is still found while it waits in the
+        // pending table, whether or not the background sync has indexed it again yet.
+        String noteId = Long.toString(TEST_NOTES.length);
+        mDb.delete(TrigramIndex.TABLE_NAME, TrigramIndex.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { noteId });
+        mDb.execSQL("INSERT INTO " + TrigramIndex.PENDING_TABLE_NAME + " ("
+                + TrigramIndex.COLUMN_NAME_NOTE_ID + ") VALUES (" + noteId + ")");
+        cursor = mMockResolver.query(substringSearchUri("note" + (TEST_NOTES.length - 1)), null,
+                null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Chinese text is found by any part of it, which the terms mode cannot do.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "今天的会议记录");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "讨论了下个月的计划");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        cursor = mMockResolver.query(substringSearchUri("会议"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(substringSearchUri("的会议记"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(substringSearchUri("个月的计划"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("会议"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Updates are reflected in the index.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "明天的会议");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(substringSearchUri("会议记录"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(substringSearchUri("明天"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Deleted notes disappear from the index, and so do their trigrams.
+        mMockResolver.delete(noteUri, null, null);
+        cursor = mMockResolver.query(substringSearchUri("会议"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        syncTrigramIndex();
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, TrigramIndex.TABLE_NAME,
+                TrigramIndex.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { Long.toString(ContentUris.parseId(noteUri)) }));
+
+        // An unknown search mode is rejected.
+        try {
+            mMockResolver.query(searchUri("note").buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_MODE, "regex").build(),
+                    null, null, null, null);
+            fail("Unknown search mode was accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /*
+     * Tests fuzzy search over note titles. Titles within a small edit distance of the search
+     * text are found, closer titles come first, and the index follows titles as they change.
+     */
+    public void testFuzzySearch() throws RemoteException, OperationApplicationException {
+        insertData();
+
+        // A typo in the search text still finds the note, and only that note.
+        Cursor cursor = mMockResolver.query(fuzzySearchUri("Nite3", null), null, null, null,
+                null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[3].title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // Equally close titles are ranked by modification date, newest first, and the limit
+        // parameter bounds the number of results.
+        cursor = mMockResolver.query(fuzzySearchUri("note", null), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(fuzzySearchUri("note", 3), null, null, null, null);
+        assertEquals(3, cursor.getCount());
+        for (int index = TEST_NOTES.length - 1; cursor.moveToNext(); index--) {
+            assertEquals(TEST_NOTES[index].title,
+                    cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        }
+        cursor.close();
+
+        // A closer title comes first even when it is older.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Weekly meeting");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Weekly meetup");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        cursor = mMockResolver.query(fuzzySearchUri("meetin", null), null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Weekly meeting",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // Title changes made through the provider are reflected in the index.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Grocery list");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        cursor = mMockResolver.query(fuzzySearchUri("meetin", null), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(fuzzySearchUri("grocey lst", null), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        cursor = mMockResolver.query(fuzzySearchUri("grocey lst", null), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Batches update only the notes they change: a journaled save leaves the index alone,
+        // and a batched rename is applied in place instead of reading every title again.
+        FuzzyTitleIndex titles = getProvider().getTitleIndexForTest();
+        int loads = titles.getLoadCount();
+        Uri editedUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2);
+        assertEquals(1, mMockResolver.bulkInsert(
+                Uri.withAppendedPath(editedUri, NotePad.NoteEdits.CONTENT_DIRECTORY),
+                new ContentValues[] { newEdit(0, 4, "That") }));
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(editedUri)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Shopping list")
+                .build());
+        mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        cursor = mMockResolver.query(fuzzySearchUri("shoping list", null), null, null, null,
+                null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        assertEquals(loads, titles.getLoadCount());
+
+        // The distance is measured against the closest part of the title.
+        assertEquals(0, FuzzyTitleIndex.substringDistance("meet", "weekly meeting", 3,
+                new int[5]));
+        assertEquals(1, FuzzyTitleIndex.substringDistance("nite", "my notes", 3, new int[5]));
+        assertEquals(3, FuzzyTitleIndex.substringDistance("abc", "xyz", 2, new int[4]));
+
+        // When the time budget runs out, the candidates sharing the most pairs of letters with
+        // the search text have already been checked, so the best match is still found.
+        for (int index = 0; index < 200; index++) {
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Report " + index);
+            mDb.insert(NotePad.Notes.TABLE_NAME, null, values);
+        }
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Quarterly report");
+        long reportId = mDb.insert(NotePad.Notes.TABLE_NAME, null, values);
+        FuzzyTitleIndex index = new FuzzyTitleIndex(getProvider().getOpenHelperForTest());
+        long[] ids = index.search("quartely report", 10, 0);
+        assertTrue(ids.length > 0);
+        assertEquals(reportId, ids[0]);
+    }
+
+    /*
+     * Tests that search results are ordered by relevance when no sort order is given. A match
+     * in the title outweighs a match in a long body, recent notes win between equal matches,
+     * and every match is still returned when there are more than the ranker keeps.
+     */
+    public void testSearchRanking() {
+        long now = System.currentTimeMillis();
+
+        // An old note with the term in its title, and a new note with it deep in a long body.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Groceries");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Milk, eggs and bread");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - 400 * ONE_DAY_MILLIS);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Weekend");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Clean the flat, call the plumber about the"
+                + " sink, write to the landlord, and remember to pick up groceries on the way");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        Cursor cursor = mMockResolver.query(searchUri("groceries"), null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Groceries",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // Substring searches are ranked the same way where their text is also a term.
+        cursor = mMockResolver.query(substringSearchUri("groceries"), null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Groceries",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // An explicit sort order is still honored.
+        cursor = mMockResolver.query(searchUri("groceries"), null, null, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Weekend",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // Between two equal matches, the more recently modified note comes first.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Project plan");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        Uri newer = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - 60 * ONE_DAY_MILLIS);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        cursor = mMockResolver.query(searchUri("project"), null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(newer),
+                cursor.getLong(cursor.getColumnIndex(NotePad.Notes._ID)));
+        cursor.close();
+
+        // More matches than the ranker keeps are all returned.
+        final int MATCHES = 60;
+        for (int index = 0; index < MATCHES; index++) {
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Item" + index);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "A common word");
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        cursor = mMockResolver.query(searchUri("common"), null, null, null, null);
+        assertEquals(MATCHES, cursor.getCount());
+        cursor.close();
+
+        // The recency factor halves its distance to the floor every half-life.
+        assertEquals(1.0, SearchRanker.recency(0), 1e-9);
+        assertEquals(SearchRanker.RECENCY_FLOOR + (1 - SearchRanker.RECENCY_FLOOR) / 2,
+                SearchRanker.recency(SearchRanker.RECENCY_HALF_LIFE_MILLIS), 1e-9);
+        assertEquals(SearchRanker.RECENCY_FLOOR,
+                SearchRanker.recency(100 * SearchRanker.RECENCY_HALF_LIFE_MILLIS), 1e-9);
+    }
+
+    /*
+     * Tests the snippets and match offsets returned with search results. The snippet is taken
+     * from around the matches in the body, the offsets point at the matched text in the snippet
+     * and in the title, and long bodies are only scanned up to a fixed length.
+     */
+    public void testSearchSnippets() {
+        getProvider().setCompressionEnabledForTest(false);
+        String[] projection = {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET_MATCHES,
+                NotePad.Notes.COLUMN_NAME_SEARCH_TITLE_MATCHES
+        };
+
+        // A note whose matches are in the middle of a long body.
+        StringBuilder filler = new StringBuilder();
+        for (int index = 0; index < 30; index++) {
+            filler.append("Filler text. ");
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Trip planning");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, filler + "Book the Train early,\nthe train"
+                + " fills up. " + filler);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Both matches are in the snippet, which is cut at both ends.
+        Cursor cursor = mMockResolver.query(searchUri("train"), projection, null, null, null);
+        assertEquals(projection.length, cursor.getColumnCount());
+        assertTrue(cursor.moveToFirst());
+        String snippet = cursor.getString(2);
+        assertTrue(snippet.startsWith(SearchSnippets.ELLIPSIS));
+        assertTrue(snippet.endsWith(SearchSnippets.ELLIPSIS));
+        assertTrue(snippet.length() <= SearchSnippets.SNIPPET_CHARS
+                + 2 * SearchSnippets.ELLIPSIS.length());
+        assertEquals(-1, snippet.indexOf('\n'));
+        int[] offsets = parseOffsets(cursor.getString(3));
+        assertEquals(4, offsets.length);
+        for (int index = 0; index < offsets.length; index += 2) {
+            assertEquals("train",
+                    snippet.substring(offsets[index], offsets[index + 1]).toLowerCase());
+        }
+        assertEquals("", cursor.getString(4));
+        cursor.close();
+
+        // Terms match the start of words, in the title too.
+        cursor = mMockResolver.query(searchUri("plan"), projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("5 9", cursor.getString(4));
+        assertEquals("", cursor.getString(3));
+        cursor.close();
+
+        // Substrings match anywhere.
+        cursor = mMockResolver.query(substringSearchUri("rain"), projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        snippet = cursor.getString(2);
+        offsets = parseOffsets(cursor.getString(3));
+        assertEquals(4, offsets.length);
+        assertEquals("rain", snippet.substring(offsets[0], offsets[1]));
+        cursor.close();
+
+        // A match beyond the scanned part of a very long body is not looked for; the snippet is
+        // the start of the body.
+        StringBuilder longBody = new StringBuilder();
+        while (longBody.length() < 50 * SearchSnippets.MAX_SCAN_CHARS) {
+            longBody.append("Nothing to see here. ");
+        }
+        longBody.append("Needle");
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Haystack");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longBody.toString());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        cursor = mMockResolver.query(searchUri("needle"), projection, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(2).startsWith("Nothing to see here."));
+        assertEquals("", cursor.getString(3));
+        cursor.close();
+
+        // A body of exactly the scanned length ends with the snippet, so the snippet has no
+        // trailing ellipsis. One more character makes the body longer than the scanned part.
+        String prefix = longBody.substring(0,
+                SearchSnippets.MAX_SCAN_CHARS - " Lighthouse".length());
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Exact");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, prefix + " Lighthouse");
+        Uri exactUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        cursor = mMockResolver.query(searchUri("lighthouse"), projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(2).endsWith(" Lighthouse"));
+        cursor.close();
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, prefix + " Lighthouse.");
+        assertEquals(1, mMockResolver.update(exactUri, values, null, null));
+        cursor = mMockResolver.query(searchUri("lighthouse"), projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(2).endsWith(" Lighthouse" + SearchSnippets.ELLIPSIS));
+        cursor.close();
+
+        // The columns are only generated when they are asked for.
+        cursor = mMockResolver.query(searchUri("train"), null, null, null, null);
+        assertEquals(-1, cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET));
+        cursor.close();
+    }
+
+    // Parses match offsets in the "start end start end ..." format.
+    private static int[] parseOffsets(String matches) {
+        if (matches.length() == 0) {
+            return new int[0];
+        }
+        String[] parts = matches.split(" ");
+        int[] offsets = new int[parts.length];
+        for (int index = 0; index < parts.length; index++) {
+            offsets[index] = Integer.parseInt(parts[index]);
+        }
+        return offsets;
+    }
+
+    // Indexes every pending note one chunk at a time, the way the background sync does.
+    private void syncTrigramIndex() {
+        while (TrigramIndex.sync(mDb, TrigramIndex.SYNC_CHUNK_SIZE)
+                == TrigramIndex.SYNC_CHUNK_SIZE) {
+        }
+    }
+
+    /*
+     * Tests the paged adapter of the notes list. Scrolling down reads the list one page at a
+     * time and keeps only a few pages in memory. A reload after a change reads only the pages
+     * around the visible position, and a page that no longer lines up with the next one when it
+     * is read again makes the adapter read the list again from that page. The adapter belongs to
+     * the main thread, so every call to it is posted there.
+     */
+    public void testPagedNotesAdapter() throws Exception {
+        final int PAGE_SIZE = PagedNotesAdapter.PAGE_SIZE;
+        int count = PAGE_SIZE * 8 + 10;
+
+        // Creates the notes, newest first, so that the list order is the insertion order.
+        List<Long> expected = new ArrayList<Long>();
+        mDb.beginTransaction();
+        try {
+            for (int index = 0; index < count; index++) {
+                NoteInfo note = new NoteInfo("Paged" + index, "Paged note " + index);
+                note.setCreationDate(START_DATE);
+                note.setModificationDate(START_DATE + (count - index) * ONE_DAY_MILLIS);
+                expected.add(mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null,
+                        note.getContentValues()));
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        getProvider().invalidateIndexesForTest();
+
+        final PagedNotesAdapter adapter = runOnMainThread(new Callable<PagedNotesAdapter>() {
+            public PagedNotesAdapter call() {
+                return new PagedNotesAdapter(LayoutInflater.from(getContext()), mMockResolver);
+            }
+        });
+        try {
+            // Only the first page is read when the list opens.
+            awaitAdapter(adapter);
+            assertEquals(PAGE_SIZE, readAdapterIds(adapter).length);
+            assertEquals(1, adapter.getLoadCount());
+
+            // The IDs of rows that are not loaded are placeholders, so they are not stable.
+            assertFalse(runOnMainThread(new Callable<Boolean>() {
+                public Boolean call() {
+                    return adapter.hasStableIds();
+                }
+            }));
+
+            // Scrolls to the end one page at a time. Every page holds the notes in list order,
+            // and the pages far from the visible one are dropped.
+            scrollAdapter(adapter, 0, count, expected);
+            long[] ids = readAdapterIds(adapter);
+            assertEquals(count, ids.length);
+            assertEquals(-1, ids[0]);
+            int resident = 0;
+            for (int position = 0; position < count; position += PAGE_SIZE) {
+                if (ids[position] != -1) {
+                    resident++;
+                }
+            }
+            assertTrue(resident <= PagedNotesAdapter.MAX_RESIDENT_PAGES);
+
+            // A reload reads the visible page and the two pages before it, not the whole list.
+            int lastPage = (count - 1) / PAGE_SIZE;
+            int renamed = (lastPage - 1) * PAGE_SIZE + 3;
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+            assertEquals(1, mMockResolver.update(ContentUris.withAppendedId(
+                    NotePad.Notes.CONTENT_ID_URI_BASE, expected.get(renamed)), values, null, null));
+            int loads = adapter.getLoadCount();
+            runOnMainThread(new Callable<Void>() {
+                public Void call() {
+                    adapter.reload();
+                    return null;
+                }
+            });
+            awaitAdapter(adapter);
+            assertEquals(PagedNotesAdapter.MAX_RESIDENT_PAGES / 2 + 1,
+                    adapter.getLoadCount() - loads);
+            ids = readAdapterIds(adapter);
+            assertEquals(count, ids.length);
+            assertEquals(-1, ids[0]);
+            assertEquals("Renamed", readAdapterItem(adapter, renamed));
+
+            // A new note at the top shifts the first page, which no longer lines up with the
+            // second page once it is read again, so the list is read again from the top.
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Newest");
+            Uri newest = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            expected.add(0, ContentUris.parseId(newest));
+            showAdapterPosition(adapter, 0);
+            ids = readAdapterIds(adapter);
+            assertEquals(PAGE_SIZE, ids.length);
+            assertEquals(ContentUris.parseId(newest), ids[0]);
+
+            // Another note at the top, written behind the adapter's back, moves the start of the
+            // second page. The next page is asked for after the reload has started but before its
+            // result is back, so it is read from the old start; that page no longer follows the
+            // reloaded first page and must be dropped rather than appended.
+            NoteInfo note = new NoteInfo("Newer", "Newer note");
+            note.setCreationDate(START_DATE);
+            note.setModificationDate(System.currentTimeMillis() + ONE_DAY_MILLIS);
+            expected.add(0, mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null,
+                    note.getContentValues()));
+            getProvider().invalidateIndexesForTest();
+            runOnMainThread(new Callable<Void>() {
+                public Void call() {
+                    adapter.reload();
+                    adapter.showPosition(PAGE_SIZE - 1);
+                    return null;
+                }
+            });
+            awaitAdapter(adapter);
+
+            // Scrolling down again reaches every note, including the ones that moved across the
+            // first page boundary, each of them once.
+            scrollAdapter(adapter, 0, count + 2, expected);
+            assertEquals(count + 2, readAdapterIds(adapter).length);
+        } finally {
+            runOnMainThread(new Callable<Void>() {
+                public Void call() {
+                    adapter.close();
+                    return null;
+                }
+            });
+        }
+    }
+
+    // Shows the adapter positions a page apart from start until count rows are listed, checking
+    // the IDs of each shown page against the expected list order.
+    private void scrollAdapter(PagedNotesAdapter adapter, int start, int count,
+            List<Long> expected) throws Exception {
+        for (int position = start; position < count; position += PagedNotesAdapter.PAGE_SIZE) {
+            showAdapterPosition(adapter, position);
+            long[] ids = readAdapterIds(adapter);
+            int end = Math.min(position + PagedNotesAdapter.PAGE_SIZE, ids.length);
+            for (int row = position; row < end; row++) {
+                assertEquals("Row " + row, expected.get(row).longValue(), ids[row]);
+            }
+        }
+    }
+
+    // Shows a position of the adapter, as the list does when it binds a row, and waits for the
+    // pages that it reads.
+    private void showAdapterPosition(final PagedNotesAdapter adapter, final int position)
+            throws Exception {
+        runOnMainThread(new Callable<Void>() {
+            public Void call() {
+                adapter.showPosition(position);
+                return null;
+            }
+        });
+        awaitAdapter(adapter);
+    }
+
+    // Returns the IDs of all of the rows of the adapter, -1 for the rows that are not loaded.
+    private long[] readAdapterIds(final PagedNotesAdapter adapter) throws Exception {
+        return runOnMainThread(new Callable<long[]>() {
+            public long[] call() {
+                long[] ids = new long[adapter.getCount()];
+                for (int position = 0; position < ids.length; position++) {
+                    ids[position] = adapter.getItemId(position);
+                }
+                return ids;
+            }
+        });
+    }
+
+    // Returns the title that the adapter holds at a position.
+    private Object readAdapterItem(final PagedNotesAdapter adapter, final int position)
+            throws Exception {
+        return runOnMainThread(new Callable<Object>() {
+            public Object call() {
+                return adapter.getItem(position);
+            }
+        });
+    }
+
+    // Waits until the adapter has no reads left in the background.
+    private void awaitAdapter(final PagedNotesAdapter adapter) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        Callable<Boolean> loading = new Callable<Boolean>() {
+            public Boolean call() {
+                return adapter.isLoading();
+            }
+        };
+        while (runOnMainThread(loading)) {
+            assertTrue("Adapter still loading", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    // Runs a task on the main thread and returns its result.
+    private static <T> T runOnMainThread(Callable<T> task) throws Exception {
+        FutureTask<T> future = new FutureTask<T>(task);
+        new Handler(Looper.getMainLooper()).post(future);
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    /*
+     * Tests bulk inserts. All of the rows are inserted in one transaction, and each of them gets
+     * the same defaults as a single insert.
+     */
+    public void testBulkInsert() {
+        ContentValues[] values = new ContentValues[TEST_NOTES.length];
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            values[index] = TEST_NOTES[index].getContentValues();
+        }
+
+        // Inserts all of the notes and checks that each one was counted.
+        int count = mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(TEST_NOTES.length, count);
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Inserting an empty array does nothing.
+        assertEquals(0, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, new ContentValues[0]));
+
+        // Bulk inserts are only allowed on the notes directory.
+        try {
+            mMockResolver.bulkInsert(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1), values);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // success
+        }
+    }
+
+    /*
+     * Tests applying a batch of operations. A successful batch applies every operation, and a
+     * batch with a failing operation leaves the database untouched.
+     */
+    public void testApplyBatch() throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                    .withValues(TEST_NOTES[index].getContentValues())
+                    .withYieldAllowed(true)
+                    .build());
+        }
+
+        // Updates the note inserted by the first operation, using the result of that operation.
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Batched")
+                .withSelection(NotePad.Notes._ID + " = ?", new String[1])
+                .withSelectionBackReference(0, 0)
+                .build());
+
+        ContentProviderResult[] results =
+                mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(operations.size(), results.length);
+        assertEquals(1, results[TEST_NOTES.length].count.intValue());
+
+        Cursor cursor = mMockResolver.query(results[0].uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Batched", cursor.getString(0));
+        cursor.close();
+
+        // A batch that ends with an invalid operation must not insert anything.
+        operations.clear();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(new NoteInfo("Rolled back", "Never committed").getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.LIVE_FOLDER_URI)
+                .withValues(new NoteInfo("Invalid", "Wrong URI").getContentValues())
+                .build());
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // success
+        }
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that queries are not serialized behind writes. First, a query must complete while
+     * another thread holds a write transaction open, and must not see the uncommitted changes.
+     * Then several reader threads query the notes on an idle database, and again while a writer
+     * saturates it with updates. The read latency and throughput of both runs are logged under
+     * TAG for comparison; they vary too much between devices to assert on, so the test only
+     * checks that every read saw all of the notes and that the writer made progress.
+     */
+    public void testConcurrentReadsAndWrites() throws Exception {
+        insertData();
+        assertTrue(mDb.isWriteAheadLoggingEnabled());
+
+        ExecutorService executor = Executors.newFixedThreadPool(READER_THREADS + 1);
+        try {
+            // Holds a write transaction open on the writer thread.
+            final CountDownLatch writing = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            Future<?> writer = executor.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    mDb.beginTransaction();
+                    try {
+                        ContentValues values = new ContentValues();
+                        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Uncommitted");
+                        mDb.update(NotePad.Notes.TABLE_NAME, values, null, null);
+                        writing.countDown();
+                        release.await();
+                        mDb.setTransactionSuccessful();
+                    } finally {
+                        mDb.endTransaction();
+                    }
+                    return null;
+                }
+            });
+            try {
+                assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+                // The query must not wait for the writer, and must not see its changes.
+                Future<Integer> reader = executor.submit(new Callable<Integer>() {
+                    public Integer call() {
+                        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                                NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                                new String[] { "Uncommitted" }, null);
+                        try {
+                            return cursor.getCount();
+                        } finally {
+                            cursor.close();
+                        }
+                    }
+                });
+                assertEquals(0, reader.get(5, TimeUnit.SECONDS).intValue());
+            } finally {
+                release.countDown();
+            }
+            writer.get(5, TimeUnit.SECONDS);
+
+            // Measures the reads on an idle database.
+            measureReads("idle", executor);
+
+            // Starts a writer that updates the notes, one transaction per update, until stopped.
+            final AtomicBoolean stop = new AtomicBoolean();
+            final AtomicInteger writes = new AtomicInteger();
+            writer = executor.submit(new Callable<Void>() {
+                public Void call() {
+                    ContentValues values = new ContentValues();
+                    while (!stop.get()) {
+                        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Write " + writes.get());
+                        mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null);
+                        writes.incrementAndGet();
+                    }
+                    return null;
+                }
+            });
+
+            // Measures the reads while the writer is running.
+            long start = System.nanoTime();
+            try {
+                measureReads("busy", executor);
+            } finally {
+                stop.set(true);
+            }
+            writer.get(5, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start;
+            Log.i(TAG, "Concurrent writes: " + writes.get() + " updates, "
+                    + writes.get() * TimeUnit.SECONDS.toNanos(1) / Math.max(elapsed, 1)
+                    + " updates/s");
+
+            // The writer must have made progress while the readers were running.
+            assertTrue(writes.get() > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * Compares the latency of single-note updates. The baseline builds a new WHERE clause with
+     * the note ID concatenated into it for every update, as the provider used to, so SQLite has
+     * to compile a new statement each time. The second run reuses one compiled statement with the
+     * values and the ID bound as arguments, as the provider now does. Both runs go straight to the
+     * database, so that the provider's own overhead does not hide the difference, and both are
+     * done in a transaction, so that the time spent syncing to disk does not either. The timings
+     * are only logged, since they vary too much between devices to assert on; the test checks
+     * that the updates were applied, and that the provider's note ID update applies them too.
+     */
+    public void testNoteIdUpdateBenchmark() {
+        // Creates the notes to update.
+        long[] ids = new long[BENCHMARK_NOTES];
+        mDb.beginTransaction();
+        try {
+            for (int index = 0; index < BENCHMARK_NOTES; index++) {
+                ids[index] = mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null,
+                        new NoteInfo("Note" + index, "This is note " + index).getContentValues());
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        // Both runs update the same sequence of randomly chosen notes.
+        Random random = new Random(BENCHMARK_NOTES);
+        long[] targets = new long[BENCHMARK_UPDATES];
+        for (int update = 0; update < BENCHMARK_UPDATES; update++) {
+            targets[update] = ids[random.nextInt(BENCHMARK_NOTES)];
+        }
+        ContentValues values = new ContentValues();
+
+        // Runs the updates with the ID concatenated into the WHERE clause.
+        long start = System.nanoTime();
+        mDb.beginTransaction();
+        try {
+            for (int update = 0; update < BENCHMARK_UPDATES; update++) {
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Concatenated " + update);
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + update);
+                assertEquals(1, mDb.update(NotePad.Notes.TABLE_NAME, values,
+                        NotePad.Notes._ID + " = " + targets[update], null));
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        long concatenatedNanos = (System.nanoTime() - start) / BENCHMARK_UPDATES;
+
+        // Runs the same updates through one compiled statement with bound arguments.
+        start = System.nanoTime();
+        SQLiteStatement statement = mDb.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                + " SET " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + "=?,"
+                + NotePad.Notes.COLUMN_NAME_NOTE + "=? WHERE " + NotePad.Notes._ID + " = ?");
+        mDb.beginTransaction();
+        try {
+            for (int update = 0; update < BENCHMARK_UPDATES; update++) {
+                statement.bindLong(1, START_DATE + update);
+                statement.bindString(2, "Bound " + update);
+                statement.bindLong(3, targets[update]);
+                assertEquals(1, statement.executeUpdateDelete());
+                statement.clearBindings();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            statement.close();
+        }
+        long boundNanos = (System.nanoTime() - start) / BENCHMARK_UPDATES;
+
+        Log.i(TAG, "Note ID update: concatenated " + concatenatedNanos + "ns/op, bound "
+                + boundNanos + "ns/op");
+
+        // The last update must have been applied through the compiled statement.
+        Uri last = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                targets[BENCHMARK_UPDATES - 1]);
+        assertEquals("Bound " + (BENCHMARK_UPDATES - 1), querySingleString(last,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }));
+
+        // The provider's note ID update, which binds the ID the same way, applies as well.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Provider");
+        assertEquals(1, mMockResolver.update(last, values, null, null));
+        assertEquals("Provider", querySingleString(last,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }));
+    }
+
+    // Number of notes created by testNoteIdUpdateBenchmark.
+    private static final int BENCHMARK_NOTES = 1000;
+
+    // Number of updates run in each pass of testNoteIdUpdateBenchmark.
+    private static final int BENCHMARK_UPDATES = 10000;
+
+    // Number of reader threads used by testConcurrentReadsAndWrites.
+    private static final int READER_THREADS = 4;
+
+    // Number of queries each reader thread runs in testConcurrentReadsAndWrites.
+    private static final int READS_PER_THREAD = 200;
+
+    /*
+     * Runs READS_PER_THREAD queries of all of the notes on each of READER_THREADS threads, checks
+     * that each of them returned every test note, and logs the median and 95th percentile latency
+     * of a single query and the total throughput under TAG with the given label.
+     */
+    private void measureReads(String label, ExecutorService executor) throws Exception {
+        long start = System.nanoTime();
+        List<Future<long[]>> readers = new ArrayList<Future<long[]>>();
+        for (int thread = 0; thread < READER_THREADS; thread++) {
+            readers.add(executor.submit(new Callable<long[]>() {
+                public long[] call() {
+                    long[] latencies = new long[READS_PER_THREAD];
+                    for (int read = 0; read < READS_PER_THREAD; read++) {
+                        long begin = System.nanoTime();
+                        Cursor cursor = mMockResolver.query(
+                                NotePad.Notes.CONTENT_URI, null, null, null, null);
+                        try {
+                            assertEquals(TEST_NOTES.length, cursor.getCount());
+                            cursor.moveToLast();
+                        } finally {
+                            cursor.close();
+                        }
+                        latencies[read] = System.nanoTime() - begin;
+                    }
+                    return latencies;
+                }
+            }));
+        }
+
+        long[] all = new long[READER_THREADS * READS_PER_THREAD];
+        for (int thread = 0; thread < READER_THREADS; thread++) {
+            System.arraycopy(readers.get(thread).get(30, TimeUnit.SECONDS), 0,
+                    all, thread * READS_PER_THREAD, READS_PER_THREAD);
+        }
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(all);
+        Log.i(TAG, "Concurrent reads, " + label + ": median "
+                + TimeUnit.NANOSECONDS.toMicros(all[all.length / 2]) + "us, 95th percentile "
+                + TimeUnit.NANOSECONDS.toMicros(all[all.length * 95 / 100]) + "us, "
+                + all.length * TimeUnit.SECONDS.toNanos(1) / Math.max(elapsed, 1) + " reads/s");
+    }
+
+    /*
+     * Tests that upgrading a database from the oldest migratable version keeps the existing notes
+     * and brings the schema up to date. The old schema is recreated in an in-memory database and
+     * upgraded with the provider's own helper.
+     */
+    public void testMigrationPreservesNotes() throws ParseException {
+        SQLiteDatabase oldDb = SQLiteDatabase.create(null);
+        try {
+            // Creates the notes table as it was in database version 2, and fills it.
+            oldDb.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER"
+                    + ");");
+            for (int index = 0; index < TEST_NOTES.length; index++) {
+                TEST_NOTES[index].setCreationDate(START_DATE + (index * ONE_DAY_MILLIS));
+                TEST_NOTES[index].setModificationDate(START_DATE + (index * ONE_WEEK_MILLIS));
+                oldDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null,
+                        TEST_NOTES[index].getContentValues());
+            }
+
+            // Older versions of the editor stored the modification date as a local time string.
+            final String LEGACY_DATE = "2009-12-31 08:30:00";
+            ContentValues legacy = new NoteInfo("Legacy", "Saved by an old editor")
+                    .getContentValues();
+            legacy.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, LEGACY_DATE);
+            long legacyId = oldDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, legacy);
+
+            // Runs every migration step up to the current version.
+            getProvider().getOpenHelperForTest().onUpgrade(
+                    oldDb, 2, NotePadProvider.DATABASE_VERSION);
+
+            // All of the notes must still be there, in the default sort order. The legacy note is
+            // the oldest one once its date has been converted.
+            Cursor cursor = oldDb.query(NotePad.Notes.TABLE_NAME,
+                    new String[] { NotePad.Notes.COLUMN_NAME_TITLE },
+                    null, null, null, null, NotePad.Notes.DEFAULT_SORT_ORDER);
+            assertEquals(TEST_NOTES.length + 1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(TEST_NOTES[TEST_NOTES.length - 1].title, cursor.getString(0));
+            assertTrue(cursor.moveToLast());
+            assertEquals("Legacy", cursor.getString(0));
+            cursor.close();
+
+            // Every modification date must now be an integer, and the legacy string must have
+            // been converted to the same instant in milliseconds.
+            cursor = oldDb.query(NotePad.Notes.TABLE_NAME,
+                    new String[] { "typeof(" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ")",
+                            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE },
+                    NotePad.Notes._ID + " = " + legacyId, null, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("integer", cursor.getString(0));
+            assertEquals(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(LEGACY_DATE).getTime(),
+                    cursor.getLong(1));
+            cursor.close();
+
+            // Snippets must have been generated for the existing notes.
+            cursor = oldDb.query(NotePad.Notes.TABLE_NAME,
+                    new String[] { NotePad.Notes.COLUMN_NAME_SNIPPET },
+                    NotePad.Notes._ID + " = " + legacyId, null, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Saved by an old editor", cursor.getString(0));
+            cursor.close();
+
+            // The index on the modification date must exist after the upgrade.
+            cursor = oldDb.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index'"
+                    + " AND name = ?", new String[] { "notes_modified_index" });
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+        } finally {
+            oldDb.close();
+        }
+    }
+
+    // Builds a search URI for the given search text.
+    private static Uri searchUri(String text) {
+        return NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, text)
+                .build();
+    }
+
+    // Builds a search URI that matches note titles close to the given text, returning at most
+    // limit notes, or the default number if limit is null.
+    private static Uri fuzzySearchUri(String text, Integer limit) {
+        Uri.Builder builder = searchUri(text).buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_MODE,
+                        NotePad.Notes.SEARCH_MODE_FUZZY);
+        if (limit != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, limit.toString());
+        }
+        return builder.build();
+    }
+
+    // Builds a search URI that matches the given text as a substring.
+    private static Uri substringSearchUri(String text) {
+        return searchUri(text).buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_MODE,
+                        NotePad.Notes.SEARCH_MODE_SUBSTRING)
+                .build();
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 笔记编辑日志的数据库操作。日志的含义见{ @ link NotePad.NoteEdits }。
+ *
+ * 日志中的每一条编辑都是“在position处删除deleted个字符，再插入inserted”，按_id的顺序依次应用到
+ * notes表中保存的正文上。正文被整体写入时(编辑器的完整保存、恢复、合并)，这个笔记的日志由触发器删除，
+ * 因为新的正文已经包含了所有的编辑。
+ */
+final class EditJournal {
+
+    /**
+     * 一个笔记的日志达到这么多条编辑后在后台合并
+     */
+    static final int MAX_EDITS = 64;
+
+    /**
+     * 一个笔记的日志中插入的字符总数达到这么多后在后台合并
+     */
+    static final int MAX_INSERTED_CHARS = 16 * 1024;
+
+    private static final String[] EDIT_PROJECTION = new String[] {
+            NotePad.NoteEdits.COLUMN_NAME_POSITION,
+            NotePad.NoteEdits.COLUMN_NAME_DELETED,
+            NotePad.NoteEdits.COLUMN_NAME_INSERTED,
+            NotePad.NoteEdits.COLUMN_NAME_CREATE_DATE
+    };
+
+    private static final String NOTE_SELECTION = NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " = ?";
+
+    // 这个类不能实例化
+    private EditJournal() {
+    }
+
+    /**
+     * 创建日志表、按笔记读取日志的索引，以及在笔记被删除或正文被整体写入时清除日志的触发器。
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.NoteEdits.TABLE_NAME + " ("
+                + NotePad.NoteEdits._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + NotePad.NoteEdits.COLUMN_NAME_POSITION + " INTEGER NOT NULL,"
+                + NotePad.NoteEdits.COLUMN_NAME_DELETED + " INTEGER NOT NULL DEFAULT 0,"
+                + NotePad.NoteEdits.COLUMN_NAME_INSERTED + " TEXT NOT NULL DEFAULT '',"
+                + NotePad.NoteEdits.COLUMN_NAME_CREATE_DATE + " INTEGER"
+                + ");");
+
+        db.execSQL("CREATE INDEX note_edits_note_index ON " + NotePad.NoteEdits.TABLE_NAME + " ("
+                + NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + ", " + NotePad.NoteEdits._ID + ");");
+
+        db.execSQL("CREATE TRIGGER note_edits_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN DELETE FROM " + NotePad.NoteEdits.TABLE_NAME
+                + " WHERE " + NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " = old."
+                + NotePad.Notes._ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER note_edits_update_note AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_NOTE + " ON " + NotePad.Notes.TABLE_NAME
+                + " BEGIN DELETE FROM " + NotePad.NoteEdits.TABLE_NAME
+                + " WHERE " + NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " = new."
+                + NotePad.Notes._ID + "; END;");
+    }
+
+    /**
+     * 向一个笔记的日志追加一条编辑。只有笔记存在、并且正文原样保存在表中时才追加；
+     * 保存在文件中或压缩保存的正文总是整体写入。
+     *
+     * @return 新编辑的行ID，笔记不存在或正文没有原样保存在表中时返回-1
+     */
+    static long append(SQLiteDatabase db, long noteId, ContentValues values, long now) {
+        Long position = values.getAsLong(NotePad.NoteEdits.COLUMN_NAME_POSITION);
+        if (position == null || position < 0) {
+            throw new IllegalArgumentException("Invalid edit position " + position);
+        }
+        Long deleted = values.getAsLong(NotePad.NoteEdits.COLUMN_NAME_DELETED);
+        String inserted = values.getAsString(NotePad.NoteEdits.COLUMN_NAME_INSERTED);
+
+        SQLiteStatement statement = db.compileStatement("INSERT INTO "
+                + NotePad.NoteEdits.TABLE_NAME + " ("
+                + NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + ", "
+                + NotePad.NoteEdits.COLUMN_NAME_POSITION + ", "
+                + NotePad.NoteEdits.COLUMN_NAME_DELETED + ", "
+                + NotePad.NoteEdits.COLUMN_NAME_INSERTED + ", "
+                + NotePad.NoteEdits.COLUMN_NAME_CREATE_DATE
+                + ") SELECT ?, ?, ?, ?, ? WHERE EXISTS (SELECT 1 FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ? AND "
+                + NotePad.Notes.COLUMN_NAME_NOTE_FILE + " IS NULL AND "
+                + NotePadProvider.COLUMN_NAME_NOTE_COMPRESSED + " IS NULL)");
+        try {
+            statement.bindLong(1, noteId);
+            statement.bindLong(2, position);
+            statement.bindLong(3, deleted == null ? 0 : Math.max(0, deleted));
+            statement.bindString(4, inserted == null ? "" : inserted);
+            statement.bindLong(5, now);
+            statement.bindLong(6, noteId);
+            return statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * 一条编辑是否可能改变笔记的摘要，即它的位置是否在生成摘要读取的范围内。
+     */
+    static boolean changesSnippet(ContentValues values) {
+        Long position = values.getAsLong(NotePad.NoteEdits.COLUMN_NAME_POSITION);
+        return position != null && position < NoteSnippet.SOURCE_LENGTH;
+    }
+
+    /**
+     * 返回笔记保存的正文应用日志之后的完整正文，笔记不存在时返回null。不修改数据库。
+     */
+    static String foldedText(SQLiteDatabase db, long noteId) {
+        String[] selectionArgs = new String[] { Long.toString(noteId) };
+        Cursor note = db.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                NotePad.Notes._ID + " = ?", selectionArgs, null, null, null);
+        String base;
+        try {
+            if (!note.moveToFirst()) {
+                return null;
+            }
+            base = note.getString(0);
+        } finally {
+            note.close();
+        }
+        return fold(db, noteId, base).text;
+    }
+
+    /**
+     * 追加编辑之后更新笔记的修改时间，snippet不为null时同时更新摘要，列表在日志合并之前就能显示
+     * 正确的日期、摘要和顺序。不写入正文，所以不会清除日志。应该在追加编辑的同一个事务中调用。
+     */
+    static void touch(SQLiteDatabase db, long noteId, long now, String snippet) {
+        if (snippet != null) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, snippet);
+            db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = ?",
+                    new String[] { Long.toString(noteId) });
+        }
+        db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = MAX("
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", ?) WHERE "
+                + NotePad.Notes._ID + " = ?", new Object[] { now, noteId });
+    }
+
+    /**
+     * 一个笔记是否有还没有合并的编辑。
+     */
+    static boolean hasEdits(SQLiteDatabase db, long noteId) {
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM "
+                + NotePad.NoteEdits.TABLE_NAME + " WHERE " + NOTE_SELECTION + ")",
+                new String[] { Long.toString(noteId) }) != 0;
+    }
+
+    /**
+     * 是否有任何笔记有还没有合并的编辑。
+     */
+    static boolean hasAnyEdits(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM "
+                + NotePad.NoteEdits.TABLE_NAME + ")", null) != 0;
+    }
+
+    /**
+     * 返回有还没有合并的编辑的笔记的ID。
+     */
+    static Set<Long> journaledNotes(SQLiteDatabase db) {
+        Set<Long> noteIds = new HashSet<Long>();
+        Cursor cursor = db.query(true, NotePad.NoteEdits.TABLE_NAME,
+                new String[] { NotePad.NoteEdits.COLUMN_NAME_NOTE_ID },
+                null, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                noteIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return noteIds;
+    }
+
+    /**
+     * 一个笔记的日志是否已经足够大，需要合并。摘要在追加编辑时已经更新(见{ @ link # touch })，
+     * 改变正文开头的编辑不需要立即合并。
+     */
+    static boolean needsCompaction(SQLiteDatabase db, long noteId) {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*), TOTAL(LENGTH("
+                + NotePad.NoteEdits.COLUMN_NAME_INSERTED + ")) FROM "
+                + NotePad.NoteEdits.TABLE_NAME + " WHERE " + NOTE_SELECTION,
+                new String[] { Long.toString(noteId) });
+        try {
+            return cursor.moveToFirst() && cursor.getInt(0) > 0
+                    && (cursor.getInt(0) >= MAX_EDITS || cursor.getLong(1) >= MAX_INSERTED_CHARS);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 把一个笔记的日志应用到给定的正文上，返回编辑后的正文和最后一次编辑的时间。不修改数据库。
+     * 调用者要保证正文和日志是在同一个事务中读取的。
+     */
+    static Folded fold(SQLiteDatabase db, long noteId, String base) {
+        Cursor edits = db.query(NotePad.NoteEdits.TABLE_NAME, EDIT_PROJECTION, NOTE_SELECTION,
+                new String[] { Long.toString(noteId) }, null, null, NotePad.NoteEdits._ID);
+        try {
+            return apply(base, edits);
+        } finally {
+            edits.close();
+        }
+    }
+
+    /**
+     * 依次应用游标中的编辑。游标的列依次是位置、删除的字符数、插入的文本和时间。
+     * 超出正文范围的位置和长度被截断到正文的范围内。
+     */
+    static Folded apply(String base, Cursor edits) {
+        return apply(base, edits, 0);
+    }
+
+    /**
+     * 与{ @ link # apply(String, Cursor) }相同，但编辑的列从column开始，位置为null的行(例如左连接中
+     * 没有编辑的笔记)被跳过。
+     */
+    static Folded apply(String base, Cursor edits, int column) {
+        StringBuilder text = new StringBuilder(base == null ? "" : base);
+        long lastEdit = 0;
+        while (edits.moveToNext()) {
+            if (edits.isNull(column)) {
+                continue;
+            }
+            int length = text.length();
+            int position = (int) Math.min(edits.getLong(column), length);
+            int end = (int) Math.min(length, position + edits.getLong(column + 1));
+            text.replace(position, end, edits.getString(column + 2));
+            lastEdit = Math.max(lastEdit, edits.getLong(column + 3));
+        }
+        return new Folded(text.toString(), lastEdit);
+    }
+
+    /**
+     * 把一个笔记的日志合并进正文，重新生成摘要，并把修改时间更新为最后一次编辑的时间。正文的写入会触发日志的清除。
+     *
+     * @return 笔记是否被修改了
+     */
+    static boolean compact(SQLiteDatabase db, long noteId) {
+        String[] selectionArgs = new String[] { Long.toString(noteId) };
+        db.beginTransaction();
+        try {
+            Cursor note = db.query(NotePad.Notes.TABLE_NAME,
+                    new String[] {
+                            NotePad.Notes.COLUMN_NAME_NOTE,
+                            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE },
+                    NotePad.Notes._ID + " = ?", selectionArgs, null, null, null);
+            String base;
+            long modified;
+            try {
+                if (!note.moveToFirst()) {
+                    return false;
+                }
+                base = note.getString(0);
+                modified = note.getLong(1);
+            } finally {
+                note.close();
+            }
+
+            if (!hasEdits(db, noteId)) {
+                return false;
+            }
+            Folded folded = fold(db, noteId, base);
+
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, folded.text);
+            values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, NoteSnippet.of(folded.text));
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                    Math.max(modified, folded.lastEdit));
+            db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = ?", selectionArgs);
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 合并所有笔记的日志。
+     *
+     * @return 被修改的笔记的ID
+     */
+    static long[] compactAll(SQLiteDatabase db) {
+        Set<Long> noteIds = journaledNotes(db);
+        long[] compacted = new long[noteIds.size()];
+        int count = 0;
+        for (long noteId : noteIds) {
+            if (compact(db, noteId)) {
+                compacted[count++] = noteId;
+            }
+        }
+        long[] result = new long[count];
+        System.arraycopy(compacted, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * 应用日志之后的正文，以及最后一次编辑的时间(没有编辑时为0)。
+     */
+    static final class Folded {
+        final String text;
+        final long lastEdit;
+
+        Folded(String text, long lastEdit) {
+            this.text = text;
+            this.lastEdit = lastEdit;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * 标题的模糊搜索，允许搜索词中有少量输入错误，见{ @ link NotePad.Notes # SEARCH_MODE_FUZZY }。
+ *
+ * 一个笔记与搜索词的距离是把搜索词改成标题中某一段文字所需的最少编辑(插入、删除、替换一个字符)次数。
+ * 每次编辑最多破坏搜索词中的两个二元组(相邻的两个字符)，所以距离不超过k的标题至少包含搜索词的
+ * (二元组数 - 2k)个二元组。索引在内存中为每个二元组保存包含它的笔记，搜索时先数出每个笔记包含的
+ * 二元组个数，只对达到这个下限的候选计算编辑距离，包含的二元组多的候选先计算。
+ *
+ * 计算编辑距离有时间预算：预算用完时返回已经找到的结果，这时距离较大的笔记可能没有全部找到。
+ * 索引第一次被搜索时从数据库读取所有标题，之后由提供者在标题变化时调用{ @ link # update }。
+ */
+final class FuzzyTitleIndex {
+
+    // 每计算这么多个候选检查一次是否超过时间预算
+    private static final int BUDGET_CHECK_INTERVAL = 64;
+
+    // 一个字符的位数
+    private static final int CHAR_BITS = 16;
+
+    private final SQLiteOpenHelper mOpenHelper;
+
+    // 是否已经从数据库读取了标题
+    private boolean mLoaded;
+
+    // 从数据库读取所有标题的次数
+    private int mLoadCount;
+
+    // 每个笔记占用一个位置，位置上保存笔记的ID、小写的标题和修改时间。被删除的笔记的位置可以重用
+    private long[] mIds = new long[16];
+    private String[] mTitles = new String[16];
+    private long[] mModified = new long[16];
+    private int mSlotCount;
+    private int[] mFreeSlots = new int[16];
+    private int mFreeCount;
+    private final HashMap<Long, Integer> mSlots = new HashMap<Long, Integer>();
+
+    // 二元组到包含它的笔记的位置
+    private final HashMap<Integer, Postings> mPostings = new HashMap<Integer, Postings>();
+
+    /**
+     * 一个二元组的倒排表，没有顺序。
+     */
+    private static final class Postings {
+        int[] slots = new int[4];
+        int size;
+
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+
+        void remove(int slot) {
+            for (int i = 0; i < size; i++) {
+                if (slots[i] == slot) {
+                    slots[i] = slots[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个搜索结果。
+     */
+    private static final class Match {
+        final int slot;
+        final int distance;
+
+        Match(int slot, int distance) {
+            this.slot = slot;
+            this.distance = distance;
+        }
+    }
+
+    FuzzyTitleIndex(SQLiteOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    /**
+     * 搜索标题与text相近的笔记。
+     *
+     * @param maxResults 最多返回的笔记数
+     * @param budgetNanos 计算编辑距离的时间预算(纳秒)，不包括第一次搜索时读取标题的时间
+     * @return 笔记ID，按距离从小到大排序，距离相同的按修改时间从新到旧排序
+     */
+    synchronized long[] search(String text, int maxResults, long budgetNanos) {
+        String query = fold(text);
+        if (query.length() == 0 || maxResults <= 0) {
+            return new long[0];
+        }
+        load();
+        long deadline = System.nanoTime() + budgetNanos;
+        int maxDistance = maxDistance(query.length());
+
+        // 数出每个笔记包含搜索词的多少个不同的二元组
+        int[] counts = new int[mSlotCount];
+        int[] bigrams = bigrams(query);
+        for (int bigram : bigrams) {
+            Postings postings = mPostings.get(bigram);
+            if (postings != null) {
+                for (int i = 0; i < postings.size; i++) {
+                    counts[postings.slots[i]]++;
+                }
+            }
+        }
+
+        // 达到下限的候选，包含的二元组多的在前。下限不大于0时所有笔记都是候选
+        int threshold = bigrams.length - 2 * maxDistance;
+
+        // 按个数的计数排序：byCount[n]先是恰好包含n个的候选数，累加后是至少包含n个的候选数，
+        // 也就是包含n - 1个的候选的起始位置
+        int[] byCount = new int[bigrams.length + 2];
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (mTitles[slot] != null && counts[slot] >= threshold) {
+                byCount[counts[slot]]++;
+            }
+        }
+        for (int i = byCount.length - 2; i >= 0; i--) {
+            byCount[i] += byCount[i + 1];
+        }
+        int[] candidates = new int[byCount[0]];
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (mTitles[slot] != null && counts[slot] >= threshold) {
+                candidates[byCount[counts[slot] + 1]++] = slot;
+            }
+        }
+
+        // 保留最好的maxResults个结果，堆顶是其中最差的一个
+        PriorityQueue<Match> best = new PriorityQueue<Match>(maxResults + 1,
+                new Comparator<Match>() {
+                    @Override
+                    public int compare(Match a, Match b) {
+                        return compareMatches(b, a);
+                    }
+                });
+        int[] column = new int[query.length() + 1];
+        for (int i = 0; i < candidates.length; i++) {
+            if (i % BUDGET_CHECK_INTERVAL == BUDGET_CHECK_INTERVAL - 1
+                    && System.nanoTime() > deadline) {
+                break;
+            }
+            int slot = candidates[i];
+
+            // 已经有足够的结果时，只需要找比最差的结果更近的笔记
+            int limit = maxDistance;
+            if (best.size() == maxResults) {
+                limit = Math.min(limit, best.peek().distance);
+            }
+            int distance = substringDistance(query, mTitles[slot], limit, column);
+            if (distance <= limit) {
+                best.add(new Match(slot, distance));
+                if (best.size() > maxResults) {
+                    best.poll();
+                }
+            }
+        }
+
+        long[] result = new long[best.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = mIds[best.poll().slot];
+        }
+        return result;
+    }
+
+    /**
+     * 一个笔记被插入、修改或删除之后调用。变化必须已经提交。索引还没有建立时什么也不做。
+     */
+    synchronized void update(long noteId) {
+        if (!mLoaded) {
+            return;
+        }
+        Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME,
+                new String[] {
+                        NotePad.Notes.COLUMN_NAME_TITLE,
+                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                }, NotePad.Notes._ID + " = ?", new String[] { Long.toString(noteId) },
+                null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                put(noteId, c.getString(0), c.getLong(1));
+            } else {
+                remove(noteId);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 丢弃索引，下次搜索时从数据库重新读取。任意多个笔记可能发生了变化时调用。
+     */
+    synchronized void invalidate() {
+        mLoaded = false;
+        mSlots.clear();
+        mPostings.clear();
+        Arrays.fill(mTitles, 0, mSlotCount, null);
+        mSlotCount = 0;
+        mFreeCount = 0;
+    }
+
+    synchronized int size() {
+        return mSlots.size();
+    }
+
+    /**
+     * 返回从数据库读取所有标题的次数。
+     */
+    synchronized int getLoadCount() {
+        return mLoadCount;
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME,
+                new String[] {
+                        NotePad.Notes._ID,
+                        NotePad.Notes.COLUMN_NAME_TITLE,
+                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                }, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                put(c.getLong(0), c.getString(1), c.getLong(2));
+            }
+        } finally {
+            c.close();
+        }
+        mLoaded = true;
+        mLoadCount++;
+    }
+
+    // 加入或替换一个笔记的标题
+    private void put(long noteId, String title, long modified) {
+        String folded = fold(title);
+        Integer existing = mSlots.get(noteId);
+        int slot;
+        if (existing != null) {
+            slot = existing;
+            if (folded.equals(mTitles[slot])) {
+                mModified[slot] = modified;
+                return;
+            }
+            removePostings(slot);
+        } else {
+            slot = allocateSlot();
+            mSlots.put(noteId, slot);
+        }
+        mIds[slot] = noteId;
+        mTitles[slot] = folded;
+        mModified[slot] = modified;
+        for (int bigram : bigrams(folded)) {
+            Postings postings = mPostings.get(bigram);
+            if (postings == null) {
+                postings = new Postings();
+                mPostings.put(bigram, postings);
+            }
+            postings.add(slot);
+        }
+    }
+
+    private void remove(long noteId) {
+        Integer slot = mSlots.remove(noteId);
+        if (slot == null) {
+            return;
+        }
+        removePostings(slot);
+        mTitles[slot] = null;
+        if (mFreeCount == mFreeSlots.length) {
+            mFreeSlots = Arrays.copyOf(mFreeSlots, mFreeCount * 2);
+        }
+        mFreeSlots[mFreeCount++] = slot;
+    }
+
+    private void removePostings(int slot) {
+        for (int bigram : bigrams(mTitles[slot])) {
+            Postings postings = mPostings.get(bigram);
+            postings.remove(slot);
+            if (postings.size == 0) {
+                mPostings.remove(bigram);
+            }
+        }
+    }
+
+    private int allocateSlot() {
+        if (mFreeCount > 0) {
+            return mFreeSlots[--mFreeCount];
+        }
+        if (mSlotCount == mIds.length) {
+            int capacity = mSlotCount * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mTitles = Arrays.copyOf(mTitles, capacity);
+            mModified = Arrays.copyOf(mModified, capacity);
+        }
+        return mSlotCount++;
+    }
+
+    // 距离小的在前，距离相同的修改时间新的在前
+    private int compareMatches(Match a, Match b) {
+        if (a.distance != b.distance) {
+            return a.distance < b.distance ? -1 : 1;
+        }
+        long modifiedA = mModified[a.slot];
+        long modifiedB = mModified[b.slot];
+        if (modifiedA != modifiedB) {
+            return modifiedA > modifiedB ? -1 : 1;
+        }
+        return a.slot - b.slot;
+    }
+
+    /**
+     * 允许的最大编辑距离。很短的搜索词允许编辑时几乎什么都能匹配。
+     */
+    static int maxDistance(int length) {
+        if (length <= 2) {
+            return 0;
+        } else if (length <= 5) {
+            return 1;
+        } else if (length <= 9) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * 把query改成text中某一段文字所需的最少编辑次数。结果超过limit时返回limit + 1。
+     *
+     * @param column 长度至少为query.length() + 1的工作数组
+     */
+    static int substringDistance(String query, String text, int limit, int[] column) {
+        int m = query.length();
+        if (m == 0) {
+            return 0;
+        }
+
+        // column[i]是query的前i个字符与text中以当前位置结束的某一段文字的最小距离。
+        // 任何位置都可以作为开始，所以column[0]总是0
+        for (int i = 0; i <= m; i++) {
+            column[i] = i;
+        }
+        int best = column[m];
+        for (int j = 0; j < text.length() && best > 0; j++) {
+            char c = text.charAt(j);
+            int diagonal = 0;
+            for (int i = 1; i <= m; i++) {
+                int above = column[i];
+                int cost = query.charAt(i - 1) == c ? 0 : 1;
+                column[i] = Math.min(Math.min(above + 1, column[i - 1] + 1), diagonal + cost);
+                diagonal = above;
+            }
+            best = Math.min(best, column[m]);
+        }
+        return best > limit ? limit + 1 : best;
+    }
+
+    /**
+     * 文本中不同的二元组。
+     */
+    private static int[] bigrams(String text) {
+        if (text.length() < 2) {
+            return new int[0];
+        }
+        int[] result = new int[text.length() - 1];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (text.charAt(i) << CHAR_BITS) | text.charAt(i + 1);
+        }
+        Arrays.sort(result);
+        int size = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (size == 0 || result[size - 1] != result[i]) {
+                result[size++] = result[i];
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static String fold(String text) {
+        return text == null ? "" : text.toLowerCase(Locale.ROOT);
+    }
+}
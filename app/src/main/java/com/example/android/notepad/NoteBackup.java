@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 笔记数据库的备份和恢复。备份是一个zip文件，包含数据库在某一时刻的完整副本
+ * ({ @ link # DATABASE_ENTRY })，以及这个副本中的笔记引用的正文文件(notes/目录下)。
+ *
+ * 使用预写日志时，数据库文件只在检查点时才被写入：备份先暂停自动检查点，执行一次检查点把日志中的
+ * 所有提交写入数据库文件，然后分块复制数据库文件。复制期间不持有任何锁，新的提交只追加到日志中，
+ * 编辑器的保存和读取都不受影响；复制完成后恢复自动检查点。没有预写日志时，复制期间持有保留锁，
+ * 读取不受影响，但写入要等待复制完成。
+ *
+ * 恢复在一个事务中用备份的内容替换所有笔记，较旧版本的备份先升级到当前的结构。
+ */
+final class NoteBackup {
+    // 用于日志和调试的目的
+    private static final String TAG = "NoteBackup";
+
+    /**
+     * 备份中数据库副本的条目名
+     */
+    static final String DATABASE_ENTRY = "note_pad.db";
+
+    /**
+     * 备份中正文文件的条目名的前缀
+     */
+    static final String FILES_PREFIX = "notes/";
+
+    // 复制文件时的缓冲区大小(字节)
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // 检查点没有完成时(有读取还在使用旧的快照)重试的次数和间隔
+    private static final int CHECKPOINT_ATTEMPTS = 50;
+    private static final long CHECKPOINT_RETRY_MILLIS = 20;
+
+    // 恢复时每次查询读取的行数
+    private static final int CHUNK_SIZE = 100;
+
+    // 恢复的表，按插入的顺序
+    private static final String[] TABLES = new String[] {
+            NotePad.Notes.TABLE_NAME,
+            NotePad.NoteEdits.TABLE_NAME,
+            NotePad.NoteRevisions.TABLE_NAME,
+            NoteImporter.TABLE_NAME
+    };
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final NoteFiles mNoteFiles;
+
+    // 保存数据库副本的临时目录
+    private final File mTempDirectory;
+
+    // 同一时间只进行一个备份或恢复，自动检查点的设置不会被两个备份交错修改
+    private final Object mLock = new Object();
+
+    NoteBackup(SQLiteOpenHelper openHelper, NoteFiles noteFiles, File tempDirectory) {
+        mOpenHelper = openHelper;
+        mNoteFiles = noteFiles;
+        mTempDirectory = tempDirectory;
+    }
+
+    /**
+     * 把数据库的一个一致的副本和它引用的正文文件写入out，不关闭out。
+     */
+    void backup(OutputStream out) throws IOException {
+        File snapshot = File.createTempFile("backup", ".db", mTempDirectory);
+        try {
+            synchronized (mLock) {
+                copySnapshot(snapshot);
+            }
+            Set<String> files = referencedFiles(snapshot);
+
+            ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+            zip.putNextEntry(new ZipEntry(DATABASE_ENTRY));
+            copy(snapshot, zip);
+            zip.closeEntry();
+            for (String name : files) {
+                zip.putNextEntry(new ZipEntry(FILES_PREFIX + name));
+                copy(mNoteFiles.getFile(name), zip);
+                zip.closeEntry();
+            }
+            zip.finish();
+            zip.flush();
+            Log.i(TAG, "Backed up " + snapshot.length() + " bytes and " + files.size() + " files");
+        } finally {
+            SQLiteDatabase.deleteDatabase(snapshot);
+        }
+    }
+
+    /**
+     * 用{ @ link # backup }写出的备份替换所有笔记。
+     *
+     * @return 恢复的笔记数
+     * @throws IOException 如果读取失败，或者in不是一个有效的备份
+     */
+    int restore(InputStream in) throws IOException {
+        File database = File.createTempFile("restore", ".db", mTempDirectory);
+        try {
+            // 正文文件以新的文件名保存，不会覆盖现有笔记的文件；恢复失败时它们在下次清理时删除
+            Map<String, String> renamed = new HashMap<String, String>();
+            boolean hasDatabase = false;
+            ZipInputStream zip = new ZipInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (DATABASE_ENTRY.equals(name)) {
+                    copy(zip, database);
+                    hasDatabase = true;
+                } else if (name.startsWith(FILES_PREFIX)) {
+                    renamed.put(name.substring(FILES_PREFIX.length()), mNoteFiles.write(zip));
+                }
+            }
+            if (!hasDatabase) {
+                throw new IOException("Not a notes backup");
+            }
+
+            SQLiteDatabase source = SQLiteDatabase.openDatabase(database.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+            try {
+                prepare(source, renamed);
+                synchronized (mLock) {
+                    return replaceAll(source, mOpenHelper.getWritableDatabase());
+                }
+            } finally {
+                source.close();
+            }
+        } finally {
+            SQLiteDatabase.deleteDatabase(database);
+        }
+    }
+
+    /**
+     * 把数据库文件的一个一致的副本写入snapshot。
+     */
+    private void copySnapshot(File snapshot) throws IOException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        File file = new File(db.getPath());
+
+        if (!db.isWriteAheadLoggingEnabled()) {
+            // 保留锁阻止其他的写入，复制期间数据库文件不会变化
+            db.beginTransactionNonExclusive();
+            try {
+                copy(file, snapshot);
+            } finally {
+                db.endTransaction();
+            }
+            return;
+        }
+
+        long autoCheckpoint = setAutoCheckpoint(db, 0);
+        try {
+            checkpoint(db);
+
+            // 从这里开始数据库文件不再变化，新的提交都追加在日志中
+            copy(file, snapshot);
+        } finally {
+            setAutoCheckpoint(db, autoCheckpoint);
+        }
+    }
+
+    /**
+     * 设置写入的连接在日志达到多少页时自动执行检查点，0表示不自动执行。
+     *
+     * @return 原来的设置
+     */
+    private static long setAutoCheckpoint(SQLiteDatabase db, long pages) {
+        // 自动检查点由提交的连接执行，这是每个连接的设置；在事务中执行保证设置的是写入的主连接
+        db.beginTransactionNonExclusive();
+        try {
+            long previous = DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint", null);
+            DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + pages, null);
+            db.setTransactionSuccessful();
+            return previous;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 把日志中的所有提交写入数据库文件。使用PASSIVE模式，不等待也不阻塞写入；
+     * 有读取还在使用旧的快照而不能写完时稍后重试。
+     */
+    private static void checkpoint(SQLiteDatabase db) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Cursor c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+            try {
+                // 结果是：是否忙、日志中的页数、已经写入数据库文件的页数
+                if (c.moveToFirst() && c.getInt(0) == 0 && c.getInt(1) == c.getInt(2)) {
+                    return;
+                }
+            } finally {
+                c.close();
+            }
+            if (attempt == CHECKPOINT_ATTEMPTS) {
+                throw new IOException("Unable to checkpoint the database");
+            }
+            SystemClock.sleep(CHECKPOINT_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * 返回数据库副本中的笔记引用的正文文件。
+     */
+    private static Set<String> referencedFiles(File snapshot) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(snapshot.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            return referencedFiles(db);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * 把要恢复的数据库升级到当前的结构，并把它引用的正文文件改为恢复时保存的文件名。
+     */
+    private void prepare(SQLiteDatabase source, Map<String, String> renamed) throws IOException {
+        int version = source.getVersion();
+        if (version < NotePadProvider.MIN_MIGRATABLE_VERSION
+                || version > NotePadProvider.DATABASE_VERSION) {
+            throw new IOException("Unsupported backup version " + version);
+        }
+
+        source.beginTransaction();
+        try {
+            if (version < NotePadProvider.DATABASE_VERSION) {
+                mOpenHelper.onUpgrade(source, version, NotePadProvider.DATABASE_VERSION);
+                source.setVersion(NotePadProvider.DATABASE_VERSION);
+            }
+
+            for (String name : referencedFiles(source)) {
+                String newName = renamed.get(name);
+                if (newName == null) {
+                    throw new IOException("Backup is missing note file " + name);
+                }
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE_FILE, newName);
+                source.update(NotePad.Notes.TABLE_NAME, values,
+                        NotePad.Notes.COLUMN_NAME_NOTE_FILE + " = ?", new String[] { name });
+            }
+            source.setTransactionSuccessful();
+        } finally {
+            source.endTransaction();
+        }
+    }
+
+    private static Set<String> referencedFiles(SQLiteDatabase db) {
+        Set<String> names = new HashSet<String>();
+        Cursor c = db.query(true, NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE_FILE },
+                NotePad.Notes.COLUMN_NAME_NOTE_FILE + " IS NOT NULL", null,
+                null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                names.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return names;
+    }
+
+    /**
+     * 在一个事务中删除target中的所有笔记，再复制source中的所有行。全文索引由触发器重建。
+     *
+     * @return 复制的笔记数
+     */
+    private static int replaceAll(SQLiteDatabase source, SQLiteDatabase target) {
+        target.beginTransaction();
+        try {
+            for (int i = TABLES.length - 1; i >= 0; i--) {
+                target.delete(TABLES[i], null, null);
+            }
+            int notes = 0;
+            for (String table : TABLES) {
+                int rows = copyTable(source, target, table);
+                if (table.equals(NotePad.Notes.TABLE_NAME)) {
+                    notes = rows;
+                }
+            }
+            target.setTransactionSuccessful();
+            return notes;
+        } finally {
+            target.endTransaction();
+        }
+    }
+
+    /**
+     * 按rowid的顺序分块复制一个表的所有行，保留原来的值和类型。
+     */
+    private static int copyTable(SQLiteDatabase source, SQLiteDatabase target, String table) {
+        ContentValues values = new ContentValues();
+        long after = Long.MIN_VALUE;
+        int count = 0;
+        while (true) {
+            Cursor c = source.rawQuery("SELECT rowid, * FROM " + table + " WHERE rowid > ?"
+                    + " ORDER BY rowid LIMIT " + CHUNK_SIZE, new String[] { Long.toString(after) });
+            int rows;
+            try {
+                rows = c.getCount();
+                String[] columns = c.getColumnNames();
+                while (c.moveToNext()) {
+                    after = c.getLong(0);
+                    values.clear();
+                    for (int i = 1; i < columns.length; i++) {
+                        putColumn(c, i, columns[i], values);
+                    }
+                    target.insertOrThrow(table, null, values);
+                    count++;
+                }
+            } finally {
+                c.close();
+            }
+            if (rows < CHUNK_SIZE) {
+                return count;
+            }
+        }
+    }
+
+    private static void putColumn(Cursor c, int index, String column, ContentValues values) {
+        switch (c.getType(index)) {
+            case Cursor.FIELD_TYPE_NULL:
+                values.putNull(column);
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                values.put(column, c.getLong(index));
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                values.put(column, c.getDouble(index));
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                values.put(column, c.getBlob(index));
+                break;
+            default:
+                values.put(column, c.getString(index));
+                break;
+        }
+    }
+
+    private static void copy(File from, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        OutputStream out = new FileOutputStream(to);
+        try {
+            copy(from, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void copy(InputStream in, File to) throws IOException {
+        OutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 最近读取的笔记的缓存，按占用的字节数限制大小，超出时淘汰最久没有读取的笔记。缓存的是单个笔记的查询
+ * 返回的完整的一行(正文已经解压并应用了编辑日志)，命中时直接在内存中构造游标，不经过SQLite和CursorWindow。
+ *
+ * 笔记被修改时由提供者调用{ @ link # invalidate }。为了不让与修改并发的读取把修改之前的内容放回缓存，
+ * 每次失效都增加一个代数：读取数据库之前取得代数，放入缓存时代数已经变化就放弃。批量操作的事务提交之前
+ * 其他线程读到的仍然是旧的内容，所以批量操作期间(见{ @ link # beginWrite })不放入任何笔记。
+ */
+final class NoteCache {
+
+    /**
+     * 默认的缓存大小(字节)
+     */
+    static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    // 超过缓存大小的这个比例的笔记不缓存，一个很长的笔记不会把其他笔记都挤出去
+    private static final int MAX_ENTRY_FRACTION = 4;
+
+    // 估算占用的内存时每个对象的额外开销(字节)
+    private static final int OBJECT_OVERHEAD = 16;
+
+    // 估算占用的内存时每个条目的额外开销(字节)，包括映射的节点、键和行数组
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final String[] mColumns;
+    private final int mMaxBytes;
+
+    // 按访问顺序排列，第一个是最久没有读取的笔记
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    private int mBytes;
+    private long mGeneration;
+    private int mWriters;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    private static final class Entry {
+        final Object[] row;
+        final int bytes;
+
+        Entry(Object[] row, int bytes) {
+            this.row = row;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @param columns 缓存的行包含的列
+     * @param maxBytes 缓存最多占用的字节数(估算)
+     */
+    NoteCache(String[] columns, int maxBytes) {
+        mColumns = columns;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 从缓存中读取一个笔记。
+     *
+     * @param projection 要返回的列，null表示缓存的所有列
+     * @return 包含一行的游标，笔记不在缓存中时返回null
+     * @throws IllegalArgumentException 如果投影中有未知的列
+     */
+    Cursor query(long noteId, String[] projection) {
+        Object[] row;
+        synchronized (this) {
+            Entry entry = mEntries.get(noteId);
+            if (entry == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+            row = entry.row;
+        }
+        return toCursor(row, projection);
+    }
+
+    /**
+     * 返回当前的代数。读取数据库之前调用，结果传给{ @ link # put }。
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * 把从数据库读取的一行放入缓存。读取之后笔记被修改过，或者有批量操作正在进行时，不放入。
+     *
+     * @param generation 读取数据库之前{ @ link # getGeneration }的结果
+     */
+    synchronized void put(long noteId, Object[] row, long generation) {
+        if (generation != mGeneration || mWriters > 0) {
+            return;
+        }
+        int bytes = sizeOf(row);
+        if (bytes > mMaxBytes / MAX_ENTRY_FRACTION) {
+            return;
+        }
+        Entry previous = mEntries.put(noteId, new Entry(row, bytes));
+        if (previous != null) {
+            mBytes -= previous.bytes;
+        }
+        mBytes += bytes;
+
+        Iterator<Map.Entry<Long, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            mBytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * 一个笔记被修改或删除之后调用。
+     */
+    synchronized void invalidate(long noteId) {
+        mGeneration++;
+        Entry entry = mEntries.remove(noteId);
+        if (entry != null) {
+            mBytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * 任意多个笔记可能被修改或删除之后调用。
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * 开始一个批量操作。在{ @ link # endWrite }之前不放入任何笔记。
+     */
+    synchronized void beginWrite() {
+        mWriters++;
+    }
+
+    /**
+     * 结束一个批量操作，事务已经提交或回滚之后调用。
+     */
+    synchronized void endWrite() {
+        mWriters--;
+        mGeneration++;
+    }
+
+    /**
+     * 把缓存的一行按投影构造为游标。
+     *
+     * @param row 缓存的列的值，null时返回空的游标
+     * @throws IllegalArgumentException 如果投影中有未知的列
+     */
+    Cursor toCursor(Object[] row, String[] projection) {
+        String[] columns = projection != null ? projection : mColumns;
+        int[] indices = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indices[i] = indexOf(columns[i]);
+        }
+        MatrixCursor result = new MatrixCursor(columns, 1);
+        if (row != null) {
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = row[indices[i]];
+            }
+            result.addRow(values);
+        }
+        return result;
+    }
+
+    private int indexOf(String column) {
+        for (int i = 0; i < mColumns.length; i++) {
+            if (mColumns[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Invalid column " + column);
+    }
+
+    /**
+     * 估算一行占用的内存(字节)。
+     */
+    private static int sizeOf(Object[] row) {
+        int bytes = ENTRY_OVERHEAD;
+        for (Object value : row) {
+            if (value instanceof String) {
+                bytes += OBJECT_OVERHEAD * 2 + ((String) value).length() * 2;
+            } else if (value instanceof byte[]) {
+                bytes += OBJECT_OVERHEAD + ((byte[]) value).length;
+            } else if (value != null) {
+                bytes += OBJECT_OVERHEAD;
+            }
+        }
+        return bytes;
+    }
+
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized int getBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NoteCache[" + mEntries.size() + " notes, " + mBytes + "/" + mMaxBytes
+                + " bytes, hits=" + mHits + ", misses=" + mMisses + ", evictions=" + mEvictions
+                + "]";
+    }
+}
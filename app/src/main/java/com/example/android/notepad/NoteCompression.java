@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 笔记正文的压缩和解压。正文以UTF-8编码后压缩为zlib格式(DEFLATE)的数据。
+ */
+final class NoteCompression {
+
+    /**
+     * 压缩后至少要比原来小这么多(百分比)才保存压缩的结果，否则解压的代价不值得
+     */
+    private static final int MIN_SAVING_PERCENT = 10;
+
+    private static final String CHARSET = "UTF-8";
+
+    // 这个类不能实例化
+    private NoteCompression() {
+    }
+
+    /**
+     * 压缩一段文本。
+     *
+     * @return 压缩后的数据，压缩节省的空间太少时返回null
+     */
+    static byte[] compress(String text) {
+        byte[] input = encode(text);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+
+            // 输出超过不压缩也能接受的大小时停止，不需要把不值得压缩的文本压缩完
+            int limit = input.length - input.length * MIN_SAVING_PERCENT / 100;
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, limit / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                output.write(buffer, 0, count);
+                if (output.size() > limit) {
+                    return null;
+                }
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 解压{ @ link # compress }的结果。
+     *
+     * @throws DataFormatException 如果数据不是有效的压缩数据
+     */
+    static String decompress(byte[] data) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated note data");
+                }
+                output.write(buffer, 0, count);
+            }
+            return new String(output.toByteArray(), CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] encode(String text) {
+        try {
+            return text.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -21,16 +21,20 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
@@ -38,8 +42,11 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.EditText;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
 
 /**
  * 这个活动处理“编辑”注释，编辑对{ @ link Intent # ACTION_VIEW }(请求查看数据)，编辑一个注释
@@ -61,12 +68,13 @@ public class NoteEditor extends Activity {
         new String[] {
             NotePad.Notes._ID,
             NotePad.Notes.COLUMN_NAME_TITLE,
-            NotePad.Notes.COLUMN_NAME_NOTE
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_NOTE_FILE
     };
 
     // A label for the saved state of the activity
     //活动的保存状态的标签
-    private static final String ORIGINAL_CONTENT = "origContent";
+    private static final String ORIGINAL_REVISION = "origRevision";
 
     // This Activity can be started by more than one action. Each action is represented
     // as a "state" constant这个活动可以由多个操作开始。每个动作被表示为一个“状态”常量
@@ -80,6 +88,40 @@ public class NoteEditor extends Activity {
     private EditText mText;
     private String mOriginalContent;
 
+    /*
+     * 打开笔记时记录并固定的版本的ID，恢复时从版本历史中读取原始的正文。固定的版本在结束编辑之前不会因为
+     * 保存次数多而被删除。为0时没有记录版本(新建的笔记或者保存在文件中的正文)，原始的正文只在内存中
+     * 保存在mOriginalContent中。
+     */
+    private long mOriginalRevision;
+
+    /*
+     * 编辑计数。文本每变化一次mGeneration加一；mSavedGeneration是数据库中的内容对应的计数。
+     * 两者相等说明文本从上次读取或保存之后没有变化，保存和恢复检查都不需要比较整个文本。
+     */
+    private int mGeneration;
+    private int mSavedGeneration;
+
+    /*
+     * 正文至少这么长(字符)时，编辑器只向提供者提交相对上次保存的版本所做的编辑，而不是重写整个正文。
+     */
+    private static final int JOURNAL_MIN_LENGTH = 16 * 1024;
+
+    /*
+     * 上次保存之后的编辑，按发生的顺序排列，每一条的位置都相对于前面的编辑应用之后的文本。
+     * 为null时不记录编辑，保存时写入整个正文。
+     */
+    private ArrayList<ContentValues> mEdits;
+
+    // mEdits中插入的字符总数
+    private int mEditChars;
+
+    // 这次编辑是否向编辑日志提交过编辑，结束时请求提供者合并日志
+    private boolean mJournaled;
+
+    // 提供者是否拒绝了这个笔记的编辑日志(例如正文被压缩保存)，这时不再记录编辑
+    private boolean mJournalRejected;
+
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
      * 定义一个自定义EditText视图，它在显示的每一行文本之间画线。
@@ -232,13 +274,7 @@ public class NoteEditor extends Activity {
          * 进行攻击，这个块将是短暂的，但是在一个真正的应用程序中，你应该使用
          * android.content。AsyncQueryHandler或android.os.AsyncTask。
          */
-        mCursor = managedQuery(
-            mUri,         // 从提供者处获取多个notes的URI。
-            PROJECTION,   // 为每个音符返回注释ID和注释内容的投影。
-            null,         // 没有“where”条款选择标准。
-            null,         // 没有“where”子句选择值。
-            null          // 使用默认的排序顺序(修改日期，降序)
-        );
+        mCursor = queryNote();
 
         //对于粘贴，从剪贴板初始化数据。
         // (必须在m光标初始化之后完成。)
@@ -255,11 +291,28 @@ public class NoteEditor extends Activity {
         // 在布局中获取EditText的句柄。
         mText = (EditText) findViewById(R.id.note);
 
+        // 记录文本的每一次变化，用来判断笔记是否需要保存
+        mText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                mGeneration++;
+                recordEdit(s, start, before, count);
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        });
+
         /*
          * 如果此活动之前停止，它的状态将写入保存的实例状态中的原始内容位置。这得到了状态。
          */
         if (savedInstanceState != null) {
-            mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
+            mOriginalRevision = savedInstanceState.getLong(ORIGINAL_REVISION, 0);
         }
     }
 
@@ -279,8 +332,13 @@ public class NoteEditor extends Activity {
          * 因为它应该总是包含数据。
          */
         if (mCursor != null) {
-            //在暂停(如标题)时，请求发生变化
-            mCursor.requery();
+            // 在暂停时笔记可能被修改(如标题)。提供者可能返回内存中的游标，它的requery()不会重新执行查询，
+            // 所以重新查询一次
+            Cursor cursor = queryNote();
+            mCursor.close();
+            mCursor = cursor;
+        }
+        if (mCursor != null) {
 
             /* 移到第一个记录。在首次访问游标数据之前，总是调用moveToFirst()。
             使用游标的语义是当它被创建时，它的内部索引会在第一个记录之前指向一个“位置”。
@@ -311,13 +369,31 @@ public class NoteEditor extends Activity {
 
             // 从游标中获取注释文本并将其放入TextView，但不会更改
             // 文本光标的位置。
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            String note = mCursor.getString(colNoteIndex);
+            String note;
+            try {
+                note = readNote(mUri, mCursor);
+            } catch (IOException e) {
+                // 读不到完整的正文时不能让用户编辑，否则保存时会用不完整的正文覆盖笔记
+                Log.e(TAG, "Failed to read note " + mUri, e);
+                mCursor = null;
+                setTitle(getText(R.string.error_title));
+                mText.setText(getText(R.string.error_message));
+                return;
+            }
             mText.setTextKeepState(note);
 
-            //存储原始的注释文本，以允许用户恢复更改。
-            if (mOriginalContent == null) {
-                mOriginalContent = note;
+            // 刚读取的文本与数据库中的内容一致
+            mSavedGeneration = mGeneration;
+            resetEdits(note == null ? 0 : note.length());
+
+            //存储原始的注释文本，以允许用户恢复更改。编辑已有的笔记时把它记录为一个固定的版本，只保存版本的ID
+            if (mOriginalRevision == 0 && mOriginalContent == null) {
+                if (mState == STATE_EDIT) {
+                    mOriginalRevision = recordRevision();
+                }
+                if (mOriginalRevision == 0) {
+                    mOriginalContent = note;
+                }
             }
 
         /*
@@ -329,6 +405,37 @@ public class NoteEditor extends Activity {
         }
     }
 
+    /**
+     * 活动销毁时关闭游标。编辑结束时取消打开时固定的版本，它以后和其他版本一样被删除。
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+        }
+        if (isFinishing() && mOriginalRevision != 0) {
+            getContentResolver().call(NotePad.Notes.CONTENT_URI, NotePad.NoteRevisions.METHOD_UNPIN,
+                    Long.toString(ContentUris.parseId(mUri)), null);
+        }
+    }
+
+    /**
+     * 查询正在编辑的笔记。
+     *
+     * 注意：这是在UI线程上完成的，它将阻塞线程，直到查询完成。
+     */
+    private Cursor queryNote() {
+        return getContentResolver().query(
+            mUri,         // 从提供者处获取多个notes的URI。
+            PROJECTION,   // 为每个音符返回注释ID和注释内容的投影。
+            null,         // 没有“where”条款选择标准。
+            null,         // 没有“where”子句选择值。
+            null          // 使用默认的排序顺序(修改日期，降序)
+        );
+    }
+
     /**
      * 当活动在正常操作中失去焦点时，该方法被调用，然后在稍后被杀死。该活动有机会保存它的状态，
      * 以便系统能够恢复它。
@@ -337,8 +444,44 @@ public class NoteEditor extends Activity {
      */
     @Override
     protected void onSaveInstanceState(Bundle outState) {
-        // 保存原始文本，如果活动需要暂停，我们仍然保留它。
-        outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        // 保存原始文本所在的版本，如果活动需要暂停，我们仍然保留它。正文本身不放入保存的状态
+        outState.putLong(ORIGINAL_REVISION, mOriginalRevision);
+    }
+
+    /**
+     * 把笔记当前的正文记录为一个固定的版本。
+     *
+     * @return 版本的ID，没有记录时(例如正文保存在文件中)返回0
+     */
+    private long recordRevision() {
+        Bundle extras = new Bundle();
+        extras.putBoolean(NotePad.NoteRevisions.EXTRA_PIN, true);
+        Bundle result = getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                NotePad.NoteRevisions.METHOD_RECORD, Long.toString(ContentUris.parseId(mUri)),
+                extras);
+        return result == null ? 0 : result.getLong(NotePad.NoteRevisions.EXTRA_REVISION_ID, 0);
+    }
+
+    /**
+     * 返回打开笔记时的正文，读取不到时返回null。
+     */
+    private String getOriginalContent() {
+        if (mOriginalRevision == 0) {
+            return mOriginalContent;
+        }
+        Uri revision = ContentUris.withAppendedId(
+                Uri.withAppendedPath(mUri, NotePad.NoteRevisions.CONTENT_DIRECTORY),
+                mOriginalRevision);
+        Cursor c = getContentResolver().query(revision,
+                new String[] { NotePad.NoteRevisions.COLUMN_NAME_TEXT }, null, null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
     }
 
     /**
@@ -361,17 +504,20 @@ public class NoteEditor extends Activity {
          */
         if (mCursor != null) {
 
-            //获取当前的注释文本.
-            String text = mText.getText().toString();
-            int length = text.length();
-
             /*
              * 如果活动正在完成中，当前的注释中没有文本，则返回给调用者的结果，并删除该通知。
              * 即使是在被编辑的时候，这也是可以的，假设用户想要“清除”(删除)注释。
              */
-            if (isFinishing() && (length == 0)) {
+            if (isFinishing() && (mText.length() == 0)) {
                 setResult(RESULT_CANCELED);
                 deleteNote();
+                return;
+
+                /*
+                 * 文本从上次读取或保存之后没有变化，不需要写数据库，也不会产生变化通知。
+                 */
+            } else if (!isDirty()) {
+                // 文本没有变化，不需要写数据库
 
                 /*
                  * 为提供者写编辑器。如果在编辑器中检索了一个已存在的注释，并且插入了一个新的注释，
@@ -379,12 +525,17 @@ public class NoteEditor extends Activity {
                  * 中，这是正在编辑的新注意事项。
                  */
             } else if (mState == STATE_EDIT) {
-                // 创建映射以包含列的新值
-                updateNote(text, null);
+                saveNote();
             } else if (mState == STATE_INSERT) {
+                String text = mText.getText().toString();
                 updateNote(text, text);
                 mState = STATE_EDIT;
-          }
+            }
+
+            // 离开编辑器时在后台把这次编辑提交的日志合并进正文
+            if (isFinishing()) {
+                compactEdits();
+            }
         }
     }
 
@@ -418,14 +569,7 @@ public class NoteEditor extends Activity {
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         // 检查注意是否已经更改并启用/禁用恢复选项
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
-        String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
-            menu.findItem(R.id.menu_revert).setVisible(false);
-        } else {
-            menu.findItem(R.id.menu_revert).setVisible(true);
-        }
+        menu.findItem(R.id.menu_revert).setVisible(isDirty());
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -442,8 +586,9 @@ public class NoteEditor extends Activity {
         //处理所有可能的菜单操作。
         switch (item.getItemId()) {
         case R.id.menu_save:
-            String text = mText.getText().toString();
-            updateNote(text, null);
+            if (isDirty()) {
+                saveNote();
+            }
             finish();
             break;
         case R.id.menu_delete:
@@ -499,10 +644,14 @@ public class NoteEditor extends Activity {
                 // 如果游标不为空，并且它至少包含一个记录(moveToFirst()返回true)，那么它将从它获取注释数据。
                 if (orig != null) {
                     if (orig.moveToFirst()) {
-                        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
                         int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                        text = orig.getString(colNoteIndex);
-                        title = orig.getString(colTitleIndex);
+                        try {
+                            text = readNote(uri, orig);
+                            title = orig.getString(colTitleIndex);
+                        } catch (IOException e) {
+                            // 读不到完整的正文时按普通文本粘贴
+                            Log.e(TAG, "Failed to read note " + uri, e);
+                        }
                     }
 
                     // 关闭游标.
@@ -521,20 +670,45 @@ public class NoteEditor extends Activity {
     }
 //END_INCLUDE(粘贴)
 
+    /**
+     * 读取游标当前行的笔记正文。正文保存在文件中时，游标中只有正文的开头，完整的正文从笔记的URI
+     * 以流的方式读取，不经过游标窗口。
+     *
+     * @param uri 笔记的URI
+     * @param cursor 使用{ @ link # PROJECTION }查询这个笔记得到的游标，已经移动到这个笔记所在的行
+     */
+    private String readNote(Uri uri, Cursor cursor) throws IOException {
+        int colFileIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE_FILE);
+        if (cursor.isNull(colFileIndex)) {
+            return cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+        }
+
+        InputStream in = getContentResolver().openInputStream(uri);
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder(NotePad.Notes.MAX_INLINE_NOTE_LENGTH);
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
     /**
      * 用文本和标题作为参数替换当前的注释内容。
      * @param text 新的注释内容要使用。
      * @param title 使用的新注释标题
      */
-    private final void updateNote(String text, String title) {
+    private void updateNote(String text, String title) {
 
         // 设置映射，以包含在提供程序中更新的值。
         ContentValues values = new ContentValues();
-        Date currentTime = new Date();
-        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String dateString = formatter.format(currentTime);
-        //values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
-        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,dateString);
+        // 修改时间统一保存为毫秒时间戳，显示格式由列表负责
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
 
         //如果操作是插入一个新注释，那么这将为它创建一个初始标题。
         if (mState == STATE_INSERT) {
@@ -580,7 +754,117 @@ public class NoteEditor extends Activity {
                 null     // 不使用列，所以不需要参数。
             );
 
+        // 数据库中的内容现在与编辑器中的文本一致。写入正文时提供者清除了这个笔记的编辑日志
+        mSavedGeneration = mGeneration;
+        resetEdits(text.length());
+    }
+
+    /**
+     * 保存正在编辑的笔记。长笔记只提交上次保存之后的编辑，保存的代价与编辑的大小成正比，
+     * 而不是与正文的长度成正比；其他情况写入整个正文。
+     */
+    private void saveNote() {
+        if (mEdits == null || mEdits.isEmpty()) {
+            updateNote(mText.getText().toString(), null);
+            return;
+        }
+
+        // 一次批量插入提交所有的编辑，提供者在一个事务中追加它们
+        Uri editsUri = Uri.withAppendedPath(mUri, NotePad.NoteEdits.CONTENT_DIRECTORY);
+        try {
+            getContentResolver().bulkInsert(editsUri,
+                    mEdits.toArray(new ContentValues[mEdits.size()]));
+        } catch (SQLException e) {
+            // 笔记不接受编辑日志(例如正文保存在文件中或被压缩保存)，以后总是写入整个正文
+            Log.w(TAG, "Failed to journal edits to " + mUri, e);
+            mJournalRejected = true;
+            updateNote(mText.getText().toString(), null);
+            return;
+        }
+        mJournaled = true;
+
+        mSavedGeneration = mGeneration;
+        resetEdits(mText.length());
+    }
+
+    /**
+     * 请求提供者在后台把这个笔记的编辑日志合并进正文。
+     */
+    private void compactEdits() {
+        if (mJournaled && mUri != null) {
+            mJournaled = false;
+            getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                    NotePad.NoteEdits.METHOD_COMPACT, mUri.getLastPathSegment(), null);
+        }
+    }
+
+    /**
+     * 数据库中的正文刚刚与编辑器中的文本一致，清空记录的编辑。只为正在编辑的长笔记记录编辑；
+     * 保存在文件中的正文总是整体写入，不记录编辑。
+     */
+    private void resetEdits(int length) {
+        mEditChars = 0;
+        if (mState == STATE_EDIT && !mJournalRejected && length >= JOURNAL_MIN_LENGTH
+                && length <= NotePad.Notes.MAX_INLINE_NOTE_LENGTH) {
+            if (mEdits == null) {
+                mEdits = new ArrayList<ContentValues>();
+            } else {
+                mEdits.clear();
+            }
+        } else {
+            mEdits = null;
+        }
+    }
+
+    /**
+     * 记录一次文本变化：从start开始的before个字符被替换为s中从start开始的count个字符。
+     * 连续的输入和退格合并到上一条编辑中。编辑累计的插入超过正文的四分之一时不再记录，
+     * 保存时直接写入整个正文。
+     */
+    private void recordEdit(CharSequence s, int start, int before, int count) {
+        if (mEdits == null) {
+            return;
+        }
+        String inserted = s.subSequence(start, start + count).toString();
+
+        if (!mEdits.isEmpty()) {
+            ContentValues last = mEdits.get(mEdits.size() - 1);
+            int lastPosition = last.getAsInteger(NotePad.NoteEdits.COLUMN_NAME_POSITION);
+            String lastInserted = last.getAsString(NotePad.NoteEdits.COLUMN_NAME_INSERTED);
+            int lastEnd = lastPosition + lastInserted.length();
+
+            if (before == 0 && start == lastEnd) {
+                // 接着上一条编辑继续输入
+                last.put(NotePad.NoteEdits.COLUMN_NAME_INSERTED, lastInserted + inserted);
+                mEditChars += count;
+                return;
+            }
+            if (count == 0 && start + before == lastEnd && before <= lastInserted.length()) {
+                // 退格删除上一条编辑刚插入的字符
+                last.put(NotePad.NoteEdits.COLUMN_NAME_INSERTED,
+                        lastInserted.substring(0, lastInserted.length() - before));
+                mEditChars -= before;
+                return;
+            }
+        }
+
+        mEditChars += count;
+        if (mEditChars > s.length() / 4) {
+            mEdits = null;
+            return;
+        }
+        ContentValues edit = new ContentValues();
+        edit.put(NotePad.NoteEdits.COLUMN_NAME_POSITION, start);
+        edit.put(NotePad.NoteEdits.COLUMN_NAME_DELETED, before);
+        edit.put(NotePad.NoteEdits.COLUMN_NAME_INSERTED, inserted);
+        mEdits.add(edit);
+    }
 
+    /**
+     * 编辑器中的文本是否在上次读取或保存之后发生了变化。
+     */
+    private boolean isDirty() {
+        return mGeneration != mSavedGeneration;
     }
 
     /**
@@ -592,9 +876,12 @@ public class NoteEditor extends Activity {
                 // 将原始的注释文本返回到数据库中
                 mCursor.close();
                 mCursor = null;
-                ContentValues values = new ContentValues();
-                values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                String original = getOriginalContent();
+                if (original != null) {
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, original);
+                    getContentResolver().update(mUri, values, null, null);
+                }
             } else if (mState == STATE_INSERT) {
                 // 我们插入一个空音符，确保删除它
                 deleteNote();
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.zip.DataFormatException;
+
+/**
+ * 把笔记导出为以换行分隔的JSON记录，格式见{ @ link NotePad.Notes # EXPORT_MIME_TYPE }。
+ *
+ * 笔记按ID顺序分块读取，每一块是一次独立的短查询，读完的块立即写出，所以占用的内存只与块的大小
+ * 和单个笔记的长度有关，与笔记的总数无关；保存在文件中的正文直接从文件分块复制。导出期间不持有
+ * 数据库的锁，编辑器的保存不会被长时间的导出阻塞。
+ */
+final class NoteExporter {
+
+    /**
+     * 每次查询读取的笔记数
+     */
+    static final int CHUNK_SIZE = 100;
+
+    private static final String[] COLUMNS = new String[] {
+            NotePad.Notes._ID,                            // 0
+            NotePad.Notes.COLUMN_NAME_TITLE,              // 1
+            NotePad.Notes.COLUMN_NAME_NOTE,               // 2
+            NotePadProvider.COLUMN_NAME_NOTE_COMPRESSED,  // 3
+            NotePad.Notes.COLUMN_NAME_NOTE_FILE,          // 4
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,        // 5
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE   // 6
+    };
+
+    private static final String CHUNK_SELECTION = NotePad.Notes._ID + " > ? AND "
+            + NotePad.Notes._ID + " <= ?";
+
+    // 复制文件中的正文时的缓冲区大小(字符)
+    private static final int BUFFER_SIZE = 8192;
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final NoteFiles mNoteFiles;
+
+    // 读取每一块之前调用，把编辑日志合并进正文
+    private final Runnable mCompactor;
+
+    NoteExporter(SQLiteOpenHelper openHelper, NoteFiles noteFiles, Runnable compactor) {
+        mOpenHelper = openHelper;
+        mNoteFiles = noteFiles;
+        mCompactor = compactor;
+    }
+
+    /**
+     * 返回当前最大的笔记ID。导出只包含ID不超过它的笔记，导出开始之后新建的笔记不会出现在导出中。
+     */
+    long lastNoteId() {
+        Cursor c = mOpenHelper.getReadableDatabase().rawQuery("SELECT MAX("
+                + NotePad.Notes._ID + ") FROM " + NotePad.Notes.TABLE_NAME, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 导出ID不超过lastId的所有笔记。每个笔记在一次查询中读取，所以每条记录都是这个笔记在某一时刻的
+     * 完整内容，不会混合两次保存的内容。
+     *
+     * @return 导出的笔记数
+     * @throws IOException 如果写入失败，例如读取的一方已经关闭了管道
+     */
+    int export(long lastId, Writer out) throws IOException {
+        String last = Long.toString(lastId);
+        long after = 0;
+        int count = 0;
+        while (true) {
+            mCompactor.run();
+            Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME, COLUMNS,
+                    CHUNK_SELECTION, new String[] { Long.toString(after), last }, null, null,
+                    NotePad.Notes._ID, Integer.toString(CHUNK_SIZE));
+            int rows;
+            try {
+                rows = c.getCount();
+                while (c.moveToNext()) {
+                    after = c.getLong(0);
+                    writeRecord(c, out);
+                    count++;
+                }
+            } finally {
+                c.close();
+            }
+            if (rows < CHUNK_SIZE) {
+                return count;
+            }
+        }
+    }
+
+    private void writeRecord(Cursor c, Writer out) throws IOException {
+        out.write("{\"" + NotePad.Notes._ID + "\":");
+        out.write(Long.toString(c.getLong(0)));
+        out.write(",\"" + NotePad.Notes.COLUMN_NAME_TITLE + "\":");
+        writeString(c.getString(1), out);
+        out.write(",\"" + NotePad.Notes.COLUMN_NAME_NOTE + "\":");
+        if (!c.isNull(4)) {
+            // 保存在文件中的正文分块复制，不整个读入内存
+            out.write('"');
+            Reader reader = mNoteFiles.openReader(c.getString(4));
+            try {
+                char[] buffer = new char[BUFFER_SIZE];
+                int length;
+                while ((length = reader.read(buffer)) != -1) {
+                    writeEscaped(buffer, length, out);
+                }
+            } finally {
+                reader.close();
+            }
+            out.write('"');
+        } else if (!c.isNull(3)) {
+            try {
+                writeString(c.getString(2) + NoteCompression.decompress(c.getBlob(3)), out);
+            } catch (DataFormatException e) {
+                throw new SQLException("Corrupt compressed note " + c.getLong(0));
+            }
+        } else {
+            writeString(c.getString(2), out);
+        }
+        out.write(",\"" + NotePad.Notes.COLUMN_NAME_CREATE_DATE + "\":");
+        writeNumber(c, 5, out);
+        out.write(",\"" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + "\":");
+        writeNumber(c, 6, out);
+        out.write("}\n");
+    }
+
+    private static void writeNumber(Cursor c, int column, Writer out) throws IOException {
+        out.write(c.isNull(column) ? "null" : Long.toString(c.getLong(column)));
+    }
+
+    /**
+     * 写出一个JSON字符串，null写为JSON的null。
+     */
+    static void writeString(String value, Writer out) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        writeEscaped(value.toCharArray(), value.length(), out);
+        out.write('"');
+    }
+
+    /**
+     * 按JSON字符串的规则转义并写出字符。没有需要转义的字符时整段写出。
+     */
+    private static void writeEscaped(char[] chars, int length, Writer out) throws IOException {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            String escape;
+            if (c == '"') {
+                escape = "\\\"";
+            } else if (c == '\\') {
+                escape = "\\\\";
+            } else if (c == '\n') {
+                escape = "\\n";
+            } else if (c == '\r') {
+                escape = "\\r";
+            } else if (c == '\t') {
+                escape = "\\t";
+            } else if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                escape = String.format("\\u%04x", (int) c);
+            } else {
+                continue;
+            }
+            out.write(chars, start, i - start);
+            out.write(escape);
+            start = i + 1;
+        }
+        out.write(chars, start, length - start);
+    }
+}
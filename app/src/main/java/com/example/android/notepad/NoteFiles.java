@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Set;
+
+/**
+ * 保存在文件中的笔记正文。正文超过{ @ link NotePad.Notes # MAX_INLINE_NOTE_LENGTH }的笔记，
+ * notes表中只保存正文的开头和文件名，完整的正文以UTF-8保存在这个目录下的文件中。
+ *
+ * 文件写入之后不再修改：每次保存都写一个新文件并同步到磁盘，再在数据库中引用它，
+ * 所以已经打开的文件不会读到写了一半的内容。不再被任何笔记引用的文件由{ @ link # sweep }删除。
+ *
+ * 这个类是线程安全的。
+ */
+final class NoteFiles {
+    // 用于日志和调试的目的
+    private static final String TAG = "NoteFiles";
+
+    /**
+     * 文件名的前缀和后缀
+     */
+    private static final String PREFIX = "note";
+    private static final String SUFFIX = ".txt";
+
+    /**
+     * 没有被引用的文件至少存在这么久才会被删除(毫秒)，避免删除刚写入、还没有提交到数据库的文件
+     */
+    static final long SWEEP_GRACE_MILLIS = 60 * 1000;
+
+    // 读写文件时的缓冲区大小(字符或字节)
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File mDirectory;
+
+    NoteFiles(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * 把正文写入一个新文件并同步到磁盘。
+     *
+     * @return 新文件的文件名
+     */
+    String write(String text) throws IOException {
+        File file = createFile();
+        FileOutputStream out = new FileOutputStream(file);
+        boolean written = false;
+        try {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write(text);
+            writer.flush();
+            out.getFD().sync();
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                file.delete();
+            }
+        }
+        return file.getName();
+    }
+
+    /**
+     * 把一个数据流的内容原样写入一个新文件并同步到磁盘，不关闭数据流。数据流应该是UTF-8编码的正文，
+     * 例如从备份中恢复的文件。
+     *
+     * @return 新文件的文件名
+     */
+    String write(InputStream in) throws IOException {
+        File file = createFile();
+        FileOutputStream out = new FileOutputStream(file);
+        boolean written = false;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.getFD().sync();
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                file.delete();
+            }
+        }
+        return file.getName();
+    }
+
+    private File createFile() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        return File.createTempFile(PREFIX, SUFFIX, mDirectory);
+    }
+
+    /**
+     * 返回文件名对应的文件。只接受这个目录下由{ @ link # write }创建的文件名。
+     *
+     * @throws FileNotFoundException 如果文件名无效
+     */
+    File getFile(String name) throws FileNotFoundException {
+        if (name == null || !isNoteFile(name)) {
+            throw new FileNotFoundException("Invalid note file " + name);
+        }
+        return new File(mDirectory, name);
+    }
+
+    /**
+     * 打开一个正文文件，用UTF-8解码。
+     */
+    Reader openReader(String name) throws IOException {
+        return new InputStreamReader(new FileInputStream(getFile(name)), "UTF-8");
+    }
+
+    /**
+     * 把一个正文文件的内容分块写入writer，不把整个正文读入内存。
+     */
+    void copyTo(String name, Writer writer) throws IOException {
+        Reader reader = openReader(name);
+        try {
+            char[] buffer = new char[BUFFER_SIZE];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                writer.write(buffer, 0, count);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 目录中是否有任何正文文件。
+     */
+    boolean isEmpty() {
+        String[] names = mDirectory.list();
+        return names == null || names.length == 0;
+    }
+
+    /**
+     * 删除不在referenced中、并且已经存在了足够长时间的正文文件。
+     *
+     * @return 删除的文件数
+     */
+    int sweep(Set<String> referenced) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - SWEEP_GRACE_MILLIS;
+        int deleted = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (isNoteFile(name) && !referenced.contains(name) && file.lastModified() < cutoff) {
+                if (file.delete()) {
+                    deleted++;
+                } else {
+                    Log.w(TAG, "Unable to delete " + file);
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private static boolean isNoteFile(String name) {
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX) && name.indexOf('/') < 0;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ClipDescription;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 从数据流导入笔记，格式见{ @ link NotePad.Notes # METHOD_IMPORT }。
+ *
+ * 解析在一个单独的线程上进行，解析出的笔记按{ @ link # BATCH_SIZE }条一批放入一个有界的队列，
+ * 由调用{ @ link # nextBatch }的线程取出写入数据库。写入的一方不需要等待读取和解析，而队列最多保存
+ * 几批笔记，占用的内存与数据流的长度无关。
+ *
+ * 每一批在一个事务中写入，同一个事务中把这次导入已经提交的笔记数保存在import_state表中，
+ * 中断的导入用同样的导入ID重新开始时，跳过已经提交的笔记，从下一批继续。导入完成后删除进度。
+ */
+final class NoteImporter {
+
+    /**
+     * 每个事务写入的笔记数
+     */
+    static final int BATCH_SIZE = 500;
+
+    /**
+     * 队列中最多保存的批数。解析最多领先写入这么多批
+     */
+    private static final int QUEUED_BATCHES = 2;
+
+    /**
+     * 纯文本格式中分隔两个笔记的行
+     */
+    static final String TEXT_RECORD_SEPARATOR = "\f";
+
+    /**
+     * 保存导入进度的表
+     */
+    static final String TABLE_NAME = "import_state";
+
+    /**
+     * 导入ID的列名
+     * <P>Type: TEXT</P>
+     */
+    static final String COLUMN_NAME_IMPORT_ID = "import_id";
+
+    /**
+     * 已经提交的笔记数的列名
+     * <P>Type: INTEGER</P>
+     */
+    static final String COLUMN_NAME_RECORDS = "records";
+
+    /**
+     * 最后一次提交的时间戳的列名
+     * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+     */
+    static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
+
+    // 读取数据流时的缓冲区大小(字符)
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // 解析结束的标记，放在队列的最后
+    private static final List<ContentValues> END = new ArrayList<ContentValues>(0);
+
+    private final BufferedReader mReader;
+    private final boolean mJson;
+    private final BlockingQueue<List<ContentValues>> mQueue =
+            new ArrayBlockingQueue<List<ContentValues>>(QUEUED_BATCHES);
+
+    // 解析失败的原因，在放入结束标记之前设置
+    private volatile Throwable mError;
+
+    // 已经读取的行数，只在解析线程上使用
+    private long mLine;
+
+    private Thread mThread;
+
+    /**
+     * @param in 要导入的数据流，UTF-8编码
+     * @param mimeType 数据流的格式，{ @ link NotePad.Notes # EXPORT_MIME_TYPE }或text/plain，
+     *         null与{ @ link NotePad.Notes # EXPORT_MIME_TYPE }相同
+     * @throws IllegalArgumentException 如果不支持这个格式
+     */
+    NoteImporter(InputStream in, String mimeType) {
+        if (mimeType == null || NotePad.Notes.EXPORT_MIME_TYPE.equals(mimeType)) {
+            mJson = true;
+        } else if (ClipDescription.MIMETYPE_TEXT_PLAIN.equals(mimeType)) {
+            mJson = false;
+        } else {
+            throw new IllegalArgumentException("Unsupported import type " + mimeType);
+        }
+        try {
+            mReader = new BufferedReader(new InputStreamReader(in, "UTF-8"), BUFFER_SIZE);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * 在一个新线程上开始解析。
+     *
+     * @param skip 跳过开头的这么多条笔记，即上次导入已经提交的笔记
+     */
+    void start(final long skip) {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean cancelled = false;
+                try {
+                    parse(skip);
+                } catch (InterruptedException e) {
+                    // 导入被取消，没有人再读取队列
+                    cancelled = true;
+                } catch (Throwable e) {
+                    mError = e;
+                } finally {
+                    // 无论解析怎样结束都放入结束标记，否则写入的一方会一直等待
+                    if (!cancelled) {
+                        try {
+                            mQueue.put(END);
+                        } catch (InterruptedException e) {
+                            // 导入被取消
+                        }
+                    }
+                }
+            }
+        }, "NoteImporter");
+        mThread.start();
+    }
+
+    /**
+     * 取出下一批解析好的笔记，必要时等待解析。
+     *
+     * @return 最多{ @ link # BATCH_SIZE }条笔记，没有更多的笔记时返回null
+     * @throws IOException 如果读取数据流失败
+     * @throws IllegalArgumentException 如果数据流中有格式错误的笔记
+     * @throws IllegalStateException 如果解析因为其他的错误而失败
+     */
+    List<ContentValues> nextBatch() throws IOException {
+        List<ContentValues> batch;
+        try {
+            batch = mQueue.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Import interrupted");
+        }
+        if (batch != END) {
+            return batch;
+        }
+
+        // 让后续的调用也看到结束标记
+        mQueue.offer(END);
+        Throwable error = mError;
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error instanceof IllegalArgumentException) {
+            throw (IllegalArgumentException) error;
+        } else if (error != null) {
+            throw new IllegalStateException("Parsing failed", error);
+        }
+        return null;
+    }
+
+    /**
+     * 停止解析并关闭数据流。
+     */
+    void close() {
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+        try {
+            mReader.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void parse(long skip) throws IOException, InterruptedException {
+        List<ContentValues> batch = new ArrayList<ContentValues>(BATCH_SIZE);
+        ContentValues values;
+        while ((values = mJson ? readJsonRecord() : readTextRecord()) != null) {
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            batch.add(values);
+            if (batch.size() == BATCH_SIZE) {
+                mQueue.put(batch);
+                batch = new ArrayList<ContentValues>(BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            mQueue.put(batch);
+        }
+    }
+
+    /**
+     * 读取一行JSON记录。记录中的_id被忽略，导入的笔记总是得到新的ID；缺少的字段与插入时一样使用默认值。
+     */
+    private ContentValues readJsonRecord() throws IOException {
+        String line;
+        do {
+            line = mReader.readLine();
+            if (line == null) {
+                return null;
+            }
+            mLine++;
+        } while (line.trim().length() == 0);
+
+        try {
+            JSONObject record = new JSONObject(line);
+            ContentValues values = new ContentValues();
+            if (record.has(NotePad.Notes.COLUMN_NAME_TITLE)
+                    && !record.isNull(NotePad.Notes.COLUMN_NAME_TITLE)) {
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE,
+                        record.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+            }
+            if (record.has(NotePad.Notes.COLUMN_NAME_NOTE)
+                    && !record.isNull(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                        record.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+            }
+            putDate(record, NotePad.Notes.COLUMN_NAME_CREATE_DATE, values);
+            putDate(record, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, values);
+            return values;
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Malformed note on line " + mLine, e);
+        }
+    }
+
+    private static void putDate(JSONObject record, String column, ContentValues values)
+            throws JSONException {
+        if (record.has(column) && !record.isNull(column)) {
+            values.put(column, record.getLong(column));
+        }
+    }
+
+    /**
+     * 读取一个纯文本记录：第一行是标题，标题后面的一个空行可以省略，其余的行是正文，直到只包含
+     * { @ link # TEXT_RECORD_SEPARATOR }的一行或者数据流结束。即单个笔记的text/plain数据流
+     * 用分隔行连接起来的格式。正文最后的换行不保留。
+     */
+    private ContentValues readTextRecord() throws IOException {
+        String title = null;
+        StringBuilder note = new StringBuilder();
+        boolean bodyStarted = false;
+        boolean hasLines = false;
+        String line;
+        while ((line = mReader.readLine()) != null) {
+            mLine++;
+            if (TEXT_RECORD_SEPARATOR.equals(line)) {
+                if (title != null) {
+                    break;
+                }
+
+                // 连续的分隔行之间没有笔记
+                continue;
+            }
+            if (title == null) {
+                title = line;
+                continue;
+            }
+            if (!bodyStarted) {
+                bodyStarted = true;
+                if (line.length() == 0) {
+                    continue;
+                }
+            }
+            if (hasLines) {
+                note.append('\n');
+            }
+            note.append(line);
+            hasLines = true;
+        }
+        if (title == null) {
+            return null;
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note.toString());
+        return values;
+    }
+
+    /**
+     * 创建保存导入进度的表。
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_NAME_IMPORT_ID + " TEXT PRIMARY KEY,"
+                + COLUMN_NAME_RECORDS + " INTEGER NOT NULL,"
+                + COLUMN_NAME_MODIFICATION_DATE + " INTEGER"
+                + ");");
+    }
+
+    /**
+     * 返回一次导入已经提交的笔记数，这次导入还没有开始时返回0。
+     */
+    static long getCheckpoint(SQLiteDatabase db, String importId) {
+        Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_NAME_RECORDS },
+                COLUMN_NAME_IMPORT_ID + " = ?", new String[] { importId }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 保存一次导入已经提交的笔记数。应该在写入这些笔记的同一个事务中调用。
+     */
+    static void saveCheckpoint(SQLiteDatabase db, String importId, long records, long now) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME_IMPORT_ID, importId);
+        values.put(COLUMN_NAME_RECORDS, records);
+        values.put(COLUMN_NAME_MODIFICATION_DATE, now);
+        db.replaceOrThrow(TABLE_NAME, null, values);
+    }
+
+    /**
+     * 删除一次导入的进度。导入完成之后调用，之后同样的导入ID作为一次新的导入。
+     */
+    static void deleteCheckpoint(SQLiteDatabase db, String importId) {
+        db.delete(TABLE_NAME, COLUMN_NAME_IMPORT_ID + " = ?", new String[] { importId });
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+/**
+ * 笔记列表的内存索引。列表只需要每个笔记的ID、标题、修改时间和摘要，这些列按
+ * { @ link NotePad.Notes # PAGE_SORT_ORDER }排序保存在几个数组中，列表的查询和分页直接从数组构造游标，
+ * 不访问数据库。
+ *
+ * 数组从不修改：笔记变化时，写入的一方在锁中复制出新的数组，替换这一条笔记，再通过一个volatile字段整体
+ * 发布。读取的一方只读取一次这个字段，不加锁，也不会看到写了一半的数组。索引第一次被读取时，或者被
+ * { @ link # invalidate }丢弃之后，由读取的一方在锁中从数据库重新建立。
+ */
+final class NoteListIndex {
+
+    /**
+     * 索引包含的列。只包含这些列的列表查询可以由索引回答。
+     */
+    static final String[] COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET
+    };
+
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_TITLE = 1;
+    private static final int COLUMN_MODIFIED = 2;
+    private static final int COLUMN_SNIPPET = 3;
+
+    private final SQLiteOpenHelper mOpenHelper;
+
+    // 写入的一方之间互斥，也保护索引的建立
+    private final Object mLock = new Object();
+
+    // 当前发布的索引，还没有建立或者已经被丢弃时为null
+    private volatile Snapshot mSnapshot;
+
+    // 从数据库建立索引的次数，在mLock上同步
+    private int mLoadCount;
+
+    /**
+     * 某一时刻的所有笔记，按修改时间从新到旧排序，修改时间相同的按ID从小到大排序。
+     */
+    private static final class Snapshot {
+        final long[] ids;
+        final long[] modified;
+        final String[] titles;
+        final String[] snippets;
+
+        Snapshot(int count) {
+            ids = new long[count];
+            modified = new long[count];
+            titles = new String[count];
+            snippets = new String[count];
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        /**
+         * 返回按排序顺序在(modified, id)之后的第一个位置。
+         */
+        int positionAfter(long modified, long id) {
+            int low = 0;
+            int high = ids.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (this.modified[middle] > modified
+                        || (this.modified[middle] == modified && ids[middle] <= id)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    NoteListIndex(SQLiteOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    /**
+     * 索引能否回答这个查询：投影只包含{ @ link # COLUMNS }中的列，并且排序顺序与索引的顺序一致。
+     */
+    static boolean covers(String[] projection, String sortOrder) {
+        if (projection == null || projection.length == 0) {
+            return false;
+        }
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return false;
+            }
+        }
+        return TextUtils.isEmpty(sortOrder)
+                || NotePad.Notes.DEFAULT_SORT_ORDER.equals(sortOrder)
+                || NotePad.Notes.PAGE_SORT_ORDER.equals(sortOrder);
+    }
+
+    /**
+     * 返回所有笔记。
+     *
+     * @param projection 要返回的列，必须满足{ @ link # covers }
+     */
+    Cursor query(String[] projection) {
+        Snapshot snapshot = getSnapshot();
+        return new SnapshotCursor(snapshot, projection, 0, snapshot.size());
+    }
+
+    /**
+     * 返回一页笔记。
+     *
+     * @param projection 要返回的列，必须满足{ @ link # covers }
+     * @param after 上一页最后一行的修改时间和ID，读取第一页时为null
+     * @param pageSize 最多返回的行数
+     */
+    Cursor queryPage(String[] projection, long[] after, int pageSize) {
+        Snapshot snapshot = getSnapshot();
+        int start = after != null ? snapshot.positionAfter(after[0], after[1]) : 0;
+        int end = (int) Math.min((long) start + pageSize, snapshot.size());
+        return new SnapshotCursor(snapshot, projection, start, end);
+    }
+
+    /**
+     * 一个笔记被插入、修改或删除之后调用。变化必须已经提交，否则其他线程可能在回滚之前看到它。
+     * 索引还没有建立时什么也不做。
+     */
+    void update(long noteId) {
+        synchronized (mLock) {
+            Snapshot current = mSnapshot;
+            if (current == null) {
+                return;
+            }
+
+            // 读取笔记现在的列表列，笔记已经被删除时row为null
+            Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME, COLUMNS,
+                    NotePad.Notes._ID + " = ?", new String[] { Long.toString(noteId) },
+                    null, null, null);
+            Snapshot row = null;
+            try {
+                if (c.moveToFirst()) {
+                    row = new Snapshot(1);
+                    readRow(c, row, 0);
+                }
+            } finally {
+                c.close();
+            }
+
+            int oldPosition = -1;
+            for (int i = 0; i < current.size(); i++) {
+                if (current.ids[i] == noteId) {
+                    oldPosition = i;
+                    break;
+                }
+            }
+            if (oldPosition < 0 && row == null) {
+                return;
+            }
+
+            // 先去掉旧的一行，再在新的位置插入新的一行
+            int size = current.size() - (oldPosition >= 0 ? 1 : 0);
+            Snapshot without = oldPosition < 0 ? current : new Snapshot(size);
+            if (oldPosition >= 0) {
+                copy(current, 0, without, 0, oldPosition);
+                copy(current, oldPosition + 1, without, oldPosition, size - oldPosition);
+            }
+            if (row == null) {
+                mSnapshot = without;
+                return;
+            }
+            int newPosition = without.positionAfter(row.modified[0], row.ids[0]);
+            Snapshot next = new Snapshot(size + 1);
+            copy(without, 0, next, 0, newPosition);
+            copy(row, 0, next, newPosition, 1);
+            copy(without, newPosition, next, newPosition + 1, size - newPosition);
+            mSnapshot = next;
+        }
+    }
+
+    /**
+     * 丢弃索引，下次读取时从数据库重新建立。任意多个笔记可能发生了变化时调用，例如批量操作的事务结束之后。
+     */
+    void invalidate() {
+        synchronized (mLock) {
+            mSnapshot = null;
+        }
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (mLock) {
+            if (mSnapshot == null) {
+                mSnapshot = load(mOpenHelper.getReadableDatabase());
+                mLoadCount++;
+            }
+            return mSnapshot;
+        }
+    }
+
+    /**
+     * 返回从数据库建立索引的次数。
+     */
+    int getLoadCount() {
+        synchronized (mLock) {
+            return mLoadCount;
+        }
+    }
+
+    /**
+     * 从数据库读取所有笔记的列表列。
+     */
+    private static Snapshot load(SQLiteDatabase db) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, COLUMNS, null, null, null, null,
+                NotePad.Notes.PAGE_SORT_ORDER);
+        try {
+            Snapshot snapshot = new Snapshot(c.getCount());
+            for (int i = 0; c.moveToNext(); i++) {
+                readRow(c, snapshot, i);
+            }
+            return snapshot;
+        } finally {
+            c.close();
+        }
+    }
+
+    // 读取按COLUMNS投影的游标的当前行
+    private static void readRow(Cursor c, Snapshot snapshot, int position) {
+        snapshot.ids[position] = c.getLong(COLUMN_ID);
+        snapshot.titles[position] = c.getString(COLUMN_TITLE);
+        snapshot.modified[position] = c.getLong(COLUMN_MODIFIED);
+        snapshot.snippets[position] = c.getString(COLUMN_SNIPPET);
+    }
+
+    private static void copy(Snapshot from, int fromPosition, Snapshot to, int toPosition,
+            int count) {
+        System.arraycopy(from.ids, fromPosition, to.ids, toPosition, count);
+        System.arraycopy(from.modified, fromPosition, to.modified, toPosition, count);
+        System.arraycopy(from.titles, fromPosition, to.titles, toPosition, count);
+        System.arraycopy(from.snippets, fromPosition, to.snippets, toPosition, count);
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 索引中连续的一段笔记组成的游标。
+     */
+    private static final class SnapshotCursor extends AbstractCursor {
+        private final Snapshot mSnapshot;
+        private final String[] mColumnNames;
+        private final int[] mColumns;
+        private final int mStart;
+        private final int mCount;
+
+        SnapshotCursor(Snapshot snapshot, String[] projection, int start, int end) {
+            mSnapshot = snapshot;
+            mColumnNames = projection;
+            mColumns = new int[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                mColumns[i] = indexOf(projection[i]);
+            }
+            mStart = start;
+            mCount = Math.max(end - start, 0);
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Override
+        public int getType(int column) {
+            switch (mColumns[column]) {
+                case COLUMN_ID:
+                case COLUMN_MODIFIED:
+                    return Cursor.FIELD_TYPE_INTEGER;
+                default:
+                    return getText(column) == null
+                            ? Cursor.FIELD_TYPE_NULL : Cursor.FIELD_TYPE_STRING;
+            }
+        }
+
+        @Override
+        public String getString(int column) {
+            switch (mColumns[column]) {
+                case COLUMN_ID:
+                case COLUMN_MODIFIED:
+                    return Long.toString(getLong(column));
+                default:
+                    return getText(column);
+            }
+        }
+
+        @Override
+        public long getLong(int column) {
+            int row = mStart + mPos;
+            switch (mColumns[column]) {
+                case COLUMN_ID:
+                    return mSnapshot.ids[row];
+                case COLUMN_MODIFIED:
+                    return mSnapshot.modified[row];
+                default:
+                    // 与SQLite一样，不是数字的文本读作0
+                    String text = getText(column);
+                    try {
+                        return text == null ? 0 : Long.parseLong(text.trim());
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+            }
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return getType(column) == Cursor.FIELD_TYPE_NULL;
+        }
+
+        private String getText(int column) {
+            int row = mStart + mPos;
+            return mColumns[column] == COLUMN_TITLE
+                    ? mSnapshot.titles[row] : mSnapshot.snippets[row];
+        }
+    }
+}
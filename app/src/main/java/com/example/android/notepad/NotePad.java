@@ -80,6 +80,16 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * 路径部分，用于全文搜索URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
+        /**
+         * 路径部分，用于分页URI
+         */
+        private static final String PATH_PAGE = "/notes/page";
+
         /**
          * 此表的内容:/ /样式URL
          */
@@ -103,6 +113,70 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
             = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * 全文搜索的内容URI。搜索词通过{ @ link # QUERY_PARAMETER_SEARCH }参数传入，
+         * 在标题和内容两列中匹配，返回与{ @ link # CONTENT_URI }相同的列。匹配的方式由
+         * { @ link # QUERY_PARAMETER_MODE }参数指定，默认为{ @ link # SEARCH_MODE_TERMS }。
+         * 没有指定排序顺序时，与搜索词最相关的笔记排在前面：标题中的匹配比内容中的重要，少见的词比常见的
+         * 词重要，最近修改的笔记略为靠前。
+         */
+        public static final Uri CONTENT_SEARCH_URI
+            = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * { @ link # CONTENT_SEARCH_URI }中携带搜索词的查询参数名
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * { @ link # CONTENT_SEARCH_URI }中指定匹配方式的查询参数名
+         */
+        public static final String QUERY_PARAMETER_MODE = "mode";
+
+        /**
+         * 按词项匹配：搜索词中的每个词都要作为某个词的前缀出现。使用全文索引。
+         */
+        public static final String SEARCH_MODE_TERMS = "terms";
+
+        /**
+         * 按子串匹配：搜索词作为一个整体出现在标题或内容的任意位置，不区分ASCII字母的大小写。
+         * 适用于词的中间部分和不用空格分词的文字(例如中文)。使用三元组索引。
+         */
+        public static final String SEARCH_MODE_SUBSTRING = "substring";
+
+        /**
+         * 按标题模糊匹配：允许搜索词与标题中的一段文字有少量不同(输入错误)，只在标题中匹配。
+         * 没有指定排序顺序时，结果按相近的程度排序，最相近的在前。最多返回的行数由
+         * { @ link # QUERY_PARAMETER_LIMIT }参数指定。
+         */
+        public static final String SEARCH_MODE_FUZZY = "fuzzy";
+
+        /**
+         * 分页读取notes目录的内容URI。每次返回按{ @ link # PAGE_SORT_ORDER }排序的一页，页的大小由
+         * { @ link # QUERY_PARAMETER_LIMIT }参数指定，从{ @ link # QUERY_PARAMETER_AFTER }参数给出的
+         * 位置之后开始。返回的游标的{ @ link android.database.Cursor # getExtras() }中，
+         * { @ link # EXTRA_NEXT_PAGE }是读取下一页时使用的位置；没有更多记录时不包含该值。
+         * 这个URI不使用调用者传入的排序顺序。
+         */
+        public static final Uri CONTENT_PAGE_URI
+            = Uri.parse(SCHEME + AUTHORITY + PATH_PAGE);
+
+        /**
+         * { @ link # CONTENT_PAGE_URI }中指定每页最多返回多少行的查询参数名，也用于模糊搜索
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * { @ link # CONTENT_PAGE_URI }中指定从哪个位置之后开始读取的查询参数名。它的值是上一页返回的
+         * { @ link # EXTRA_NEXT_PAGE }，省略时从第一页开始。
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * 分页查询返回的游标附加数据中，下一页位置的键
+         */
+        public static final String EXTRA_NEXT_PAGE = "next_page";
+
         /*
          *MIME类型定义
          */
@@ -117,11 +191,84 @@ public final class NotePad {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
 
+        /**
+         * 导出所有笔记的数据流的MIME类型，通过{ @ link android.content.ContentResolver # openTypedAssetFileDescriptor }
+         * 打开{ @ link # CONTENT_URI }得到。每个笔记是一行JSON对象，包含_id、title、note(完整的正文)、
+         * created和modified；笔记按ID排序，导出开始之后新建的笔记不包括在内。
+         */
+        public static final String EXPORT_MIME_TYPE = "application/x-ndjson";
+
+        /**
+         * 通过{ @ link android.content.ContentResolver # call }从数据流导入笔记的方法名。参数是数据流的格式：
+         * { @ link # EXPORT_MIME_TYPE }(与导出的格式相同，记录中的_id被忽略)，或者text/plain
+         * (每个笔记的第一行是标题，其余是正文，笔记之间用只包含换页符的一行分隔)。
+         * 数据流通过{ @ link # EXTRA_IMPORT_FILE }传递。
+         *
+         * 笔记每500条在一个事务中提交。指定了{ @ link # EXTRA_IMPORT_ID }时，已经提交的笔记数与笔记
+         * 一起保存，中断的导入用同样的ID再次调用时，从上次提交之后的笔记继续；导入完成后保存的进度
+         * 被删除，同样的ID再次调用时重新导入整个数据流。返回的Bundle中
+         * { @ link # EXTRA_IMPORTED_COUNT }是这次导入已经提交的笔记总数。导入可能需要较长的时间，
+         * 不应该在主线程上调用。
+         */
+        public static final String METHOD_IMPORT = "import_notes";
+
+        /**
+         * { @ link # METHOD_IMPORT }的参数：要导入的数据流，一个可以读取的
+         * { @ link android.os.ParcelFileDescriptor }。导入结束后由提供者关闭。
+         */
+        public static final String EXTRA_IMPORT_FILE = "import_file";
+
+        /**
+         * { @ link # METHOD_IMPORT }的可选参数：标识这次导入的字符串，用于中断后继续导入。
+         */
+        public static final String EXTRA_IMPORT_ID = "import_id";
+
+        /**
+         * { @ link # METHOD_IMPORT }的可选参数：一个{ @ link android.os.ResultReceiver }，
+         * 每提交一批笔记后收到一次进度，Bundle中的{ @ link # EXTRA_IMPORTED_COUNT }是已经提交的笔记总数。
+         */
+        public static final String EXTRA_IMPORT_RECEIVER = "import_receiver";
+
+        /**
+         * { @ link # METHOD_IMPORT }的结果和进度：这次导入已经提交的笔记总数，包括之前中断的调用提交的笔记。
+         */
+        public static final String EXTRA_IMPORTED_COUNT = "imported_count";
+
+        /**
+         * 通过{ @ link android.content.ContentResolver # call }备份所有笔记的方法名。备份写入
+         * { @ link # EXTRA_BACKUP_FILE }，是数据库在某一时刻的一致的副本，连同保存在文件中的正文。
+         * 备份期间编辑器的保存和读取可以照常进行。
+         */
+        public static final String METHOD_BACKUP = "backup";
+
+        /**
+         * 通过{ @ link android.content.ContentResolver # call }从{ @ link # METHOD_BACKUP }写出的备份恢复的
+         * 方法名。现有的所有笔记被备份中的笔记替换；恢复是原子的，失败时现有的笔记不变。返回的Bundle中
+         * { @ link # EXTRA_RESTORED_COUNT }是恢复的笔记数。
+         */
+        public static final String METHOD_RESTORE = "restore";
+
+        /**
+         * { @ link # METHOD_BACKUP }和{ @ link # METHOD_RESTORE }的参数：写入或读取备份的
+         * { @ link android.os.ParcelFileDescriptor }。完成后由提供者关闭。
+         */
+        public static final String EXTRA_BACKUP_FILE = "backup_file";
+
+        /**
+         * { @ link # METHOD_RESTORE }的结果：恢复的笔记数。
+         */
+        public static final String EXTRA_RESTORED_COUNT = "restored_count";
+
         /**
          * 这个表的默认排序顺序
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * 分页URI的排序顺序。修改时间相同的笔记按ID排序，使每一行在顺序中的位置都是唯一的。
+         */
+        public static final String PAGE_SORT_ORDER = "modified DESC, _id ASC";
+
         /*
          *列定义
          */
@@ -133,7 +280,8 @@ public final class NotePad {
         public static final String COLUMN_NAME_TITLE = "title";
 
         /**
-         * 注释内容的列名
+         * 注释内容的列名。单个笔记的查询返回完整的正文(正文保存在文件中时除外，见
+         * { @ link # COLUMN_NAME_NOTE_FILE })；目录查询中，压缩保存的长正文只返回开头。
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_NOTE = "note";
@@ -150,6 +298,206 @@ public final class NotePad {
          */
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
 
+        /**
+         * 正文摘要的列名：正文开头的一段文字，连续的空白合并为一个空格，最长100个字符。
+         * 每次写入正文时由提供者生成，客户端不能写入。列表显示预览时读取这一列，不需要读取整个正文。
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+        /**
+         * 正文保存在文件中时的文件名的列名，正文保存在{ @ link # COLUMN_NAME_NOTE }中时为null。
+         * 这时{ @ link # COLUMN_NAME_NOTE }只包含正文的开头(用于预览和搜索)，完整的正文通过
+         * { @ link android.content.ContentResolver # openInputStream }打开笔记的URI读取。
+         * 这一列由提供者维护，客户端不能写入。
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NOTE_FILE = "note_file";
+
+        /**
+         * 搜索结果中正文的片段的列名：正文中包含最多匹配的一段文字，最长100个字符，截断的一端加上省略号，
+         * 换行换成空格。正文中没有匹配时是正文的开头。只能从{ @ link # CONTENT_SEARCH_URI }查询，
+         * 并且要在投影中明确请求。
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SEARCH_SNIPPET = "search_snippet";
+
+        /**
+         * 搜索结果中{ @ link # COLUMN_NAME_SEARCH_SNIPPET }里匹配的位置的列名。格式是空格分隔的
+         * "开始 结束 开始 结束..."，每一对是一个匹配的[开始, 结束)字符位置，没有匹配时为空字符串。
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SEARCH_SNIPPET_MATCHES = "search_snippet_matches";
+
+        /**
+         * 搜索结果中标题里匹配的位置的列名，格式与{ @ link # COLUMN_NAME_SEARCH_SNIPPET_MATCHES }相同。
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SEARCH_TITLE_MATCHES = "search_title_matches";
+
+        /**
+         * 保存在notes表中的正文的最大长度(字符)。更长的正文保存在文件中，见{ @ link # COLUMN_NAME_NOTE_FILE }。
+         */
+        public static final int MAX_INLINE_NOTE_LENGTH = 256 * 1024;
+
         public static final String COLUMN_NAME_EDITNOTE="editNote";
     }
+
+    /**
+     * 笔记的编辑日志。保存很长的笔记时，编辑器只提交相对上次保存的版本所做的插入和删除，提供者把它们追加到
+     * 日志中；读取笔记时，日志被依次应用到保存的正文上。日志积累到一定大小后在后台合并进正文。
+     * 全文搜索只索引合并后的正文。
+     */
+    public static final class NoteEdits implements BaseColumns {
+
+        // 这个类不能实例化
+        private NoteEdits() {}
+
+        /**
+         * 此提供者提供的表名
+         */
+        public static final String TABLE_NAME = "note_edits";
+
+        /**
+         * 一个笔记的编辑日志相对于这个笔记的URI的路径。向
+         * { @ link Notes # CONTENT_ID_URI_BASE }/id/edits插入记录即向这个笔记追加编辑。
+         */
+        public static final String CONTENT_DIRECTORY = "edits";
+
+        /**
+         * 编辑日志目录的MIME类型
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note-edit";
+
+        /**
+         * 通过{ @ link android.content.ContentResolver # call }请求在后台合并一个笔记的编辑日志的方法名。
+         * 参数是笔记ID。
+         */
+        public static final String METHOD_COMPACT = "compact_edits";
+
+        /**
+         * 编辑所属的笔记ID的列名
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * 编辑开始的位置(字符)的列名
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_POSITION = "position";
+
+        /**
+         * 从编辑位置开始删除的字符数的列名
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_DELETED = "deleted";
+
+        /**
+         * 删除之后在编辑位置插入的文本的列名
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_INSERTED = "inserted";
+
+        /**
+         * 编辑时间戳的列名
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_CREATE_DATE = "created";
+    }
+
+    /**
+     * 笔记的版本历史。每次整体写入正文(编辑器的保存、恢复)时提供者记录一个版本，保存为相对前一个版本的差异，
+     * 每隔若干个版本保存一次完整的正文，所以历史占用的空间随修改的大小增长，而不是随正文的长度和保存的次数增长。
+     * 只保留最近的一部分版本；超过{ @ link Notes # MAX_INLINE_NOTE_LENGTH }的正文不记录版本。
+     *
+     * 版本只能读取，不能通过URI插入、修改或删除；笔记被删除时它的版本也被删除。
+     */
+    public static final class NoteRevisions implements BaseColumns {
+
+        // 这个类不能实例化
+        private NoteRevisions() {}
+
+        /**
+         * 此提供者提供的表名
+         */
+        public static final String TABLE_NAME = "note_revisions";
+
+        /**
+         * 一个笔记的版本历史相对于这个笔记的URI的路径。{ @ link Notes # CONTENT_ID_URI_BASE }/id/revisions
+         * 列出这个笔记的版本(不包括正文)，/id/revisions/revisionId读取一个版本，包括它的完整正文
+         * ({ @ link # COLUMN_NAME_TEXT })。
+         */
+        public static final String CONTENT_DIRECTORY = "revisions";
+
+        /**
+         * 在版本URI中，版本ID部分的相对位置
+         */
+        public static final int REVISION_ID_PATH_POSITION = 3;
+
+        /**
+         * 版本目录的MIME类型
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note-revision";
+
+        /**
+         * 单个版本的MIME类型
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note-revision";
+
+        /**
+         * 版本列表的默认排序顺序：最新的版本在前
+         */
+        public static final String DEFAULT_SORT_ORDER = "_id DESC";
+
+        /**
+         * 通过{ @ link android.content.ContentResolver # call }把笔记当前的正文记录为一个版本的方法名。
+         * 参数是笔记ID。正文与最新的版本相同时不记录新的版本。返回的Bundle中
+         * { @ link # EXTRA_REVISION_ID }是与当前正文相同的版本；笔记不存在或者正文太长时返回null。
+         * 编辑器打开笔记时调用，以便之后恢复到打开时的正文。
+         */
+        public static final String METHOD_RECORD = "record_revision";
+
+        /**
+         * { @ link # METHOD_RECORD }的结果：版本ID。
+         */
+        public static final String EXTRA_REVISION_ID = "revision_id";
+
+        /**
+         * { @ link # METHOD_RECORD }的可选参数：为true时固定记录的版本，在{ @ link # METHOD_UNPIN }之前
+         * 它不会因为版本太多而被删除。每个笔记只有一个固定的版本，新的固定替换旧的。
+         */
+        public static final String EXTRA_PIN = "pin";
+
+        /**
+         * 通过{ @ link android.content.ContentResolver # call }取消笔记的固定版本的方法名。参数是笔记ID。
+         * 编辑器结束编辑时调用。
+         */
+        public static final String METHOD_UNPIN = "unpin_revision";
+
+        /**
+         * 版本所属的笔记ID的列名
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * 版本创建时间戳的列名
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_CREATE_DATE = "created";
+
+        /**
+         * 这个版本的正文长度(字符)的列名
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_LENGTH = "length";
+
+        /**
+         * 这个版本的完整正文的列名。只有查询单个版本时才能读取。
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_TEXT = "text";
+    }
 }
@@ -24,32 +24,62 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
+import android.os.ResultReceiver;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -65,20 +95,77 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static final String DATABASE_NAME = "note_pad.db";
 
     /**
-     * 数据库版本
+     * 数据库版本。每次修改数据库结构都要增加版本号，并在{ @ link DatabaseHelper # migrate }中加入
+     * 对应版本的迁移步骤。为了测试的目的，设置了包的可见性。
      */
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 13;
+
+    /**
+     * 可以通过迁移原地升级的最低版本。更早的版本没有迁移步骤，只能销毁数据重建。
+     */
+    static final int MIN_MIGRATABLE_VERSION = 2;
+
+    /**
+     * 标题和内容的全文索引表(FTS4虚拟表)，docid与notes表的_id一一对应，由触发器保持同步
+     */
+    private static final String FTS_TABLE_NAME = "notes_fts";
+
+    /**
+     * 保存长正文文件的应用私有目录的名字
+     */
+    private static final String NOTE_FILES_DIRECTORY = "notes";
+
+    /**
+     * 备份和恢复时保存数据库副本的临时目录
+     */
+    private static final String BACKUP_DIRECTORY = "backup";
+
+    /**
+     * 正文保存在文件中或压缩保存时，note列中保留的正文开头的长度(字符)。列表预览和全文搜索只使用这一部分。
+     */
+    private static final int STORED_PREFIX_LENGTH = 4 * 1024;
+
+    /**
+     * 批量操作结束时，发生变化的笔记不超过这么多个时逐个更新列表索引和标题索引，否则丢弃它们
+     */
+    private static final int MAX_BATCH_INDEX_UPDATES = 50;
+
+    /**
+     * 导出时写入管道的缓冲区大小(字符)
+     */
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 压缩保存的正文中开头之后的部分。这一列只在提供者内部使用，客户端不能读写。为了测试的目的，设置了包的可见性。
+     * <P>Type: BLOB</P>
+     */
+    static final String COLUMN_NAME_NOTE_COMPRESSED = "note_compressed";
 
     /**
      * 用于从数据库中选择列的投影映射
      */
     private static HashMap<String, String> sNotesProjectionMap;
 
+    /**
+     * 单个笔记的查询使用的投影映射，在sNotesProjectionMap之外还包含压缩保存的正文
+     */
+    private static HashMap<String, String> sNoteIdProjectionMap;
+
+    /**
+     * 搜索使用的投影映射，在sNotesProjectionMap之外还包含生成片段需要的正文开头部分
+     */
+    private static HashMap<String, String> sSearchProjectionMap;
+
     /**
      * 用于从数据库中选择列的投影映射
      */
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
+    /**
+     * 版本列表的投影映射。版本的正文只能通过单个版本的URI读取。
+     */
+    private static HashMap<String, String> sRevisionsProjectionMap;
+
     /**
      * 普通音符的有趣列的标准投影。
      */
@@ -86,10 +173,33 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             NotePad.Notes._ID,               // 投影位置0，笔记的id
             NotePad.Notes.COLUMN_NAME_NOTE,  // 投影位置1，笔记的内容
             NotePad.Notes.COLUMN_NAME_TITLE, //投影位置2，笔记的标题
-
+            NotePad.Notes.COLUMN_NAME_NOTE_FILE, //投影位置3，保存正文的文件
     };
     private static final int READ_NOTE_NOTE_INDEX = 1;
     private static final int READ_NOTE_TITLE_INDEX = 2;
+    private static final int READ_NOTE_FILE_INDEX = 3;
+
+    /**
+     * 笔记缓存保存的列，即单个笔记的查询可以返回的所有列
+     */
+    private static final String[] NOTE_CACHE_COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_NOTE_FILE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET
+    };
+    private static final int NOTE_CACHE_NOTE_INDEX = 2;
+    private static final int NOTE_CACHE_MODIFIED_INDEX = 4;
+    private static final int NOTE_CACHE_SNIPPET_INDEX = 6;
+
+    /**
+     * 读取一个笔记和它的编辑日志的语句，见{ @ link # readNoteRow }。前面是笔记缓存的列，接着是压缩的正文，
+     * 最后是编辑的位置、删除的字符数、插入的文本和时间。
+     */
+    private static final String NOTE_ROW_QUERY = buildNoteRowQuery();
 
     /*
      * Uri matcher使用的常量根据传入Uri的模式选择操作
@@ -103,6 +213,26 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     //传入URI与Live文件夹URI模式相匹配
     private static final int LIVE_FOLDER_NOTES = 3;
 
+    // 传入URI与全文搜索URI模式相匹配
+    private static final int SEARCH = 4;
+
+    // 分页URI模式的传入URI匹配器的常量
+    private static final int PAGE = 5;
+
+    // 编辑日志URI模式的传入URI匹配器的常量
+    private static final int NOTE_EDITS = 6;
+
+    // 版本列表URI模式的传入URI匹配器的常量
+    private static final int REVISIONS = 7;
+
+    // 单个版本URI模式的传入URI匹配器的常量
+    private static final int REVISION_ID = 8;
+
+    /**
+     * 分页URI没有指定页大小时每页的行数
+     */
+    private static final int DEFAULT_PAGE_SIZE = 50;
+
     /**
      * UriMatcher实例
      */
@@ -111,6 +241,87 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     //处理一个新的数据库助手。
     private DatabaseHelper mOpenHelper;
 
+    /**
+     * 合并修改的通知。批量操作中的修改在事务结束后统一发送，其他修改在一个很短的时间窗口内合并。
+     */
+    private NotificationCoalescer mNotifier;
+
+    // 在后台合并编辑日志和清理正文文件的线程
+    private final ExecutorService mBackgroundExecutor = Executors.newSingleThreadExecutor();
+
+    // 保存长正文的文件
+    private NoteFiles mNoteFiles;
+
+    // 是否已经安排了清理正文文件，避免连续的修改重复安排
+    private final AtomicBoolean mSweepScheduled = new AtomicBoolean();
+
+    // 是否已经安排了更新三元组索引，避免连续的修改重复安排
+    private final AtomicBoolean mTrigramSyncScheduled = new AtomicBoolean();
+
+    // 是否已经安排了在后台合并所有的编辑日志
+    private final AtomicBoolean mCompactAllScheduled = new AtomicBoolean();
+
+    // 是否压缩保存较长的正文
+    private volatile boolean mCompressNotes;
+
+    // 把所有笔记导出为数据流
+    private NoteExporter mExporter;
+
+    // 备份和恢复
+    private NoteBackup mBackup;
+
+    // 正在进行的备份、恢复、导入和导出数。这期间不清理正文文件，已经列出或者还没有被引用的文件不会被删除
+    private final AtomicInteger mBackupsRunning = new AtomicInteger();
+
+    // 最近读取的笔记。编辑器打开一个笔记时会多次查询同一个笔记
+    private final NoteCache mNoteCache = new NoteCache(NOTE_CACHE_COLUMNS,
+            NoteCache.DEFAULT_MAX_BYTES);
+
+    // 笔记列表的内存索引。列表的查询和分页由它回答，不访问数据库
+    private NoteListIndex mListIndex;
+
+    // 标题的模糊搜索索引，第一次模糊搜索时建立
+    private FuzzyTitleIndex mTitleIndex;
+
+    /**
+     * 一次模糊搜索计算编辑距离的时间预算(毫秒)。超过时返回已经找到的结果。
+     */
+    private static final long FUZZY_SEARCH_BUDGET_MILLIS = 50;
+
+    /**
+     * 搜索时按相关程度排序的笔记数，大约是一屏半的结果。其余的结果按修改时间排序。
+     */
+    private static final int RANKED_SEARCH_RESULTS = 20;
+
+    /**
+     * 缓存的更新语句最多保留的数量。编辑器和标题编辑器只会用到几种不同的列组合。
+     */
+    private static final int MAX_CACHED_UPDATE_STATEMENTS = 8;
+
+    /**
+     * 单条笔记更新语句的缓存，按更新的列名(排序后)索引。只用于没有额外where条件的NOTE_ID更新。
+     * 所有对缓存和语句的访问都在mStatementLock上同步。
+     */
+    private final LinkedHashMap<String, SQLiteStatement> mUpdateStatements =
+            new LinkedHashMap<String, SQLiteStatement>(MAX_CACHED_UPDATE_STATEMENTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                    if (size() > MAX_CACHED_UPDATE_STATEMENTS) {
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    // 缓存的单条笔记删除语句
+    private SQLiteStatement mDeleteStatement;
+
+    // 缓存的语句所属的数据库。数据库被重新打开后，旧的语句都要丢弃。
+    private SQLiteDatabase mStatementDatabase;
+
+    private final Object mStatementLock = new Object();
+
 
     /**
      *实例化并设置静态对象的块
@@ -126,9 +337,25 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // 添加一个模式，将uri终止与notes操作的“notes”终止
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes", NOTES);
 
+        // 添加一个模式，将以“notes/search”结尾的uri路由到全文搜索操作
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", SEARCH);
+
+        // 添加一个模式，将以“notes/page”结尾的uri路由到分页读取操作
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/page", PAGE);
+
         // 添加一个模式，该模式以“notes”和一个整数作为一个注释ID的操作终止
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#", NOTE_ID);
 
+        // 添加一个模式，将以“notes/#/edits”结尾的uri路由到编辑日志操作
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.NoteEdits.CONTENT_DIRECTORY,
+                NOTE_EDITS);
+
+        // 添加模式，将以“notes/#/revisions”和“notes/#/revisions/#”结尾的uri路由到版本历史操作
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.NoteRevisions.CONTENT_DIRECTORY,
+                REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY,
+                "notes/#/" + NotePad.NoteRevisions.CONTENT_DIRECTORY + "/#", REVISION_ID);
+
         // 添加一个模式，将uri终止与live_folders / notes路由到一个活的文件夹操作
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
 
@@ -157,6 +384,23 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
 
+        // 将 "note_file" 映射到 "note_file"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_FILE,
+                NotePad.Notes.COLUMN_NAME_NOTE_FILE);
+
+        // 将 "snippet" 映射到 "snippet"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_SNIPPET);
+
+        // 单个笔记的查询读取正文时要同时读取压缩的部分，解压后再返回给客户端
+        sNoteIdProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
+        sNoteIdProjectionMap.put(COLUMN_NAME_NOTE_COMPRESSED, COLUMN_NAME_NOTE_COMPRESSED);
+
+        // 搜索结果的片段只从正文的开头部分生成，不读取整个正文
+        sSearchProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
+        sSearchProjectionMap.put(SearchSnippets.COLUMN_NAME_BODY_PREFIX,
+                SearchSnippets.BODY_PREFIX_EXPRESSION);
+
         /*
          *创建用于处理活文件夹的投影映射
          */
@@ -170,6 +414,20 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // 将“名称”映射为“名称”
         sLiveFolderProjectionMap.put(LiveFolders.NAME, NotePad.Notes.COLUMN_NAME_TITLE + " AS " +
             LiveFolders.NAME);
+
+        // 将“描述”映射为摘要，活文件夹显示预览时不需要读取正文
+        sLiveFolderProjectionMap.put(LiveFolders.DESCRIPTION, NotePad.Notes.COLUMN_NAME_SNIPPET
+                + " AS " + LiveFolders.DESCRIPTION);
+
+        // 版本列表返回版本的ID、所属的笔记、时间和正文长度
+        sRevisionsProjectionMap = new HashMap<String, String>();
+        sRevisionsProjectionMap.put(NotePad.NoteRevisions._ID, NotePad.NoteRevisions._ID);
+        sRevisionsProjectionMap.put(NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID,
+                NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID);
+        sRevisionsProjectionMap.put(NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE,
+                NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE);
+        sRevisionsProjectionMap.put(NotePad.NoteRevisions.COLUMN_NAME_LENGTH,
+                NotePad.NoteRevisions.COLUMN_NAME_LENGTH);
     }
 
     /**
@@ -186,7 +444,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
        /**
         *
-        * 使用从NotePad类中获取的表名和列名创建底层数据库。
+        * 使用从NotePad类中获取的表名和列名创建底层数据库。先创建版本2的notes表，再依次执行所有迁移，
+        * 这样新安装和升级得到的数据库结构总是一致的。
         */
        @Override
        public void onCreate(SQLiteDatabase db) {
@@ -197,21 +456,202 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER"
                    + ");");
+
+           migrate(db, MIN_MIGRATABLE_VERSION, DATABASE_VERSION);
+       }
+
+       /**
+        * 从oldVersion开始逐个版本执行迁移，直到newVersion。每个迁移步骤只做结构的增量修改并保留已有数据。
+        * SQLiteOpenHelper在一个事务中调用onCreate()和onUpgrade()，任何一步失败都会整体回滚。
+        */
+       private static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+           for (int version = oldVersion + 1; version <= newVersion; version++) {
+               switch (version) {
+                   // 版本3：标题和内容的全文索引
+                   case 3:
+                       createSearchIndex(db);
+                       break;
+
+                   // 版本4：按修改时间排序的覆盖索引
+                   case 4:
+                       createModifiedIndex(db);
+                       break;
+
+                   // 版本5：把以字符串保存的修改时间统一转换为毫秒时间戳
+                   case 5:
+                       convertModifiedToMillis(db);
+                       break;
+
+                   // 版本6：长笔记的编辑日志
+                   case 6:
+                       EditJournal.createTable(db);
+                       break;
+
+                   // 版本7：保存在文件中的长正文。已有的长正文在下一次保存时移到文件中
+                   case 7:
+                       db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                               + NotePad.Notes.COLUMN_NAME_NOTE_FILE + " TEXT");
+                       break;
+
+                   // 版本8：压缩保存的正文。已有的正文在下一次保存时压缩
+                   case 8:
+                       db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                               + COLUMN_NAME_NOTE_COMPRESSED + " BLOB");
+                       break;
+
+                   // 版本9：列表预览使用的摘要
+                   case 9:
+                       createSnippets(db);
+                       break;
+
+                   // 版本10：可以中断后继续的导入的进度
+                   case 10:
+                       NoteImporter.createTable(db);
+                       break;
+
+                   // 版本11：笔记的版本历史
+                   case 11:
+                       RevisionHistory.createTable(db);
+                       break;
+
+                   // 版本12：子串搜索的三元组索引
+                   case 12:
+                       TrigramIndex.createTable(db);
+                       break;
+
+                   // 版本13：编辑器打开笔记时固定的版本
+                   case 13:
+                       RevisionHistory.addPinnedColumn(db);
+                       break;
+
+                   default:
+                       throw new IllegalStateException("No migration to database version " + version);
+               }
+           }
+       }
+
+       /**
+        * 旧版本的编辑器把修改时间写成本地时间的"yyyy-MM-dd HH:mm:ss"字符串，而插入时写的是毫秒时间戳，
+        * 同一列中混合了两种类型，排序和按日期范围查询都会出错。这里把所有字符串值转换为毫秒时间戳，
+        * 无法解析的值用创建时间代替。
+        */
+       private static void convertModifiedToMillis(SQLiteDatabase db) {
+           db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = COALESCE("
+                   + "CAST(strftime('%s', " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                   + ", 'utc') AS INTEGER) * 1000, "
+                   + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ")"
+                   + " WHERE typeof(" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ") = 'text'");
+       }
+
+       /**
+        * 添加摘要列，为已有的笔记生成摘要，并把摘要加入按修改时间排序的覆盖索引，
+        * 这样显示预览的列表仍然不需要回表。每个笔记只读取生成摘要需要的正文开头。
+        */
+       private static void createSnippets(SQLiteDatabase db) {
+           db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                   + NotePad.Notes.COLUMN_NAME_SNIPPET + " TEXT NOT NULL DEFAULT ''");
+
+           Cursor c = db.rawQuery("SELECT " + NotePad.Notes._ID + ", substr("
+                   + NotePad.Notes.COLUMN_NAME_NOTE + ", 1, " + NoteSnippet.SOURCE_LENGTH
+                   + ") FROM " + NotePad.Notes.TABLE_NAME, null);
+           SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                   + " SET " + NotePad.Notes.COLUMN_NAME_SNIPPET + " = ? WHERE "
+                   + NotePad.Notes._ID + " = ?");
+           try {
+               while (c.moveToNext()) {
+                   update.bindString(1, NoteSnippet.of(c.getString(1)));
+                   update.bindLong(2, c.getLong(0));
+                   update.executeUpdateDelete();
+               }
+           } finally {
+               update.close();
+               c.close();
+           }
+
+           db.execSQL("DROP INDEX IF EXISTS notes_modified_index");
+           db.execSQL("CREATE INDEX notes_modified_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                   + NotePad.Notes._ID + ", "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                   + NotePad.Notes.COLUMN_NAME_SNIPPET
+                   + ");");
+       }
+
+       /**
+        * 创建(modified DESC, _id)上的索引，并把title放在索引里。笔记列表按默认排序读取_id、title和
+        * modified时可以直接按索引顺序扫描，不需要回表，也不需要每次用临时B树排序。
+        */
+       private static void createModifiedIndex(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX notes_modified_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                   + NotePad.Notes._ID + ", "
+                   + NotePad.Notes.COLUMN_NAME_TITLE
+                   + ");");
+       }
+
+       /**
+        * 创建标题和内容的全文索引，以及让索引跟随notes表变化的触发器，并为已有的笔记建立索引。
+        * 触发器只在标题或内容列被写入时才更新索引，只修改时间戳的更新不会触碰索引。
+        */
+       private static void createSearchIndex(SQLiteDatabase db) {
+           db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                   + NotePad.Notes.COLUMN_NAME_NOTE
+                   + ");");
+
+           db.execSQL("CREATE TRIGGER notes_fts_insert AFTER INSERT ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                   + ") VALUES (new." + NotePad.Notes._ID + ", new."
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", new." + NotePad.Notes.COLUMN_NAME_NOTE
+                   + "); END;");
+
+           db.execSQL("CREATE TRIGGER notes_fts_update_title AFTER UPDATE OF "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + " ON " + NotePad.Notes.TABLE_NAME
+                   + " BEGIN UPDATE " + FTS_TABLE_NAME + " SET "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + " = new." + NotePad.Notes.COLUMN_NAME_TITLE
+                   + " WHERE docid = new." + NotePad.Notes._ID + "; END;");
+
+           db.execSQL("CREATE TRIGGER notes_fts_update_note AFTER UPDATE OF "
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " ON " + NotePad.Notes.TABLE_NAME
+                   + " BEGIN UPDATE " + FTS_TABLE_NAME + " SET "
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " = new." + NotePad.Notes.COLUMN_NAME_NOTE
+                   + " WHERE docid = new." + NotePad.Notes._ID + "; END;");
+
+           db.execSQL("CREATE TRIGGER notes_fts_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + NotePad.Notes._ID
+                   + "; END;");
+
+           db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                   + ") SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                   + ", " + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME);
        }
 
        /**
         *
-        * 演示提供者必须考虑底层数据存储更改时发生的情况。在这个示例中，数据库通过销毁现有数据升级数据库。
-        一个真正的应用程序应该升级数据库。
+        * 按版本逐步迁移数据库，保留用户的笔记。只有早于{ @ link # MIN_MIGRATABLE_VERSION }的数据库
+        * 没有迁移步骤，这时才销毁现有数据重建。
         */
        @Override
        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
+           if (oldVersion >= MIN_MIGRATABLE_VERSION) {
+               Log.i(TAG, "Migrating database from version " + oldVersion + " to " + newVersion);
+               migrate(db, oldVersion, newVersion);
+               return;
+           }
+
            // 数据库正在升级的日志
            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                    + newVersion + ", which will destroy all old data");
 
            // 杀死表和现有数据
+           db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + NotePad.NoteEdits.TABLE_NAME);
            db.execSQL("DROP TABLE IF EXISTS notes");
 
            // 用一个新版本重新创建数据库
@@ -229,6 +669,35 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
        // 创建一个新的helper对象。请注意，在尝试访问数据库之前，数据库本身并没有打开，而且只有在它不存在时才创建。
        mOpenHelper = new DatabaseHelper(getContext());
+       mNotifier = new NotificationCoalescer(getContext().getContentResolver(),
+               NotePad.Notes.CONTENT_URI);
+
+       // 使用预写日志时，查询使用独立的只读连接，不会排在编辑器保存等写操作后面；写操作之间仍然是串行的。
+       mOpenHelper.setWriteAheadLoggingEnabled(
+               getContext().getResources().getBoolean(R.bool.notes_write_ahead_logging));
+
+       // 是否压缩正文是可选的，已经压缩的正文不论这个设置如何总是可以读取
+       mCompressNotes = getContext().getResources().getBoolean(R.bool.notes_compress_bodies);
+
+       // 长正文保存在应用的私有目录下，启动时清理上次没有删除的文件
+       mNoteFiles = new NoteFiles(getContext().getDir(NOTE_FILES_DIRECTORY, Context.MODE_PRIVATE));
+       scheduleSweep();
+
+       // 导出时先把编辑日志合并进正文，导出的总是完整的正文
+       mExporter = new NoteExporter(mOpenHelper, mNoteFiles, new Runnable() {
+           @Override
+           public void run() {
+               if (EditJournal.hasAnyEdits(mOpenHelper.getReadableDatabase())) {
+                   compactAllEdits();
+               }
+           }
+       });
+
+       mBackup = new NoteBackup(mOpenHelper, mNoteFiles,
+               getContext().getDir(BACKUP_DIRECTORY, Context.MODE_PRIVATE));
+
+       mListIndex = new NoteListIndex(mOpenHelper);
+       mTitleIndex = new FuzzyTitleIndex(mOpenHelper);
 
        // 假设任何故障将被抛出异常报告。
        return true;
@@ -245,17 +714,41 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
    @Override
    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
            String sortOrder) {
+       return query(uri, projection, selection, selectionArgs, sortOrder, null);
+   }
+
+   /**
+    * 带取消信号的查询。客户端在查询过程中取消信号时，SQLite会中止正在执行的语句并抛出
+    * { @ link android.os.OperationCanceledException }，这样被新查询取代的旧查询不会继续占用数据库。
+    */
+   @Override
+   public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+           String sortOrder, CancellationSignal cancellationSignal) {
 
        // 构造一个新的查询生成器并设置它的表名
        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
        qb.setTables(NotePad.Notes.TABLE_NAME);
 
+       // 分页查询时每页的行数，其他查询不限制行数
+       int pageSize = 0;
+
+       // 搜索结果的片段和匹配位置，以及客户端请求的投影。没有请求片段时为null
+       SearchSnippets snippets = null;
+       String[] searchProjection = null;
+
        /**
         * 选择投影，并根据URI模式匹配调整“where”子句。
         */
-       switch (sUriMatcher.match(uri)) {
+       int match = sUriMatcher.match(uri);
+       switch (match) {
            // If the incoming URI is for notes, chooses the Notes projection
            case NOTES:
+               // 只读取列表列的查询由内存索引回答
+               if (selection == null && NoteListIndex.covers(projection, sortOrder)) {
+                   Cursor list = mListIndex.query(projection);
+                   list.setNotificationUri(getContext().getContentResolver(), uri);
+                   return list;
+               }
                qb.setProjectionMap(sNotesProjectionMap);
                break;
 
@@ -263,12 +756,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            附加到where子句，这样它就会选择单个的音符
             */
            case NOTE_ID:
-               qb.setProjectionMap(sNotesProjectionMap);
-               qb.appendWhere(
-                   NotePad.Notes._ID +    // the name of the ID column
-                   "=" +
-                   // 注释ID在传入URI中的位置
-                   uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+               // 没有其他选择标准时，从缓存中读取笔记，缓存中没有时读取完整的一行放入缓存
+               if (selection == null) {
+                   Cursor note = queryNote(ContentUris.parseId(uri), projection, cancellationSignal);
+                   note.setNotificationUri(getContext().getContentResolver(), uri);
+                   return note;
+               }
+               qb.setProjectionMap(sNoteIdProjectionMap);
+               // 注释ID作为绑定参数传入，这样不同笔记的查询使用同一条SQL，可以命中SQLite的语句缓存
+               qb.appendWhere(NotePad.Notes._ID + " = ?");
+               selectionArgs = prependArgs(
+                       uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION),
+                       selectionArgs);
                break;
 
            case LIVE_FOLDER_NOTES:
@@ -276,6 +775,107 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                qb.setProjectionMap(sLiveFolderProjectionMap);
                break;
 
+           /* 如果传入URI是全文搜索，则通过全文索引找出匹配的笔记ID，再从notes表中读取这些行。
+            * 索引查找的代价只与匹配的词项有关，不随笔记总数线性增长。子串搜索使用三元组索引。
+            */
+           case SEARCH:
+               qb.setProjectionMap(sSearchProjectionMap);
+               String mode = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_MODE);
+               String searchText = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH);
+
+               // 请求了片段时，查询生成片段需要的列，查询之后再换成请求的列。模糊搜索按词项标出匹配
+               if (SearchSnippets.isRequested(projection)) {
+                   snippets = NotePad.Notes.SEARCH_MODE_SUBSTRING.equals(mode)
+                           ? SearchSnippets.forSubstring(searchText)
+                           : SearchSnippets.forTerms(searchText);
+                   searchProjection = projection;
+                   projection = SearchSnippets.sourceProjection(projection);
+               }
+               if (NotePad.Notes.SEARCH_MODE_SUBSTRING.equals(mode)) {
+                   selectionArgs = appendSubstringWhere(qb, searchText, selectionArgs);
+                   if (TextUtils.isEmpty(sortOrder)) {
+                       sortOrder = buildRelevanceOrder(searchText, cancellationSignal);
+                   }
+                   break;
+               } else if (NotePad.Notes.SEARCH_MODE_FUZZY.equals(mode)) {
+                   long[] ids = mTitleIndex.search(searchText,
+                           parsePageSize(uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT)),
+                           TimeUnit.MILLISECONDS.toNanos(FUZZY_SEARCH_BUDGET_MILLIS));
+                   if (ids.length == 0) {
+                       qb.appendWhere("0");
+                       break;
+                   }
+                   qb.appendWhere(NotePad.Notes._ID + " IN (" + joinIds(ids) + ")");
+                   if (TextUtils.isEmpty(sortOrder)) {
+                       sortOrder = buildRankOrder(ids);
+                   }
+                   break;
+               } else if (mode != null && !NotePad.Notes.SEARCH_MODE_TERMS.equals(mode)) {
+                   throw new IllegalArgumentException("Unknown search mode " + mode);
+               }
+               String matchQuery = buildMatchQuery(searchText);
+               if (matchQuery == null) {
+                   // 搜索词中没有可以匹配的词项，不返回任何记录
+                   qb.appendWhere("0");
+               } else {
+                   qb.appendWhere(NotePad.Notes._ID + " IN (SELECT docid FROM "
+                           + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME + " MATCH ?)");
+                   selectionArgs = prependArgs(matchQuery, selectionArgs);
+                   if (TextUtils.isEmpty(sortOrder)) {
+                       sortOrder = buildRelevanceOrder(searchText, cancellationSignal);
+                   }
+               }
+               break;
+
+           /* 如果传入URI是分页读取，则从上一页最后一行之后开始。条件的写法使SQLite可以在
+            * (modified DESC, _id)索引上直接定位到起始位置，读取的代价只与页大小有关。
+            */
+           case PAGE:
+               qb.setProjectionMap(sNotesProjectionMap);
+               pageSize = parsePageSize(uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT));
+               String after = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER);
+               long[] position = after != null ? parsePagePosition(after) : null;
+
+               // 计算下一页的位置需要最后一行的修改时间和ID
+               projection = appendColumns(projection, NotePad.Notes._ID,
+                       NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+
+               // 列表的分页由内存索引回答，起始位置通过二分查找确定
+               if (selection == null && NoteListIndex.covers(projection, null)) {
+                   Cursor page = new PageCursor(mListIndex.queryPage(projection, position, pageSize),
+                           pageSize);
+                   page.setNotificationUri(getContext().getContentResolver(),
+                           NotePad.Notes.CONTENT_URI);
+                   return page;
+               }
+               if (position != null) {
+                   String modified = Long.toString(position[0]);
+                   qb.appendWhere(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= ? AND ("
+                           + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ? OR "
+                           + NotePad.Notes._ID + " > ?)");
+                   selectionArgs = prependArgs(modified, prependArgs(modified,
+                           prependArgs(Long.toString(position[1]), selectionArgs)));
+               }
+               break;
+
+           // 如果传入URI是一个笔记的版本列表，则从版本表中读取这个笔记的版本
+           case REVISIONS:
+               qb.setTables(NotePad.NoteRevisions.TABLE_NAME);
+               qb.setProjectionMap(sRevisionsProjectionMap);
+               qb.appendWhere(NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?");
+               selectionArgs = prependArgs(
+                       uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION),
+                       selectionArgs);
+               break;
+
+           // 如果传入URI是单个版本，则从最近的关键版本开始重建这个版本的正文
+           case REVISION_ID:
+               Cursor revision = RevisionHistory.query(mOpenHelper.getReadableDatabase(),
+                       parseNoteId(uri), Long.parseLong(uri.getPathSegments().get(
+                               NotePad.NoteRevisions.REVISION_ID_PATH_POSITION)), projection);
+               revision.setNotificationUri(getContext().getContentResolver(), uri);
+               return revision;
+
            default:
                //如果URI不匹配任何已知模式，则抛出异常。
                throw new IllegalArgumentException("Unknown URI " + uri);
@@ -283,9 +883,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
 
        String orderBy;
+       // 分页查询总是使用分页的排序顺序，否则位置没有意义
+       if (match == PAGE) {
+           orderBy = NotePad.Notes.PAGE_SORT_ORDER;
        // 如果没有指定排序，则使用默认值
-       if (TextUtils.isEmpty(sortOrder)) {
-           orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+       } else if (TextUtils.isEmpty(sortOrder)) {
+           orderBy = match == REVISIONS
+                   ? NotePad.NoteRevisions.DEFAULT_SORT_ORDER : NotePad.Notes.DEFAULT_SORT_ORDER;
        } else {
            // 否则，使用传入排序顺序
            orderBy = sortOrder;
@@ -294,6 +898,30 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        //在“读”模式中打开数据库对象，因为不需要编写任何写操作。
        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
+       // 单个笔记的正文要解压压缩保存的部分，并应用编辑日志中还没有合并的修改
+       long resolvedNoteId = -1;
+       Set<Long> journaledNotes = null;
+       if (match != REVISIONS && includesColumn(projection, NotePad.Notes.COLUMN_NAME_NOTE)) {
+           if (match == NOTE_ID) {
+               resolvedNoteId = ContentUris.parseId(uri);
+               projection = appendColumns(projection, COLUMN_NAME_NOTE_COMPRESSED);
+           } else if (match != LIVE_FOLDER_NOTES) {
+               // 目录查询读取正文的情况很少，这时在读取时把日志应用到有日志的笔记上，查询本身不写数据库
+               journaledNotes = EditJournal.journaledNotes(db);
+               if (journaledNotes.isEmpty()) {
+                   journaledNotes = null;
+               } else {
+                   projection = appendColumns(projection, NotePad.Notes._ID);
+               }
+           }
+       }
+
+       // 修改时间和摘要在追加编辑时已经更新，全文索引在日志合并之后才更新，在后台合并
+       if (match != NOTE_ID && match != REVISIONS
+               && (journaledNotes != null || EditJournal.hasAnyEdits(db))) {
+           scheduleCompactAll();
+       }
+
        /*
         * 执行查询。如果在读取数据库时没有出现问题，则返回游标对象;否则，光标变量将包含null。
         * 如果没有选择记录，则光标对象是空的，Cursor.getCount()返回0。
@@ -305,104 +933,600 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            selectionArgs, // where子句的值
            null,          // 别组的行
            null,          //不要按行组进行筛选
-           orderBy        // 排序顺序
+           orderBy,       // 排序顺序
+           pageSize > 0 ? Integer.toString(pageSize) : null, // 分页时限制返回的行数
+           cancellationSignal // 取消信号，可以为null
        );
 
-       // 告诉光标什么URI要看，这样它就知道它的源数据何时变化
-       c.setNotificationUri(getContext().getContentResolver(), uri);
+       if (resolvedNoteId >= 0) {
+           c = resolveNote(db, c, resolvedNoteId);
+       } else if (journaledNotes != null) {
+           c = new JournaledNotesCursor(c, db, journaledNotes);
+       }
+
+       if (snippets != null) {
+           c = snippets.wrap(c, searchProjection);
+       }
+
+       // 告诉光标什么URI要看，这样它就知道它的源数据何时变化。搜索和分页的结果随任意笔记的变化而变化，
+       // 因此监听整个notes目录。
+       c.setNotificationUri(getContext().getContentResolver(),
+               match == SEARCH || match == PAGE ? NotePad.Notes.CONTENT_URI : uri);
+
+       if (match == PAGE) {
+           c = new PageCursor(c, pageSize);
+       }
        return c;
    }
 
    /**
-    * 当客户调用{ @ link android.content. contentresolver # getType(Uri)}时，调用此操作。
-    * 返回作为参数的URI的MIME数据类型。
-    *
-    * @ param uri，它的MIME类型是需要的。
-    @返回URI的MIME类型。
-    @抛出IllegalArgumentException，如果传入的URI模式无效。
+    * 投影是否包含给定的列。投影为null时包含所有列。
     */
-   @Override
-   public String getType(Uri uri) {
+   private static boolean includesColumn(String[] projection, String column) {
+       return projection == null || Arrays.asList(projection).contains(column);
+   }
 
-       /**
-        * 根据传入的URI模式选择MIME类型
-        */
-       switch (sUriMatcher.match(uri)) {
+   /**
+    * 把单个笔记的查询结果中的正文还原为完整的正文：解压压缩保存的部分，如果有编辑日志，再应用日志。
+    * 返回的游标不包含压缩的正文列。原来的游标被关闭。
+    *
+    * @throws SQLException 如果压缩的正文已经损坏
+    */
+   private static Cursor resolveNote(SQLiteDatabase db, Cursor c, long noteId) {
+       int compressedColumn = c.getColumnIndexOrThrow(COLUMN_NAME_NOTE_COMPRESSED);
+       String[] columns = new String[c.getColumnCount() - 1];
+       for (int i = 0, j = 0; i < c.getColumnCount(); i++) {
+           if (i != compressedColumn) {
+               columns[j++] = c.getColumnName(i);
+           }
+       }
+       MatrixCursor result = new MatrixCursor(columns, 1);
+       try {
+           if (c.moveToFirst()) {
+               result.addRow(resolveNoteRow(db, c, noteId));
+           }
+       } finally {
+           c.close();
+       }
+       return result;
+   }
 
-           // 如果模式是用于notes或live文件夹，则返回一般内容类型。
-           case NOTES:
-           case LIVE_FOLDER_NOTES:
-               return NotePad.Notes.CONTENT_TYPE;
+   /**
+    * 与{ @ link # resolveNote }相同，但返回游标当前行还原之后的值，列的顺序与原来的游标相同，去掉了
+    * 压缩的正文列。
+    *
+    * @throws SQLException 如果压缩的正文已经损坏
+    */
+   private static Object[] resolveNoteRow(SQLiteDatabase db, Cursor c, long noteId) {
+       int compressedColumn = c.getColumnIndexOrThrow(COLUMN_NAME_NOTE_COMPRESSED);
+       int noteColumn = c.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE);
+       int modifiedColumn = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+       int snippetColumn = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET);
+
+       Object[] row = new Object[c.getColumnCount()];
+       for (int i = 0; i < row.length; i++) {
+           row[i] = readValue(c, i);
+       }
+       if (EditJournal.hasEdits(db, noteId)) {
+           // 正文和日志要一致地读取，从一条语句中重新读取还原之后的正文
+           Object[] note = readNoteRow(db, noteId, null);
+           if (note != null) {
+               row[noteColumn] = note[NOTE_CACHE_NOTE_INDEX];
+               if (modifiedColumn >= 0) {
+                   row[modifiedColumn] = note[NOTE_CACHE_MODIFIED_INDEX];
+               }
+               if (snippetColumn >= 0) {
+                   row[snippetColumn] = note[NOTE_CACHE_SNIPPET_INDEX];
+               }
+           }
+       } else if (!c.isNull(compressedColumn)) {
+           row[noteColumn] = c.getString(noteColumn)
+                   + decompress(c.getBlob(compressedColumn), noteId);
+       }
 
-           // 如果模式是用于注释ID，则返回注释ID内容类型。
-           case NOTE_ID:
-               return NotePad.Notes.CONTENT_ITEM_TYPE;
+       // 去掉压缩的正文列
+       System.arraycopy(row, compressedColumn + 1, row, compressedColumn,
+               row.length - compressedColumn - 1);
+       return Arrays.copyOf(row, row.length - 1);
+   }
 
-           // 如果URI模式不匹配任何允许的模式，则抛出异常。
+   /**
+    * 读取游标当前行的一列，按列的类型返回Long、Double、byte[]、String或null。
+    */
+   private static Object readValue(Cursor c, int column) {
+       switch (c.getType(column)) {
+           case Cursor.FIELD_TYPE_NULL:
+               return null;
+           case Cursor.FIELD_TYPE_INTEGER:
+               return c.getLong(column);
+           case Cursor.FIELD_TYPE_FLOAT:
+               return c.getDouble(column);
+           case Cursor.FIELD_TYPE_BLOB:
+               return c.getBlob(column);
            default:
-               throw new IllegalArgumentException("Unknown URI " + uri);
+               return c.getString(column);
        }
-    }
+   }
 
-//BEGIN_INCLUDE(stream)
-    /**
-     * 这描述了支持打开注释URI作为流的MIME类型。
-     */
-    static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
-            new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
+   /**
+    * 解压压缩保存的正文中开头之后的部分。
+    *
+    * @throws SQLException 如果压缩的正文已经损坏
+    */
+   private static String decompress(byte[] compressed, long noteId) {
+       try {
+           return NoteCompression.decompress(compressed);
+       } catch (DataFormatException e) {
+           throw new SQLException("Corrupt compressed note " + noteId);
+       }
+   }
 
-    /**
-     * 返回可用数据流的类型。支持特定的uri。应用程序可以将这样的注释转换为纯文本流。
-     *
-     * @ param uri用于分析
-     * @ param mimeTypeFilter来检查MIME类型。这个方法只返回一个数据流
-     类型用于匹配过滤器的MIME类型。目前，只有文本/纯MIME类型匹配。
-     @返回数据流MIME类型。目前，只返回文本/计划。
-     @抛出IllegalArgumentException，如果URI模式不匹配任何受支持的模式。
-     */
-    @Override
-    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
-        /**
-         *  根据传入的URI模式选择数据流类型。
-         */
-        switch (sUriMatcher.match(uri)) {
+   /**
+    * 读取一个笔记的缓存列，并还原完整的正文：解压压缩保存的部分，再应用编辑日志中还没有合并的修改，
+    * 摘要按还原之后的正文重新生成。
+    *
+    * 日志左连接到笔记上，正文只在第一行读取，所以笔记和它的日志由同一条语句读取。一条语句在SQLite的
+    * 一个读事务中执行，读到的正文和日志总是一致的，不需要开始写事务来与后台的合并隔离。
+    *
+    * @return 按{ @ link # NOTE_CACHE_COLUMNS }排列的值，笔记不存在时返回null
+    * @throws SQLException 如果压缩的正文已经损坏
+    */
+   private static Object[] readNoteRow(SQLiteDatabase db, long noteId,
+           CancellationSignal cancellationSignal) {
+       Cursor c = db.rawQuery(NOTE_ROW_QUERY, new String[] { Long.toString(noteId) },
+               cancellationSignal);
+       try {
+           if (!c.moveToFirst()) {
+               return null;
+           }
+           Object[] row = new Object[NOTE_CACHE_COLUMNS.length];
+           for (int i = 0; i < row.length; i++) {
+               row[i] = readValue(c, i);
+           }
+           int compressedColumn = NOTE_CACHE_COLUMNS.length;
+           int editColumn = compressedColumn + 1;
+           String note = (String) row[NOTE_CACHE_NOTE_INDEX];
+           if (!c.isNull(compressedColumn)) {
+               note = note + decompress(c.getBlob(compressedColumn), noteId);
+           }
+           if (!c.isNull(editColumn)) {
+               c.moveToPosition(-1);
+               EditJournal.Folded folded = EditJournal.apply(note, c, editColumn);
+               note = folded.text;
+               Long modified = (Long) row[NOTE_CACHE_MODIFIED_INDEX];
+               row[NOTE_CACHE_MODIFIED_INDEX] = Math.max(modified != null ? modified : 0,
+                       folded.lastEdit);
+               row[NOTE_CACHE_SNIPPET_INDEX] = NoteSnippet.of(note);
+           }
+           row[NOTE_CACHE_NOTE_INDEX] = note;
+           return row;
+       } finally {
+           c.close();
+       }
+   }
 
-            // 如果模式是用于notes或live文件夹，则返回null。这种类型的URI不支持数据流。
-            case NOTES:
-            case LIVE_FOLDER_NOTES:
-                return null;
+   private static String buildNoteRowQuery() {
+       // 每个笔记只有一行的正文是完整的：没有编辑时的唯一一行，或者第一条编辑所在的一行
+       String firstRow = "(e." + NotePad.NoteEdits._ID + " IS NULL OR e."
+               + NotePad.NoteEdits._ID + " = (SELECT MIN(" + NotePad.NoteEdits._ID + ") FROM "
+               + NotePad.NoteEdits.TABLE_NAME + " WHERE "
+               + NotePad.NoteEdits.COLUMN_NAME_NOTE_ID + " = n." + NotePad.Notes._ID + "))";
+       StringBuilder sql = new StringBuilder("SELECT ");
+       for (String column : NOTE_CACHE_COLUMNS) {
+           if (column.equals(NotePad.Notes.COLUMN_NAME_NOTE)) {
+               sql.append("CASE WHEN ").append(firstRow).append(" THEN n.").append(column)
+                       .append(" END, ");
+           } else {
+               sql.append("n.").append(column).append(", ");
+           }
+       }
+       sql.append("CASE WHEN ").append(firstRow).append(" THEN n.")
+               .append(COLUMN_NAME_NOTE_COMPRESSED).append(" END, e.")
+               .append(NotePad.NoteEdits.COLUMN_NAME_POSITION).append(", e.")
+               .append(NotePad.NoteEdits.COLUMN_NAME_DELETED).append(", e.")
+               .append(NotePad.NoteEdits.COLUMN_NAME_INSERTED).append(", e.")
+               .append(NotePad.NoteEdits.COLUMN_NAME_CREATE_DATE).append(" FROM ")
+               .append(NotePad.Notes.TABLE_NAME).append(" n LEFT JOIN ")
+               .append(NotePad.NoteEdits.TABLE_NAME).append(" e ON e.")
+               .append(NotePad.NoteEdits.COLUMN_NAME_NOTE_ID).append(" = n.")
+               .append(NotePad.Notes._ID).append(" WHERE n.").append(NotePad.Notes._ID)
+               .append(" = ? ORDER BY e.").append(NotePad.NoteEdits._ID);
+       return sql.toString();
+   }
 
-            // 如果模式是用于注释id，而MIME过滤器是文本/ plain，则返回文本/ plain
-            case NOTE_ID:
-                return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+   /**
+    * 目录查询返回的游标。有还没有合并的编辑日志的笔记，正文、修改时间和摘要在读取这一行时还原。
+    */
+   private static final class JournaledNotesCursor extends CursorWrapper {
+       private final SQLiteDatabase mDb;
+       private final Set<Long> mJournaledNotes;
+       private final int mIdColumn;
+       private final int mNoteColumn;
+       private final int mModifiedColumn;
+       private final int mSnippetColumn;
+
+       // 当前行还原之后的值，没有日志的行为null
+       private int mResolvedPosition = -1;
+       private Object[] mResolved;
+
+       JournaledNotesCursor(Cursor cursor, SQLiteDatabase db, Set<Long> journaledNotes) {
+           super(cursor);
+           mDb = db;
+           mJournaledNotes = journaledNotes;
+           mIdColumn = cursor.getColumnIndexOrThrow(NotePad.Notes._ID);
+           mNoteColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+           mModifiedColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+           mSnippetColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET);
+       }
 
-                //如果URI模式不匹配任何允许的模式，则抛出异常。
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
-            }
-    }
+       @Override
+       public String getString(int column) {
+           Object[] row = resolve();
+           if (row != null && column == mNoteColumn) {
+               return (String) row[NOTE_CACHE_NOTE_INDEX];
+           }
+           if (row != null && column == mSnippetColumn) {
+               return (String) row[NOTE_CACHE_SNIPPET_INDEX];
+           }
+           return super.getString(column);
+       }
 
+       @Override
+       public long getLong(int column) {
+           Object[] row = resolve();
+           if (row != null && column == mModifiedColumn) {
+               return (Long) row[NOTE_CACHE_MODIFIED_INDEX];
+           }
+           return super.getLong(column);
+       }
 
-    /**
-     *返回每个支持流类型的数据流。此方法对传入的URI进行查询，然后使用
-     * { @ link android. content . content。ContentProvider #
-     * openPipeHelper(Uri,String,Bundle,Object,PipeDataWriter)}以启动另一个线程，以将数据转换为流。
-     *
-     *@ param uri指向数据流的uri模式
-     @ param mimeTypeFilter一个包含MIME类型的字符串。这个方法试图得到一个流
-     带有此MIME类型的数据。
-     @ param选择调用者提供的其他选项。可以解释为
-     由内容提供商所要求的。
-     * @ return AssetFileDescriptor为文件的句柄。
-     * @抛出FileNotFoundException，如果没有与传入URI关联的文件。
-     */
-    @Override
-    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
-            throws FileNotFoundException {
+       private Object[] resolve() {
+           int position = getPosition();
+           if (position != mResolvedPosition) {
+               mResolvedPosition = position;
+               long noteId = getWrappedCursor().getLong(mIdColumn);
+               mResolved = mJournaledNotes.contains(noteId) ? readNoteRow(mDb, noteId, null) : null;
+           }
+           return mResolved;
+       }
+   }
+
+   /**
+    * 读取单个笔记。笔记在缓存中时不访问数据库；否则读取缓存的所有列，还原正文之后放入缓存。
+    *
+    * @throws IllegalArgumentException 如果投影中有未知的列
+    */
+   private Cursor queryNote(long noteId, String[] projection,
+           CancellationSignal cancellationSignal) {
+       Cursor cached = mNoteCache.query(noteId, projection);
+       if (cached != null) {
+           return cached;
+       }
+
+       // 在读取数据库之前取得代数，读取期间笔记被修改时不会把旧的内容放入缓存
+       long generation = mNoteCache.getGeneration();
+       Object[] row = readNoteRow(mOpenHelper.getReadableDatabase(), noteId, cancellationSignal);
+
+       if (row != null) {
+           mNoteCache.put(noteId, row, generation);
+       }
+       return mNoteCache.toCursor(row, projection);
+   }
+
+   /**
+    * 解析分页URI中的页大小。
+    *
+    * @throws IllegalArgumentException 如果页大小不是正整数
+    */
+   private static int parsePageSize(String limit) {
+       if (limit == null) {
+           return DEFAULT_PAGE_SIZE;
+       }
+       try {
+           int pageSize = Integer.parseInt(limit);
+           if (pageSize > 0) {
+               return pageSize;
+           }
+       } catch (NumberFormatException e) {
+           // 在下面抛出异常
+       }
+       throw new IllegalArgumentException("Invalid page size " + limit);
+   }
+
+   /**
+    * 解析分页URI中的位置，格式为“修改时间,ID”。
+    *
+    * @return 包含修改时间和ID的两个元素的数组
+    * @throws IllegalArgumentException 如果位置的格式不正确
+    */
+   private static long[] parsePagePosition(String after) {
+       int comma = after.indexOf(',');
+       if (comma > 0) {
+           try {
+               return new long[] {
+                       Long.parseLong(after.substring(0, comma)),
+                       Long.parseLong(after.substring(comma + 1)) };
+           } catch (NumberFormatException e) {
+               // 在下面抛出异常
+           }
+       }
+       throw new IllegalArgumentException("Invalid page position " + after);
+   }
+
+   /**
+    * 把投影中缺少的列追加到投影的末尾。投影为null时返回所有列，不需要追加。
+    */
+   private static String[] appendColumns(String[] projection, String... columns) {
+       if (projection == null) {
+           return null;
+       }
+       ArrayList<String> result = new ArrayList<String>(Arrays.asList(projection));
+       for (String column : columns) {
+           if (!result.contains(column)) {
+               result.add(column);
+           }
+       }
+       return result.toArray(new String[result.size()]);
+   }
+
+   /**
+    * 分页查询返回的游标。附加数据中带有读取下一页时使用的位置，即本页最后一行的修改时间和ID。
+    * 本页不满时说明已经没有更多记录，不带位置。
+    */
+   private static final class PageCursor extends CursorWrapper {
+       private final Bundle mExtras = new Bundle();
+
+       PageCursor(Cursor cursor, int pageSize) {
+           super(cursor);
+           if (cursor.getCount() == pageSize && cursor.moveToLast()) {
+               mExtras.putString(NotePad.Notes.EXTRA_NEXT_PAGE,
+                       cursor.getLong(cursor.getColumnIndexOrThrow(
+                               NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE))
+                       + "," + cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes._ID)));
+               cursor.moveToPosition(-1);
+           }
+       }
+
+       @Override
+       public Bundle getExtras() {
+           return mExtras;
+       }
+   }
+
+   /**
+    * 把用户输入的搜索文本转换为FTS的MATCH表达式。文本按ASCII的非字母数字字符切分为词项，
+    * 与FTS默认分词器的规则一致；每个词项按前缀匹配，多个词项之间是“与”的关系。
+    *
+    * @param text 用户输入的搜索文本
+    * @return MATCH表达式，如果文本中没有任何词项则返回null
+    */
+   static String buildMatchQuery(String text) {
+       if (text == null) {
+           return null;
+       }
+       StringBuilder match = new StringBuilder();
+       StringBuilder term = new StringBuilder();
+       int length = text.length();
+       for (int i = 0; i <= length; i++) {
+           char c = i < length ? text.charAt(i) : ' ';
+           if (c >= 128 || Character.isLetterOrDigit(c)) {
+               // 转为小写，避免AND、OR、NOT等词项被当作运算符
+               term.append(Character.toLowerCase(c));
+           } else if (term.length() > 0) {
+               if (match.length() > 0) {
+                   match.append(' ');
+               }
+               match.append(term).append('*');
+               term.setLength(0);
+           }
+       }
+       return match.length() == 0 ? null : match.toString();
+   }
+
+   /**
+    * 把笔记ID连接为逗号分隔的列表，用于IN条件。ID是整数，可以直接写入SQL。
+    */
+   private static String joinIds(long[] ids) {
+       StringBuilder list = new StringBuilder();
+       for (long id : ids) {
+           if (list.length() > 0) {
+               list.append(',');
+           }
+           list.append(id);
+       }
+       return list.toString();
+   }
+
+   /**
+    * 构造按ids中的顺序排列笔记的排序子句。
+    */
+   private static String buildRankOrder(long[] ids) {
+       StringBuilder order = new StringBuilder("CASE " + NotePad.Notes._ID);
+       for (int i = 0; i < ids.length; i++) {
+           order.append(" WHEN ").append(ids[i]).append(" THEN ").append(i);
+       }
+       return order.append(" ELSE ").append(ids.length).append(" END").toString();
+   }
+
+   /**
+    * 构造把与搜索文本最相关的笔记排在前面的排序子句，见{ @ link SearchRanker }。只为得分最高的
+    * { @ link # RANKED_SEARCH_RESULTS }个笔记排序，其余的笔记(以及只按子串匹配、不按词项匹配的笔记)
+    * 排在后面，按修改时间排序。
+    */
+   private String buildRelevanceOrder(String text, CancellationSignal cancellationSignal) {
+       String matchQuery = buildMatchQuery(text);
+       if (matchQuery == null) {
+           return NotePad.Notes.DEFAULT_SORT_ORDER;
+       }
+       long[] ids = SearchRanker.topMatches(mOpenHelper.getReadableDatabase(), FTS_TABLE_NAME,
+               matchQuery, RANKED_SEARCH_RESULTS, System.currentTimeMillis(), cancellationSignal);
+       if (ids.length == 0) {
+           return NotePad.Notes.DEFAULT_SORT_ORDER;
+       }
+       return buildRankOrder(ids) + ", " + NotePad.Notes.DEFAULT_SORT_ORDER;
+   }
+
+   /**
+    * 在查询中加入选择包含text子串的笔记的条件，返回加上条件的参数之后的选择参数。
+    * 还没有建立索引的笔记在查询中直接查找，索引在后台建立，查询不写数据库。
+    */
+   private String[] appendSubstringWhere(SQLiteQueryBuilder qb, String text,
+           String[] selectionArgs) {
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+       if (TrigramIndex.hasPending(db)) {
+           // 例如升级数据库之后所有笔记都在等待建立索引，而还没有笔记被修改过
+           scheduleTrigramSync();
+       }
+       List<String> args = new ArrayList<String>();
+       String where = TrigramIndex.buildSelection(db, text, args);
+       if (where == null) {
+           // 搜索词为空，不返回任何记录
+           qb.appendWhere("0");
+           return selectionArgs;
+       }
+       qb.appendWhere(where);
+       for (int i = args.size() - 1; i >= 0; i--) {
+           selectionArgs = prependArgs(args.get(i), selectionArgs);
+       }
+       return selectionArgs;
+   }
+
+   /**
+    * 把一个参数放到已有选择参数的前面，用于在调用者的where子句之前追加自己的条件。
+    */
+   private static String[] prependArgs(String first, String[] rest) {
+       if (rest == null) {
+           return new String[] { first };
+       }
+       String[] args = new String[rest.length + 1];
+       args[0] = first;
+       System.arraycopy(rest, 0, args, 1, rest.length);
+       return args;
+   }
+
+   /**
+    * 当客户调用{ @ link android.content. contentresolver # getType(Uri)}时，调用此操作。
+    * 返回作为参数的URI的MIME数据类型。
+    *
+    * @ param uri，它的MIME类型是需要的。
+    @返回URI的MIME类型。
+    @抛出IllegalArgumentException，如果传入的URI模式无效。
+    */
+   @Override
+   public String getType(Uri uri) {
+
+       /**
+        * 根据传入的URI模式选择MIME类型
+        */
+       switch (sUriMatcher.match(uri)) {
+
+           // 如果模式是用于notes、live文件夹、搜索结果或分页，则返回一般内容类型。
+           case NOTES:
+           case LIVE_FOLDER_NOTES:
+           case SEARCH:
+           case PAGE:
+               return NotePad.Notes.CONTENT_TYPE;
+
+           // 如果模式是用于编辑日志，则返回编辑日志的内容类型。
+           case NOTE_EDITS:
+               return NotePad.NoteEdits.CONTENT_TYPE;
+
+           // 如果模式是用于版本历史，则返回版本的内容类型。
+           case REVISIONS:
+               return NotePad.NoteRevisions.CONTENT_TYPE;
+
+           case REVISION_ID:
+               return NotePad.NoteRevisions.CONTENT_ITEM_TYPE;
+
+           // 如果模式是用于注释ID，则返回注释ID内容类型。
+           case NOTE_ID:
+               return NotePad.Notes.CONTENT_ITEM_TYPE;
+
+           // 如果URI模式不匹配任何允许的模式，则抛出异常。
+           default:
+               throw new IllegalArgumentException("Unknown URI " + uri);
+       }
+    }
+
+//BEGIN_INCLUDE(stream)
+    /**
+     * 这描述了支持打开注释URI作为流的MIME类型。
+     */
+    static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
+            new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
+
+    /**
+     * 这描述了支持打开notes目录URI作为流的MIME类型，即导出所有笔记。
+     */
+    static ClipDescription NOTES_STREAM_TYPES = new ClipDescription(null,
+            new String[] { NotePad.Notes.EXPORT_MIME_TYPE });
+
+    /**
+     * 返回可用数据流的类型。支持特定的uri。应用程序可以将这样的注释转换为纯文本流。
+     *
+     * @ param uri用于分析
+     * @ param mimeTypeFilter来检查MIME类型。这个方法只返回一个数据流
+     类型用于匹配过滤器的MIME类型。目前，只有文本/纯MIME类型匹配。
+     @返回数据流MIME类型。目前，只返回文本/计划。
+     @抛出IllegalArgumentException，如果URI模式不匹配任何受支持的模式。
+     */
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        /**
+         *  根据传入的URI模式选择数据流类型。
+         */
+        switch (sUriMatcher.match(uri)) {
+
+            // 如果模式是用于notes，而MIME过滤器与导出的类型匹配，则返回导出的类型
+            case NOTES:
+                return NOTES_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // 如果模式是用于live文件夹、搜索、分页、编辑日志或版本历史，则返回null。这种类型的URI不支持数据流。
+            case LIVE_FOLDER_NOTES:
+            case SEARCH:
+            case PAGE:
+            case NOTE_EDITS:
+            case REVISIONS:
+            case REVISION_ID:
+                return null;
+
+            // 如果模式是用于注释id，而MIME过滤器是文本/ plain，则返回文本/ plain
+            case NOTE_ID:
+                return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+                //如果URI模式不匹配任何允许的模式，则抛出异常。
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+            }
+    }
+
+
+    /**
+     *返回每个支持流类型的数据流。此方法对传入的URI进行查询，然后使用
+     * { @ link android. content . content。ContentProvider #
+     * openPipeHelper(Uri,String,Bundle,Object,PipeDataWriter)}以启动另一个线程，以将数据转换为流。
+     *
+     *@ param uri指向数据流的uri模式
+     @ param mimeTypeFilter一个包含MIME类型的字符串。这个方法试图得到一个流
+     带有此MIME类型的数据。
+     @ param选择调用者提供的其他选项。可以解释为
+     由内容提供商所要求的。
+     * @ return AssetFileDescriptor为文件的句柄。
+     * @抛出FileNotFoundException，如果没有与传入URI关联的文件。
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
 
         // 检查MIME类型过滤器是否匹配支持的MIME类型。
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        // 导出所有笔记。导出的范围在打开时确定，之后新建的笔记不包括在内。
+        if (mimeTypes != null && sUriMatcher.match(uri) == NOTES) {
+            return new AssetFileDescriptor(openExportPipe(uri), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         // 如果支持MIME类型
         if (mimeTypes != null) {
 
@@ -452,9 +1576,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
             pw.println(c.getString(READ_NOTE_TITLE_INDEX));
             pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
+            String noteFile = c.getString(READ_NOTE_FILE_INDEX);
+            if (noteFile == null) {
+                pw.println(c.getString(READ_NOTE_NOTE_INDEX));
+            } else {
+                // 保存在文件中的正文分块复制到管道，不整个读入内存
+                mNoteFiles.copyTo(noteFile, pw);
+                pw.println();
+            }
         } catch (UnsupportedEncodingException e) {
             Log.w(TAG, "Ooops", e);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read note file for " + uri, e);
         } finally {
             c.close();
             if (pw != null) {
@@ -466,8 +1599,218 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             }
         }
     }
+    /**
+     * 打开导出所有笔记的管道，在另一个线程上把笔记写入管道。导出期间不清理正文文件，否则导出读到
+     * 文件名之后、打开文件之前，文件可能已经被删除。
+     *
+     * 管道是可靠的管道：导出失败时写入的一方带着错误关闭管道，读取的一方读到结尾后可以用
+     * { @ link ParcelFileDescriptor # checkError }区分完整的导出和中途失败的导出。
+     */
+    private ParcelFileDescriptor openExportPipe(final Uri uri) throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Unable to create pipe for " + uri + ": " + e);
+        }
+        final long lastId = mExporter.lastNoteId();
+        mBackupsRunning.incrementAndGet();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    exportToPipe(pipe[1], uri, lastId);
+                } finally {
+                    mBackupsRunning.decrementAndGet();
+
+                    // 导出期间跳过的清理
+                    scheduleSweep();
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    /**
+     * 把ID不超过lastId的所有笔记写入管道，然后关闭管道。失败时带着错误关闭管道。
+     */
+    private void exportToPipe(ParcelFileDescriptor output, Uri uri, long lastId) {
+        String error = null;
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(output.getFileDescriptor()), "UTF-8"),
+                    EXPORT_BUFFER_SIZE);
+            int count = mExporter.export(lastId, writer);
+            writer.flush();
+            Log.i(TAG, "Exported " + count + " notes");
+        } catch (IOException e) {
+            // 读取的一方提前关闭了管道，或者读不到某个笔记的正文文件
+            Log.w(TAG, "Export of " + uri + " failed", e);
+            error = "Export failed: " + e;
+        } catch (SQLException e) {
+            Log.e(TAG, "Export of " + uri + " failed", e);
+            error = "Export failed: " + e;
+        } finally {
+            try {
+                if (error == null) {
+                    output.close();
+                } else {
+                    output.closeWithError(error);
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
 //END_INCLUDE(stream)
 
+    /**
+     * 打开一个笔记的正文文件用于读取，客户端通过{ @ link android.content.ContentResolver # openInputStream }
+     * 调用。只有正文保存在文件中的笔记才有文件，见{ @ link NotePad.Notes # COLUMN_NAME_NOTE_FILE }。
+     * 文件写入之后不再修改，所以返回的描述符总是读到一个完整的版本，即使笔记随后又被保存。
+     *
+     * @throws FileNotFoundException 如果URI不是单个笔记，笔记不存在，或者正文没有保存在文件中
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != NOTE_ID || !"r".equals(mode)) {
+            throw new FileNotFoundException("Unsupported URI or mode " + uri + " " + mode);
+        }
+
+        String noteFile;
+        Cursor c = query(uri, new String[] { NotePad.Notes.COLUMN_NAME_NOTE_FILE }, null, null,
+                null);
+        try {
+            if (!c.moveToFirst()) {
+                throw new FileNotFoundException("Unable to query " + uri);
+            }
+            noteFile = c.getString(0);
+        } finally {
+            c.close();
+        }
+        if (noteFile == null) {
+            throw new FileNotFoundException("Note is not stored in a file " + uri);
+        }
+        return ParcelFileDescriptor.open(mNoteFiles.getFile(noteFile),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * 处理值映射中要写入的正文。超过{ @ link NotePad.Notes # MAX_INLINE_NOTE_LENGTH }的正文写入一个新文件，
+     * 表中只保存正文的开头和文件名；开启了压缩时，较长的正文在表中保存开头和压缩后的其余部分；
+     * 其他正文原样保存在表中。同时生成正文的摘要。文件名、压缩和摘要的列由提供者维护，调用者传入的值被忽略。
+     * 文件写入失败时正文仍然保存在表中。
+     */
+    private void storeNote(ContentValues values) {
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE_FILE);
+        values.remove(COLUMN_NAME_NOTE_COMPRESSED);
+        values.remove(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return;
+        }
+        String text = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, NoteSnippet.of(text));
+        values.putNull(NotePad.Notes.COLUMN_NAME_NOTE_FILE);
+        values.putNull(COLUMN_NAME_NOTE_COMPRESSED);
+        if (text == null || text.length() <= STORED_PREFIX_LENGTH) {
+            return;
+        }
+
+        int end = storedPrefixEnd(text);
+        if (text.length() > NotePad.Notes.MAX_INLINE_NOTE_LENGTH) {
+            try {
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE_FILE, mNoteFiles.write(text));
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.substring(0, end));
+                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write note file, storing the note inline", e);
+            }
+        }
+        if (mCompressNotes) {
+            byte[] compressed = NoteCompression.compress(text.substring(end));
+            if (compressed != null) {
+                values.put(COLUMN_NAME_NOTE_COMPRESSED, compressed);
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.substring(0, end));
+            }
+        }
+    }
+
+    /**
+     * 保存在note列中的正文开头的结束位置。不在代理对的中间截断。
+     */
+    private static int storedPrefixEnd(String text) {
+        int end = STORED_PREFIX_LENGTH;
+        if (Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * 开启或关闭正文的压缩。为了测试的目的，设置了包的可见性。
+     */
+    void setCompressionEnabledForTest(boolean enabled) {
+        mCompressNotes = enabled;
+    }
+
+    /**
+     * 在后台线程上为被修改的笔记更新三元组索引。每个事务只处理一块笔记，处理完一块之后重新排队，
+     * 块之间释放写锁，编辑器的保存不需要等待整个积压处理完。
+     */
+    private void scheduleTrigramSync() {
+        if (!mTrigramSyncScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mTrigramSyncScheduled.set(false);
+                try {
+                    if (TrigramIndex.sync(mOpenHelper.getWritableDatabase(),
+                            TrigramIndex.SYNC_CHUNK_SIZE) == TrigramIndex.SYNC_CHUNK_SIZE) {
+                        scheduleTrigramSync();
+                    }
+                } catch (SQLException e) {
+                    Log.e(TAG, "Failed to update trigram index", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在后台线程上删除不再被任何笔记引用的正文文件。
+     */
+    private void scheduleSweep() {
+        if (!mSweepScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSweepScheduled.set(false);
+                if (mBackupsRunning.get() > 0 || mNoteFiles.isEmpty()) {
+                    return;
+                }
+                try {
+                    Set<String> referenced = new HashSet<String>();
+                    Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Notes.TABLE_NAME,
+                            new String[] { NotePad.Notes.COLUMN_NAME_NOTE_FILE },
+                            NotePad.Notes.COLUMN_NAME_NOTE_FILE + " IS NOT NULL", null,
+                            null, null, null);
+                    try {
+                        while (c.moveToNext()) {
+                            referenced.add(c.getString(0));
+                        }
+                    } finally {
+                        c.close();
+                    }
+                    mNoteFiles.sweep(referenced);
+                } catch (SQLException e) {
+                    Log.e(TAG, "Failed to sweep note files", e);
+                }
+            }
+        });
+    }
+
     /**
      * 这在客户端调用时调用
      * { @link android.content。ContentValues ContentResolver #插入(Uri)}。
@@ -479,6 +1822,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
 
+        // 向编辑日志追加一条编辑，日志足够大时在后台合并。
+        if (sUriMatcher.match(uri) == NOTE_EDITS) {
+            Uri editUri = insertEdits(uri, new ContentValues[] { initialValues });
+            scheduleCompactionIfNeeded(parseNoteId(uri));
+            return editUri;
+        }
+
         // 验证传入的URI。只有完整的提供者URI才允许插入。
         if (sUriMatcher.match(uri) != NOTES) {
             throw new IllegalArgumentException("Unknown URI " + uri);
@@ -520,6 +1870,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
         }
 
+        // 长正文写入文件，表中只保存开头和文件名
+        storeNote(values);
+
         // 在“写”模式中打开数据库对象。
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
@@ -536,7 +1889,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
             // 向在此提供者注册的观察者通知，数据发生了变化。
-            getContext().getContentResolver().notifyChange(noteUri, null);
+            notifyChange(noteUri);
             return noteUri;
         }
 
@@ -578,27 +1931,24 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 // 如果传入的URI匹配单个的注释ID，则根据传入的数据执行删除操作，但修改where子句
                 // 将其限制为特定的注释ID。
             case NOTE_ID:
+                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+
+                // 没有其他选择标准时，使用预编译的删除语句
+                if (where == null) {
+                    count = deleteNote(db, noteId);
+                    break;
+                }
+
                 /*
-                 * 通过将其限制在需要的注释ID上，开始最后的WHERE子句。
+                 * 通过将其限制在需要的注释ID上，开始最后的WHERE子句。注释ID作为绑定参数传入。
                  */
-                finalWhere =
-                        NotePad.Notes._ID +                              // ID列名称
-                        " = " +                                          // 测试平等
-                        uri.getPathSegments().                           // 传入的注意ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // 如果有其他选择标准，将它们附加到决赛
-                // WHERE 语句
-                if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
-                }
+                finalWhere = NotePad.Notes._ID + " = ? AND (" + where + ")";
 
                 // 执行删除。
                 count = db.delete(
-                    NotePad.Notes.TABLE_NAME,  // 数据库表名。
-                    finalWhere,                // 最后一个WHERE子句
-                    whereArgs                  // 传入where子句的值。
+                    NotePad.Notes.TABLE_NAME,            // 数据库表名。
+                    finalWhere,                          // 最后一个WHERE子句
+                    prependArgs(noteId, whereArgs)       // 注释ID和传入where子句的值。
                 );
                 break;
 
@@ -610,7 +1960,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         /**获取当前上下文的内容解析器对象的句柄，并通知传入URI更改。对象将此传递给解析器框架，
         并通知为提供者注册的观察者。
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyChange(uri);
+
+            // 被删除的笔记的正文文件不再被引用
+            scheduleSweep();
+        }
 
         // 返回删除的行数。
         return count;
@@ -640,64 +1995,713 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         int count;
         String finalWhere;
 
-        // 更新是否基于传入的URI模式
-        switch (sUriMatcher.match(uri)) {
-
-            // 如果传入的URI与一般的notes模式匹配，那么根据传入数据进行更新。
-            case NOTES:
+        // 写入正文时，长正文写入文件，表中只保存开头和文件名。不修改调用者的值映射。
+        boolean writesNote = values != null
+                && (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)
+                        || values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE_FILE)
+                        || values.containsKey(COLUMN_NAME_NOTE_COMPRESSED)
+                        || values.containsKey(NotePad.Notes.COLUMN_NAME_SNIPPET));
+        String revisionText = null;
+        if (writesNote) {
+            values = new ContentValues(values);
+            revisionText = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            storeNote(values);
+        }
 
-                // 执行更新并返回更新的行数。
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // 数据库表名。
-                    values,                   // 使用的列名称和新值的映射。
-                    where,                    // where子句列名。
-                    whereArgs                 // where子句的列值选择。
-                );
-                break;
+        // 整体写入的正文在同一个事务中记录为笔记的新版本
+        int match = sUriMatcher.match(uri);
+        boolean recordsRevision = revisionText != null && (match == NOTES || match == NOTE_ID);
+        if (recordsRevision) {
+            db.beginTransactionNonExclusive();
+        }
+        try {
+            long[] revisedIds = null;
+            if (recordsRevision && match == NOTES) {
+                revisedIds = queryNoteIds(db, where, whereArgs);
+            } else if (recordsRevision) {
+                revisedIds = new long[] { parseNoteId(uri) };
+            }
 
-            // 如果传入的URI匹配单个的注释ID，则根据传入的数据进行更新，但是修改where子句将其限制为特定的注释ID。
-            case NOTE_ID:
-                // 从传入的URI中获取注释ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+            // 更新是否基于传入的URI模式
+            switch (match) {
+
+                // 如果传入的URI与一般的notes模式匹配，那么根据传入数据进行更新。
+                case NOTES:
+
+                    // 执行更新并返回更新的行数。
+                    count = db.update(
+                        NotePad.Notes.TABLE_NAME, // 数据库表名。
+                        values,                   // 使用的列名称和新值的映射。
+                        where,                    // where子句列名。
+                        whereArgs                 // where子句的列值选择。
+                    );
+                    break;
+
+                // 如果传入的URI匹配单个的注释ID，则根据传入的数据进行更新，但是修改where子句将其限制为特定的注释ID。
+                case NOTE_ID:
+                    // 从传入的URI中获取注释ID
+                    String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+
+                    // 编辑器保存笔记走的是这条路径：没有其他选择标准时，使用按列缓存的预编译更新语句
+                    if (where == null && values != null && values.size() > 0) {
+                        count = updateNote(db, noteId, values);
+                        break;
+                    }
+
+                    /*
+                     * 开始创建最终的WHERE子句，将其限制为传入的注释ID。注释ID作为绑定参数传入。
+                     */
+                    finalWhere = NotePad.Notes._ID + " = ?";
+
+                    // 如果有其他选择标准，将它们附加到最后的WHERE子句
+                    if (where != null) {
+                        finalWhere = finalWhere + " AND (" + where + ")";
+                    }
+
+
+                    // 执行更新并返回更新的行数。
+                    count = db.update(
+                        NotePad.Notes.TABLE_NAME,          // 数据库表名。
+                        values,                            // 使用的列名称和新值的映射。
+                        finalWhere,                        // 使用占位符的最后WHERE子句
+                        prependArgs(noteId, whereArgs)     // 注释ID和where子句的列值选择。
+                    );
+                    break;
+                // 如果传入模式无效，则抛出异常。
+                default:
+                    throw new IllegalArgumentException("Unknown URI " + uri);
+            }
 
-                /*
-                 * 开始创建最终的WHERE子句，将其限制为传入的注释ID。
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // ID列名称
-                        " = " +                                          // 测试平等
-                        uri.getPathSegments().                           //传入的注意ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // 如果有其他选择标准，将它们附加到最后的WHERE子句
-                if (where !=null) {
-                    finalWhere = finalWhere + " AND " + where;
+            if (recordsRevision && count > 0) {
+                long now = System.currentTimeMillis();
+                for (long id : revisedIds) {
+                    RevisionHistory.record(db, id, revisionText, now);
                 }
-
-
-                // 执行更新并返回更新的行数。
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // 数据库表名。
-                    values,                   // 使用的列名称和新值的映射。
-                    finalWhere,               // 使用占位符的最后WHERE子句
-                    whereArgs                 // 如果值在where参数中，则在where子句列值选择on或null。
-                );
-                break;
-            // 如果传入模式无效，则抛出异常。
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+            }
+            if (recordsRevision) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            if (recordsRevision) {
+                db.endTransaction();
+            }
         }
 
         /*获取当前上下文的内容解析器对象的句柄，并通知传入URI更改。对象将此传递给解析器框架，
         并通知为提供者注册的观察者。
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyChange(uri);
+
+            // 被替换的正文文件不再被引用
+            if (writesNote) {
+                scheduleSweep();
+            }
+        }
 
         //返回更新的行数。
         return count;
     }
 
+    /**
+     * 返回满足条件的所有笔记的ID。
+     */
+    private static long[] queryNoteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID }, where,
+                whereArgs, null, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 使用缓存的预编译语句删除一条笔记。
+     *
+     * @return 删除的行数
+     */
+    private int deleteNote(SQLiteDatabase db, String noteId) {
+
+        // 先取得数据库连接再锁定语句，与其他线程在事务中使用语句时的加锁顺序一致，避免死锁。
+        db.beginTransactionNonExclusive();
+        try {
+            int count;
+            synchronized (mStatementLock) {
+                if (mDeleteStatement == null || mStatementDatabase != db) {
+                    resetStatementsLocked(db);
+                    mDeleteStatement = db.compileStatement("DELETE FROM " + NotePad.Notes.TABLE_NAME
+                            + " WHERE " + NotePad.Notes._ID + " = ?");
+                }
+                mDeleteStatement.bindString(1, noteId);
+                count = mDeleteStatement.executeUpdateDelete();
+                mDeleteStatement.clearBindings();
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 使用缓存的预编译语句更新一条笔记。语句按更新的列缓存，同一组列的更新只编译一次。
+     *
+     * @return 更新的行数
+     */
+    private int updateNote(SQLiteDatabase db, String noteId, ContentValues values) {
+
+        // 按列名排序，使同一组列无论放入ContentValues的顺序如何都对应同一条语句
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        String key = TextUtils.join(",", columns);
+
+        // 先取得数据库连接再锁定语句，与其他线程在事务中使用语句时的加锁顺序一致，避免死锁。
+        db.beginTransactionNonExclusive();
+        try {
+            int count;
+            synchronized (mStatementLock) {
+                if (mStatementDatabase != db) {
+                    resetStatementsLocked(db);
+                }
+                SQLiteStatement statement = mUpdateStatements.get(key);
+                if (statement == null) {
+                    StringBuilder sql = new StringBuilder("UPDATE ")
+                            .append(NotePad.Notes.TABLE_NAME).append(" SET ");
+                    for (int i = 0; i < columns.length; i++) {
+                        sql.append(i > 0 ? "," : "").append(columns[i]).append("=?");
+                    }
+                    sql.append(" WHERE ").append(NotePad.Notes._ID).append(" = ?");
+                    statement = db.compileStatement(sql.toString());
+                    mUpdateStatements.put(key, statement);
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+                }
+                statement.bindString(columns.length + 1, noteId);
+                count = statement.executeUpdateDelete();
+                statement.clearBindings();
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 关闭所有缓存的语句，并把缓存关联到给定的数据库。调用者必须持有mStatementLock。
+     */
+    private void resetStatementsLocked(SQLiteDatabase db) {
+        for (SQLiteStatement statement : mUpdateStatements.values()) {
+            statement.close();
+        }
+        mUpdateStatements.clear();
+        if (mDeleteStatement != null) {
+            mDeleteStatement.close();
+            mDeleteStatement = null;
+        }
+        mStatementDatabase = db;
+    }
+
+    /**
+     * 在一个事务中插入多条笔记。逐条调用insert()时每一条都是一个独立的隐式事务，各自同步一次磁盘并
+     * 发送一次通知；这里整批只提交一次，并在提交后只通知一次。有其他线程在等待数据库时，
+     * 事务会在两条记录之间让出，避免长时间的导入阻塞读取。
+     *
+     * @return 插入的行数
+     * @throws IllegalArgumentException 如果传入的URI不是notes目录
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+
+        // 只有完整的提供者URI和编辑日志URI才允许插入。
+        int match = sUriMatcher.match(uri);
+        if (match != NOTES && match != NOTE_EDITS) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        // 一次保存的所有编辑在一个事务中追加，之后再检查日志是否需要合并
+        if (match == NOTE_EDITS) {
+            insertEdits(uri, values);
+            scheduleCompactionIfNeeded(parseNoteId(uri));
+            return values.length;
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        beginBatch();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    db.yieldIfContendedSafely();
+                }
+                insert(uri, values[i]);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+
+            // 整批插入完成后只通知一次
+            endBatch(true);
+        }
+        return values.length;
+    }
+
+    /**
+     * 在一个事务中执行一组操作。任何一个操作失败时整批回滚(已经在让出点提交的部分除外)。
+     * 允许让出的操作(见{ @ link ContentProviderOperation # isYieldAllowed })之前，
+     * 如果有其他线程在等待数据库，事务会先提交再重新开始。
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int numOperations = operations.size();
+        ContentProviderResult[] results = new ContentProviderResult[numOperations];
+
+        beginBatch();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+
+            // 整批操作完成后，每个发生变化的URI最多只通知一次
+            endBatch(true);
+        }
+        return results;
+    }
+
+    /**
+     * 在一个事务中向uri指定的笔记的编辑日志追加一组编辑，即编辑器的一次保存。同一个事务中更新笔记的
+     * 修改时间，有编辑落在生成摘要的范围内时同时更新摘要，所以列表和分页查询在日志合并之前也能得到
+     * 正确的日期、摘要和顺序；并把编辑后的正文记录为一个版本。
+     * 提交之后通知一次，列表索引和标题索引随通知更新这个笔记。
+     *
+     * @return 最后一条编辑的URI，没有编辑时返回null
+     * @throws SQLException 如果笔记不存在，或者正文没有原样保存在表中
+     */
+    private Uri insertEdits(Uri uri, ContentValues[] edits) {
+        if (edits.length == 0) {
+            return null;
+        }
+        long noteId = parseNoteId(uri);
+        long now = System.currentTimeMillis();
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long rowId = -1;
+        boolean snippetChanged = false;
+        db.beginTransaction();
+        try {
+            for (ContentValues values : edits) {
+                if (values == null) {
+                    values = new ContentValues();
+                }
+                rowId = EditJournal.append(db, noteId, values, now);
+                if (rowId <= 0) {
+                    throw new SQLException("Failed to insert row into " + uri);
+                }
+                snippetChanged |= EditJournal.changesSnippet(values);
+            }
+
+            // 与整体写入的保存一样，每次保存都把编辑后的正文记录为一个版本
+            String text = EditJournal.foldedText(db, noteId);
+            EditJournal.touch(db, noteId, now, snippetChanged ? NoteSnippet.of(text) : null);
+            RevisionHistory.record(db, noteId, text, now);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // 笔记的正文发生了变化
+        notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId));
+        return ContentUris.withAppendedId(uri, rowId);
+    }
+
+    /**
+     * 从笔记或编辑日志的URI中取得笔记ID。
+     */
+    private static long parseNoteId(Uri uri) {
+        return Long.parseLong(uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+    }
+
+    /**
+     * 客户端通过{ @ link android.content.ContentResolver # call }调用的方法。支持
+     * { @ link NotePad.NoteEdits # METHOD_COMPACT }，在后台合并一个笔记的编辑日志；以及
+     * { @ link NotePad.Notes # METHOD_IMPORT }，从数据流导入笔记；{ @ link NotePad.Notes # METHOD_BACKUP }和
+     * { @ link NotePad.Notes # METHOD_RESTORE }，备份和恢复所有笔记；
+     * { @ link NotePad.NoteRevisions # METHOD_RECORD }，把笔记当前的正文记录为一个版本；
+     * { @ link NotePad.NoteRevisions # METHOD_UNPIN }，取消笔记的固定版本。
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.NoteEdits.METHOD_COMPACT.equals(method)) {
+            scheduleCompaction(Long.parseLong(arg));
+            return null;
+        }
+        if (NotePad.Notes.METHOD_IMPORT.equals(method)) {
+            return importNotes(arg, extras);
+        }
+        if (NotePad.NoteRevisions.METHOD_RECORD.equals(method)) {
+            return recordRevision(Long.parseLong(arg),
+                    extras != null && extras.getBoolean(NotePad.NoteRevisions.EXTRA_PIN));
+        }
+        if (NotePad.NoteRevisions.METHOD_UNPIN.equals(method)) {
+            RevisionHistory.unpin(mOpenHelper.getWritableDatabase(), Long.parseLong(arg));
+            return null;
+        }
+        if (NotePad.Notes.METHOD_BACKUP.equals(method)) {
+            backup(extras);
+            return null;
+        }
+        if (NotePad.Notes.METHOD_RESTORE.equals(method)) {
+            return restore(extras);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * 从extras中的数据流导入笔记。解析在{ @ link NoteImporter }的线程上进行，这里只负责写入：
+     * 每一批笔记和导入的进度在同一个事务中提交，批与批之间其他的读写可以进行。
+     *
+     * @return 包含{ @ link NotePad.Notes # EXTRA_IMPORTED_COUNT }的Bundle
+     * @throws IllegalArgumentException 如果缺少数据流、不支持数据流的格式，或者数据流中有格式错误的笔记
+     * @throws IllegalStateException 如果读取数据流失败
+     */
+    private Bundle importNotes(String mimeType, Bundle extras) {
+        ParcelFileDescriptor file = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(NotePad.Notes.EXTRA_IMPORT_FILE) : null;
+        if (file == null) {
+            throw new IllegalArgumentException("Missing " + NotePad.Notes.EXTRA_IMPORT_FILE);
+        }
+        String importId = extras.getString(NotePad.Notes.EXTRA_IMPORT_ID);
+        ResultReceiver receiver = extras.getParcelable(NotePad.Notes.EXTRA_IMPORT_RECEIVER);
+
+        NoteImporter importer;
+        try {
+            importer = new NoteImporter(new ParcelFileDescriptor.AutoCloseInputStream(file), mimeType);
+        } catch (IllegalArgumentException e) {
+            try {
+                file.close();
+            } catch (IOException closeError) {
+            }
+            throw e;
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long committed = importId != null ? NoteImporter.getCheckpoint(db, importId) : 0;
+        importer.start(committed);
+
+        // 导入的大笔记的正文文件先写入，插入笔记的事务提交之前没有被引用，导入期间不能清理
+        mBackupsRunning.incrementAndGet();
+        try {
+            List<ContentValues> batch;
+            while ((batch = importer.nextBatch()) != null) {
+                beginBatch();
+                db.beginTransaction();
+                try {
+                    for (ContentValues values : batch) {
+                        insert(NotePad.Notes.CONTENT_URI, values);
+                    }
+                    if (importId != null) {
+                        NoteImporter.saveCheckpoint(db, importId, committed + batch.size(),
+                                System.currentTimeMillis());
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+
+                    // 每一批只通知一次
+                    endBatch(true);
+                }
+                committed += batch.size();
+
+                if (receiver != null) {
+                    Bundle progress = new Bundle();
+                    progress.putLong(NotePad.Notes.EXTRA_IMPORTED_COUNT, committed);
+                    receiver.send(0, progress);
+                }
+            }
+
+            // 导入已经完成，不再需要进度
+            if (importId != null) {
+                NoteImporter.deleteCheckpoint(db, importId);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Import failed after " + committed + " notes", e);
+        } finally {
+            importer.close();
+            mBackupsRunning.decrementAndGet();
+
+            // 导入期间跳过的清理
+            scheduleSweep();
+        }
+
+        Log.i(TAG, "Imported " + committed + " notes");
+        Bundle result = new Bundle();
+        result.putLong(NotePad.Notes.EXTRA_IMPORTED_COUNT, committed);
+        return result;
+    }
+
+    /**
+     * 把笔记当前的完整正文(包括编辑日志中的修改)记录为一个版本。读取正文和记录版本在同一个事务中，
+     * 不会与保存交错。
+     *
+     * @param pin 是否固定这个版本，见{ @ link RevisionHistory # pin }
+     * @return 包含{ @ link NotePad.NoteRevisions # EXTRA_REVISION_ID }的Bundle，笔记不存在或者正文
+     *         保存在文件中时返回null
+     */
+    private Bundle recordRevision(long noteId, boolean pin) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor c = query(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId),
+                    new String[] { NotePad.Notes.COLUMN_NAME_NOTE,
+                            NotePad.Notes.COLUMN_NAME_NOTE_FILE }, null, null, null);
+            String text;
+            try {
+                if (!c.moveToFirst() || !c.isNull(1)) {
+                    return null;
+                }
+                text = c.getString(0);
+            } finally {
+                c.close();
+            }
+            long revisionId = RevisionHistory.record(db, noteId, text, System.currentTimeMillis());
+            if (pin && revisionId > 0) {
+                RevisionHistory.pin(db, noteId, revisionId, text);
+            }
+            db.setTransactionSuccessful();
+            if (revisionId < 0) {
+                return null;
+            }
+            Bundle result = new Bundle();
+            result.putLong(NotePad.NoteRevisions.EXTRA_REVISION_ID, revisionId);
+            return result;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 把所有笔记备份到extras中的文件。
+     *
+     * @throws IllegalArgumentException 如果缺少文件
+     * @throws IllegalStateException 如果备份失败
+     */
+    private void backup(Bundle extras) {
+        ParcelFileDescriptor file = getBackupFile(extras);
+        OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(file);
+        mBackupsRunning.incrementAndGet();
+        try {
+            mBackup.backup(out);
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Backup failed", e);
+        } finally {
+            closeQuietly(out);
+            mBackupsRunning.decrementAndGet();
+
+            // 备份期间跳过的清理
+            scheduleSweep();
+        }
+    }
+
+    /**
+     * 用extras中的备份替换所有笔记。
+     *
+     * @return 包含{ @ link NotePad.Notes # EXTRA_RESTORED_COUNT }的Bundle
+     * @throws IllegalArgumentException 如果缺少文件，或者文件不是有效的备份
+     */
+    private Bundle restore(Bundle extras) {
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(getBackupFile(extras));
+
+        // 恢复的正文文件在替换笔记的事务提交之前没有被任何笔记引用，恢复期间不能清理
+        mBackupsRunning.incrementAndGet();
+        int count;
+        try {
+            count = mBackup.restore(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Restore failed", e);
+        } finally {
+            closeQuietly(in);
+            mBackupsRunning.decrementAndGet();
+
+            // 被替换的笔记的正文文件不再被引用，恢复期间跳过的清理
+            scheduleSweep();
+        }
+        notifyChange(NotePad.Notes.CONTENT_URI);
+
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Notes.EXTRA_RESTORED_COUNT, count);
+        return result;
+    }
+
+    private static ParcelFileDescriptor getBackupFile(Bundle extras) {
+        ParcelFileDescriptor file = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(NotePad.Notes.EXTRA_BACKUP_FILE) : null;
+        if (file == null) {
+            throw new IllegalArgumentException("Missing " + NotePad.Notes.EXTRA_BACKUP_FILE);
+        }
+        return file;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * 如果一个笔记的编辑日志已经足够大，在后台合并它。
+     */
+    private void scheduleCompactionIfNeeded(long noteId) {
+        if (EditJournal.needsCompaction(mOpenHelper.getReadableDatabase(), noteId)) {
+            scheduleCompaction(noteId);
+        }
+    }
+
+    /**
+     * 在后台线程上把一个笔记的编辑日志合并进正文。
+     */
+    private void scheduleCompaction(final long noteId) {
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (EditJournal.compact(mOpenHelper.getWritableDatabase(), noteId)) {
+                        notifyChange(ContentUris.withAppendedId(
+                                NotePad.Notes.CONTENT_ID_URI_BASE, noteId));
+                    }
+                } catch (SQLException e) {
+                    // 合并失败时日志保留，下次读取时仍然正确，下次合并时再试
+                    Log.e(TAG, "Failed to compact edits of note " + noteId, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在后台线程上合并所有笔记的编辑日志。
+     */
+    private void scheduleCompactAll() {
+        if (!mCompactAllScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCompactAllScheduled.set(false);
+                try {
+                    compactAllEdits();
+                } catch (SQLException e) {
+                    Log.e(TAG, "Failed to compact edits", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 立即合并所有笔记的编辑日志。
+     */
+    private void compactAllEdits() {
+        for (long noteId : EditJournal.compactAll(mOpenHelper.getWritableDatabase())) {
+            notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId));
+        }
+    }
+
+    /**
+     * 通知观察者uri的数据发生了变化。通知不会立即发送，而是与同一时间窗口或同一批量操作中的其他变化合并。
+     */
+    private void notifyChange(Uri uri) {
+        // 缓存立即失效，通知可以稍后发送
+        boolean single = sUriMatcher.match(uri) == NOTE_ID;
+        if (single) {
+            mNoteCache.invalidate(ContentUris.parseId(uri));
+        } else {
+            mNoteCache.invalidateAll();
+        }
+
+        // 列表索引和标题索引只能反映已经提交的变化，批量操作中的变化在事务结束之后处理
+        if (!mNotifier.inBatch()) {
+            updateIndexes(uri, true);
+        }
+        scheduleTrigramSync();
+        mNotifier.notifyChange(uri);
+    }
+
+    /**
+     * 让列表索引和标题索引反映uri的变化：一条笔记变化时只更新这条笔记，否则下次使用时重新建立。
+     *
+     * @param titlesChanged 标题是否可能发生了变化，为false时不更新标题索引
+     */
+    private void updateIndexes(Uri uri, boolean titlesChanged) {
+        if (sUriMatcher.match(uri) == NOTE_ID) {
+            long noteId = ContentUris.parseId(uri);
+            mListIndex.update(noteId);
+            if (titlesChanged) {
+                mTitleIndex.update(noteId);
+            }
+        } else {
+            mListIndex.invalidate();
+            if (titlesChanged) {
+                mTitleIndex.invalidate();
+            }
+        }
+    }
+
+    /**
+     * 开始当前线程上的批量操作：批量操作中的通知在结束时统一发送，事务提交之前不缓存笔记，
+     * 结束时更新列表索引和标题索引中发生变化的笔记。
+     */
+    private void beginBatch() {
+        mNoteCache.beginWrite();
+        mNotifier.beginBatch();
+    }
+
+    /**
+     * 结束当前线程上的批量操作。事务结束(提交或回滚)之后调用。
+     *
+     * @param titlesChanged 批量操作是否可能修改了标题，追加编辑日志不会修改标题
+     */
+    private void endBatch(boolean titlesChanged) {
+        mNoteCache.endWrite();
+
+        // 例如编辑器保存时追加的编辑日志只改变一条笔记，不需要重新读取整个列表
+        Set<Uri> changes = mNotifier.getBatchChanges();
+        if (changes.size() > MAX_BATCH_INDEX_UPDATES) {
+            mListIndex.invalidate();
+            if (titlesChanged) {
+                mTitleIndex.invalidate();
+            }
+        } else {
+            for (Uri uri : changes) {
+                updateIndexes(uri, titlesChanged);
+            }
+        }
+        mNotifier.endBatch();
+    }
+
+    /**
+     * 输出笔记缓存的命中率等状态，用于调整缓存的大小({ @ code adb shell dumpsys activity provider})。
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println(mNoteCache);
+    }
+
     /**
      * 一个测试包可以调用此方法来获取潜在的NotePadProvider数据库的句柄，因此它可以将测试数据插入
      * 到数据库中。测试用例类负责在测试环境中实例化提供程序;
@@ -708,4 +2712,45 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     DatabaseHelper getOpenHelperForTest() {
         return mOpenHelper;
     }
+
+    /**
+     * 返回笔记缓存。为了测试的目的，设置了包的可见性。
+     */
+    NoteCache getNoteCacheForTest() {
+        return mNoteCache;
+    }
+
+    /**
+     * 等待后台线程上已经安排的工作完成。为了测试的目的，设置了包的可见性。
+     */
+    void awaitBackgroundWorkForTest() throws InterruptedException, ExecutionException {
+        mBackgroundExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    /**
+     * 返回列表索引。为了测试的目的，设置了包的可见性。
+     */
+    NoteListIndex getListIndexForTest() {
+        return mListIndex;
+    }
+
+    /**
+     * 返回标题索引。为了测试的目的，设置了包的可见性。
+     */
+    FuzzyTitleIndex getTitleIndexForTest() {
+        return mTitleIndex;
+    }
+
+    /**
+     * 丢弃列表索引和标题索引，下次使用时从数据库重新建立。测试直接修改数据库之后调用。为了测试的目的，
+     * 设置了包的可见性。
+     */
+    void invalidateIndexesForTest() {
+        mListIndex.invalidate();
+        mTitleIndex.invalidate();
+    }
 }
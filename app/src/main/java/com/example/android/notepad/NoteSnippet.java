@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+/**
+ * 笔记的摘要，即{ @ link NotePad.Notes # COLUMN_NAME_SNIPPET }的内容：正文开头的一段文字，
+ * 连续的空白(包括换行)合并为一个空格，去掉首尾的空白，长度不超过{ @ link # MAX_LENGTH }。
+ */
+final class NoteSnippet {
+
+    /**
+     * 摘要的最大长度(字符)
+     */
+    static final int MAX_LENGTH = 100;
+
+    /**
+     * 生成摘要时最多读取正文开头的这么多字符，所以只有这个范围内的修改才会改变摘要
+     */
+    static final int SOURCE_LENGTH = 4 * MAX_LENGTH;
+
+    // 这个类不能实例化
+    private NoteSnippet() {
+    }
+
+    /**
+     * 从正文生成摘要。
+     */
+    static String of(CharSequence text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder snippet = new StringBuilder(MAX_LENGTH);
+        boolean pendingSpace = false;
+        int end = Math.min(text.length(), SOURCE_LENGTH);
+        for (int i = 0; i < end && snippet.length() < MAX_LENGTH; i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = snippet.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                snippet.append(' ');
+                pendingSpace = false;
+                if (snippet.length() == MAX_LENGTH) {
+                    break;
+                }
+            }
+            snippet.append(c);
+        }
+
+        // 不在代理对的中间截断，也不以空格结尾
+        int length = snippet.length();
+        if (length > 0 && Character.isHighSurrogate(snippet.charAt(length - 1))) {
+            length--;
+        }
+        while (length > 0 && snippet.charAt(length - 1) == ' ') {
+            length--;
+        }
+        snippet.setLength(length);
+        return snippet.toString();
+    }
+}
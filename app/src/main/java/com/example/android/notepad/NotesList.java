@@ -25,16 +25,24 @@ import com.oguzdev.circularfloatingactionmenu.library.FloatingActionMenu;
 import com.oguzdev.circularfloatingactionmenu.library.SubActionButton;
 
 import android.app.ListActivity;
+import android.app.LoaderManager;
 import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.CursorLoader;
 import android.content.Intent;
+import android.content.Loader;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.style.BackgroundColorSpan;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -47,6 +55,7 @@ import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
+import android.widget.TextView;
 
 /**
  * 显示注释列表。将显示在传入意图中提供的{ @ link Uri }的注释，否则它将默认显示
@@ -56,7 +65,7 @@ import android.widget.SimpleCursorAdapter;
  * 一个真正的应用程序应该使用{ @ link android. content . content。AsyncQueryHandler }
  * 或{ @link android.os。AsyncTask }对象在单独的线程上异步执行操作。
  */
-public class NotesList extends ListActivity {
+public class NotesList extends ListActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
 
     // 日志和调试
@@ -74,15 +83,86 @@ public class NotesList extends ListActivity {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
-
+            NotePad.Notes.COLUMN_NAME_SNIPPET,
+            // 搜索结果中匹配附近的正文片段，以及标题和片段中匹配的位置，由提供者生成
+            NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET_MATCHES,
+            NotePad.Notes.COLUMN_NAME_SEARCH_TITLE_MATCHES,
     };
 
+    /**
+     * 搜索结果中匹配部分的背景色
+     */
+    private static final int HIGHLIGHT_COLOR = 0x80FFEB3B;
+
+    /**
+     * 搜索结果加载器的ID
+     */
+    private static final int SEARCH_LOADER_ID = 0;
+
+    /**
+     * 传给搜索加载器的参数中搜索词的键
+     */
+    private static final String ARG_SEARCH = "search";
+
+    /**
+     * 传给搜索加载器的参数中匹配方式的键，值是{ @ link NotePad.Notes # SEARCH_MODE_SUBSTRING }或
+     * { @ link NotePad.Notes # SEARCH_MODE_FUZZY }
+     */
+    private static final String ARG_MODE = "mode";
+
+    /**
+     * 搜索框停止输入多久之后才发起查询（毫秒）。连续输入时只有最后一次输入会触发查询。
+     */
+    private static final long SEARCH_DEBOUNCE_MILLIS = 300;
+
     private View view;
+
+    // 显示搜索结果的适配器，游标来自搜索加载器
     private SimpleCursorAdapter adapter;
-    private Cursor cursor;
+
+    // 显示全部笔记的适配器，只在内存中保留可见位置附近的几页
+    private PagedNotesAdapter mNotesAdapter;
 
     private SharedPreferences appbackground ;
 
+    // 用于在主线程上延迟发起搜索
+    private final Handler mHandler = new Handler();
+
+    // 等待发起的搜索词
+    private String mPendingSearch;
+
+    // 当前的搜索加载器使用的匹配方式
+    private String mSearchMode;
+
+    // 延迟到期后发起搜索。重启加载器会取消仍在执行的旧查询，旧查询的游标由加载器负责关闭。
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startSearch(NotePad.Notes.SEARCH_MODE_SUBSTRING);
+        }
+    };
+
+    // 子串搜索没有结果时改用标题的模糊搜索
+    private final Runnable mFuzzySearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mPendingSearch != null) {
+                startSearch(NotePad.Notes.SEARCH_MODE_FUZZY);
+            }
+        }
+    };
+
+    /**
+     * 用给定的匹配方式搜索mPendingSearch。
+     */
+    private void startSearch(String mode) {
+        Bundle args = new Bundle();
+        args.putString(ARG_SEARCH, mPendingSearch);
+        args.putString(ARG_MODE, mode);
+        getLoaderManager().restartLoader(SEARCH_LOADER_ID, args, NotesList.this);
+    }
+
     private void addSearchView() {
         //给listview添加头部(search)
         view =View.inflate(this, R.layout.notelistheader,null);
@@ -94,25 +174,84 @@ public class NotesList extends ListActivity {
             @Override
             public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
                 super.onTextChanged(charSequence, i, i1, i2);
-                if (charSequence.length()!=0 && et_Search.getText().toString().length()!=0){
-                    String str_Search = et_Search.getText().toString();
-                    Cursor search_cursor = managedQuery(
-                            getIntent().getData(),            // Use the default content URI for the provider.
-                            PROJECTION,                       // Return the note ID and title for each note.
-                            NotePad.Notes.COLUMN_NAME_TITLE+" like ?",                             // No where clause, return all records.
-                            new String[]{"%"+str_Search+"%"}, //匹配字符串条件                            // No where clause, therefore no where column values.
-                            NotePad.Notes.DEFAULT_SORT_ORDER  // Use the default sort order.
-                    );
-                    adapter.swapCursor(search_cursor);//刷新listview
-
-                }else {
-                    if (cursor!=null)//删除搜索框中的text后刷新listview
-                        adapter.swapCursor(cursor);//刷新listview
+                // 每次输入都推迟搜索，只有停止输入后才真正查询
+                mHandler.removeCallbacks(mSearchRunnable);
+                mHandler.removeCallbacks(mFuzzySearchRunnable);
+                String str_Search = charSequence.toString().trim();
+                if (str_Search.length() != 0) {
+                    mPendingSearch = str_Search;
+                    mHandler.postDelayed(mSearchRunnable, SEARCH_DEBOUNCE_MILLIS);
+                } else {
+                    //删除搜索框中的text后刷新listview，并丢弃搜索结果
+                    mPendingSearch = null;
+                    showAllNotes();
+                    getLoaderManager().destroyLoader(SEARCH_LOADER_ID);
                 }
             }
         });
     }
 
+    /**
+     * 让列表重新显示全部笔记。
+     */
+    private void showAllNotes() {
+        if (getListAdapter() != mNotesAdapter) {
+            setListAdapter(mNotesAdapter);//刷新listview
+        }
+    }
+
+    /**
+     * 为搜索创建一个在后台线程执行查询的加载器。加载器在被取消时通过CancellationSignal中止查询。
+     */
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        // 通过搜索URI在标题和内容中查找子串，由三元组索引找出候选，避免对整张表做LIKE扫描。
+        // 模糊搜索只在标题中查找。不指定排序顺序，结果按相关或相近的程度排序
+        mSearchMode = args.getString(ARG_MODE);
+        Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH,
+                        args.getString(ARG_SEARCH))
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_MODE, mSearchMode)
+                .build();
+        return new CursorLoader(
+                this,
+                searchUri,                        // 全文搜索的URI，搜索词作为查询参数
+                PROJECTION,                       // 返回每个note的note ID和标题。
+                null,                             // 匹配条件由搜索URI给出
+                null,
+                null                              // 最相关的笔记排在前面
+        );
+    }
+
+    /**
+     * 搜索结果加载完成。游标属于加载器，所以用swapCursor而不是changeCursor，被替换的游标由加载器关闭。
+     */
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        // 搜索框已经被清空时，迟到的结果不再显示
+        if (mPendingSearch != null) {
+            // 没有包含搜索词的笔记时，可能是搜索词中有输入错误，再按标题模糊搜索一次。
+            // 不能在这个回调中重启加载器，所以推迟到下一次消息循环
+            if (data.getCount() == 0
+                    && NotePad.Notes.SEARCH_MODE_SUBSTRING.equals(mSearchMode)) {
+                mHandler.post(mFuzzySearchRunnable);
+            }
+            adapter.swapCursor(data);//刷新listview
+            if (getListAdapter() != adapter) {
+                setListAdapter(adapter);
+            }
+        }
+    }
+
+    /**
+     * 加载器的游标即将被关闭，不能再让列表引用它。
+     */
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        adapter.swapCursor(null);
+        showAllNotes();
+    }
+
     /** 标题栏的索引
      * title字段在数据表中的索引。
      * */
@@ -150,17 +289,9 @@ public class NotesList extends ListActivity {
          */
         getListView().setOnCreateContextMenuListener(this);
 
-        /* 执行一个查询管理。活动处理在需要时关闭和请求游标。
-         *
-         *请参阅关于在UI线程上执行提供者操作的介绍性说明。
+        /* 全部笔记通过分页适配器在后台逐页读取，不再一次把整张表读入游标。
          */
-        Cursor cursor = managedQuery(
-            getIntent().getData(),            // 为提供者使用默认的内容URI，notes数据表。
-            PROJECTION,                       // 返回每个note的note ID和标题。
-            null,                             // 没有where子句，返回所有记录。
-            null,                             // 没有where子句，因此没有列值。
-            NotePad.Notes.DEFAULT_SORT_ORDER  // 使用默认的排序顺序，指明了结果的排序规则。
-        );
+        mNotesAdapter = new PagedNotesAdapter(this);
 
 
         /*
@@ -169,31 +300,76 @@ public class NotesList extends ListActivity {
          * 它们映射为升序，以确定ListView中每个列值的位置。
          */
 
-        // 在视图中显示的游标列的名称，初始化为标题列
-        String[] dataColumns = { NotePad.Notes.COLUMN_NAME_TITLE ,NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE} ;
+        // 在视图中显示的游标列的名称，初始化为标题列。搜索结果显示匹配附近的片段而不是正文的开头
+        String[] dataColumns = { NotePad.Notes.COLUMN_NAME_TITLE ,NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET } ;
 
         // 将显示游标列的视图id，初始化为noteslist_item. xml中的TextView
         //int[] viewIDs = { android.R.id.text1 };
-        int[] viewIDs = { R.id.tv_title,R.id.tv_data };
+        int[] viewIDs = { R.id.tv_title,R.id.tv_data,R.id.tv_snippet };
 
 
-        // 为ListView创建支持适配器。
+        // 为搜索结果创建支持适配器。游标在搜索结果加载完成时才提供，由加载器负责重新查询。
         adapter
             = new SimpleCursorAdapter(
                       this,                             // ListView的上下文
                       R.layout.noteslistitem,          // 指向列表项的XML
-                      cursor,                           // 用于获取项目的游标
+                      null,                             // 用于获取项目的游标
                       dataColumns,
-                      viewIDs
+                      viewIDs,
+                      0                                 // 不自动重新查询
               );
 
-        // 将ListView的适配器设置为刚刚创建的游标适配器.
-        setListAdapter(adapter);
+        // 修改时间在数据库中是毫秒时间戳，绑定到列表项时才格式化为可读的日期。
+        // 标题和片段中匹配的部分加上背景色。
+        adapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+            @Override
+            public boolean setViewValue(View view, Cursor c, int columnIndex) {
+                if (columnIndex == c.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)) {
+                    ((TextView) view).setText(mNotesAdapter.formatDate(c.getLong(columnIndex)));
+                    return true;
+                } else if (columnIndex == c.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)) {
+                    ((TextView) view).setText(highlight(c.getString(columnIndex), c.getString(
+                            c.getColumnIndex(NotePad.Notes.COLUMN_NAME_SEARCH_TITLE_MATCHES))));
+                    return true;
+                } else if (columnIndex == c.getColumnIndex(NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET)) {
+                    ((TextView) view).setText(highlight(c.getString(columnIndex), c.getString(
+                            c.getColumnIndex(NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET_MATCHES))));
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        // 将ListView的适配器设置为显示全部笔记的分页适配器.
+        setListAdapter(mNotesAdapter);
         addSearchView();
         setBackgroundMenu();
 
     }
 
+    /**
+     * 给文本中匹配的部分加上背景色。
+     *
+     * @param matches 提供者返回的匹配位置，"开始 结束 开始 结束..."
+     */
+    private static CharSequence highlight(String text, String matches) {
+        if (text == null || TextUtils.isEmpty(matches)) {
+            return text;
+        }
+        SpannableString spannable = new SpannableString(text);
+        String[] offsets = matches.split(" ");
+        for (int i = 0; i + 1 < offsets.length; i += 2) {
+            int start = Integer.parseInt(offsets[i]);
+            int end = Integer.parseInt(offsets[i + 1]);
+            if (start >= 0 && start < end && end <= text.length()) {
+                spannable.setSpan(new BackgroundColorSpan(HIGHLIGHT_COLOR), start, end,
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        return spannable;
+    }
+
     private void setBackgroundMenu() {
         //修改listview的背景
         //1.设置背景颜色数组
@@ -271,6 +447,14 @@ public class NotesList extends ListActivity {
 
 
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // 活动销毁后不再发起等待中的搜索
+        mHandler.removeCallbacks(mSearchRunnable);
+        mNotesAdapter.close();
+    }
+
     /**
      * 当用户第一次单击该设备的菜单按钮时调用该活动。Android在一个包含项目的菜单对象中传递。
      *
@@ -435,23 +619,25 @@ public class NotesList extends ListActivity {
 
         /*
          * 获取与所选位置的项目相关的数据。getItem()返回ListView与该项目关联的任何支持适配器。
-         * 在NotesList中，适配器将一个注释的所有数据与它的列表项关联起来。作为一个结果,
-            getItem()将数据作为游标返回。
+         * 在NotesList中，搜索结果的适配器将一个注释的所有数据与它的列表项关联起来，getItem()将数据作为
+         * 游标返回；全部笔记的分页适配器的getItem()直接返回标题。
          */
-        Cursor cursor = (Cursor) getListAdapter().getItem(info.position-1);
+        Object item = getListAdapter().getItem(info.position-1);
 
-        // 如果游标是空的，那么由于某些原因，适配器无法从提供者处获得数据，因此返回null给调用者。
-        if (cursor == null) {
+        // 如果项目是空的，那么适配器还没有从提供者处获得数据，因此返回给调用者。
+        if (item == null) {
             // 由于某些原因，请求的项不可用，什么都不做
             return;
         }
+        String title = item instanceof Cursor
+                ? ((Cursor) item).getString(COLUMN_INDEX_TITLE) : (String) item;
 
         //从XML资源中增加菜单
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.list_context_menu, menu);
 
         // 将菜单头设置为选中的音符的标题。
-        menu.setHeaderTitle(cursor.getString(COLUMN_INDEX_TITLE));
+        menu.setHeaderTitle(title);
 
         // 将菜单项附加到任何其他可以使用它的活动。对于任何实现我们的数据的替代操作的活动，
         // 这将对系统进行查询，为所找到的每个活动添加一个菜单项。
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 合并内容变化的通知。{ @ link NotePadProvider }的每一次修改不再立即通知观察者，而是先记录发生变化的URI，
+ * 在一个很短的时间窗口结束时，或者在批量操作的事务结束时统一发送。
+ *
+ * 只有一条笔记变化时只通知这条笔记的URI，注册在notes目录上的观察者(包括子孙URI)同样会收到；
+ * 多条笔记或整个目录变化时只通知一次目录URI，目录下所有的观察者都会收到这一次通知。
+ * 这样每个观察者在每次发送时最多只收到一次通知，批量修改不会引起列表反复重新查询。
+ *
+ * 这个类是线程安全的。
+ */
+class NotificationCoalescer {
+
+    /**
+     * 批量操作之外的修改等待多久之后发送通知(毫秒)。这段时间内的修改合并为一次通知。
+     */
+    static final long WINDOW_MILLIS = 50;
+
+    private final ContentResolver mResolver;
+
+    // 多条笔记变化时通知的目录URI
+    private final Uri mDirectoryUri;
+
+    // 时间窗口结束时在这个处理器的线程上发送通知
+    private final Handler mHandler;
+
+    // 等待发送的URI，在this上同步
+    private final Set<Uri> mPending = new LinkedHashSet<Uri>();
+
+    // 是否已经安排了发送，在this上同步
+    private boolean mScheduled;
+
+    // 当前线程正在执行的批量操作中发生变化的URI，不在批量操作中时为null
+    private final ThreadLocal<Set<Uri>> mBatch = new ThreadLocal<Set<Uri>>();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    NotificationCoalescer(ContentResolver resolver, Uri directoryUri) {
+        mResolver = resolver;
+        mDirectoryUri = directoryUri;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * 记录uri的数据发生了变化。批量操作中的变化在批量操作结束时发送，其他变化在时间窗口结束时发送。
+     */
+    void notifyChange(Uri uri) {
+        Set<Uri> batch = mBatch.get();
+        if (batch != null) {
+            batch.add(uri);
+            return;
+        }
+        synchronized (this) {
+            mPending.add(uri);
+            if (!mScheduled) {
+                mScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, WINDOW_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * 开始当前线程上的批量操作。批量操作不能嵌套。
+     */
+    void beginBatch() {
+        mBatch.set(new LinkedHashSet<Uri>());
+    }
+
+    /**
+     * 当前线程是否在批量操作中。
+     */
+    boolean inBatch() {
+        return mBatch.get() != null;
+    }
+
+    /**
+     * 返回当前线程的批量操作中到目前为止发生变化的URI，不在批量操作中时返回空集合。
+     */
+    Set<Uri> getBatchChanges() {
+        Set<Uri> batch = mBatch.get();
+        return batch != null ? Collections.unmodifiableSet(batch) : Collections.<Uri>emptySet();
+    }
+
+    /**
+     * 结束当前线程上的批量操作，立即发送批量操作中记录的变化。事务回滚时也要调用，
+     * 因为在让出点已经提交的修改不会回滚。
+     */
+    void endBatch() {
+        Set<Uri> batch = mBatch.get();
+        mBatch.remove();
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    /**
+     * 立即发送所有等待中的通知。
+     */
+    void flush() {
+        Set<Uri> uris;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mScheduled = false;
+            uris = new LinkedHashSet<Uri>(mPending);
+            mPending.clear();
+        }
+        send(uris);
+    }
+
+    private void send(Set<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        deliver(uris.size() == 1 ? uris.iterator().next() : mDirectoryUri);
+    }
+
+    /**
+     * 把一个通知交给内容解析器。
+     */
+    void deliver(Uri uri) {
+        mResolver.notifyChange(uri, null);
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 分页加载笔记列表的适配器。通过{ @ link NotePad.Notes # CONTENT_PAGE_URI }在后台线程上逐页读取笔记，
+ * 内存中只保留可见位置附近的几页，离开可见位置较远的页会被丢弃，滚动回来时再重新读取。
+ *
+ * 分页URI只能从上一页的末尾读取下一页，所以列表的行数随着向下滚动逐页增加，不需要事先统计
+ * 笔记的总数。每一页的起始位置都会保留下来，被丢弃的页可以直接重新读取。打开列表的时间和占用的内存
+ * 只与页的大小有关，与笔记的总数无关。笔记变化后也只重新读取可见位置附近的页，其余的页在滚动到时
+ * 再读取，读到的内容与相邻的页接不上时，从这一页开始重新读取。
+ *
+ * 除了后台读取以外，所有方法都必须在主线程上调用。
+ */
+final class PagedNotesAdapter extends BaseAdapter {
+
+    /**
+     * 每页的行数
+     */
+    static final int PAGE_SIZE = 50;
+
+    /**
+     * 内存中最多保留的页数
+     */
+    static final int MAX_RESIDENT_PAGES = 5;
+
+    /**
+     * 列表项需要的列
+     */
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID, // 0
+            NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2
+            NotePad.Notes.COLUMN_NAME_SNIPPET, // 3
+    };
+
+    private static final int COLUMN_INDEX_ID = 0;
+    private static final int COLUMN_INDEX_TITLE = 1;
+    private static final int COLUMN_INDEX_MODIFICATION_DATE = 2;
+    private static final int COLUMN_INDEX_SNIPPET = 3;
+
+    /**
+     * 已经读到的一页。start是这一页的起始位置，第一页为null；rows是这一页的数据，页被丢弃后为null。
+     */
+    private static final class PageInfo {
+        final String start;
+        final int size;
+        Page rows;
+        boolean loading;
+
+        PageInfo(String start, Page rows) {
+            this.start = start;
+            this.size = rows.size;
+            this.rows = rows;
+        }
+
+        // 只保留起始位置和行数的页，内容在显示时再读取
+        PageInfo(String start, int size) {
+            this.start = start;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 一页笔记的数据。数据从游标中复制出来，游标读完后立即关闭。
+     */
+    private static final class Page {
+        final int size;
+        final long[] ids;
+        final String[] titles;
+        final long[] modified;
+        final String[] snippets;
+
+        // 读取下一页时使用的位置，没有更多记录时为null
+        final String next;
+
+        Page(Cursor cursor) {
+            size = cursor.getCount();
+            ids = new long[size];
+            titles = new String[size];
+            modified = new long[size];
+            snippets = new String[size];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(COLUMN_INDEX_ID);
+                titles[i] = cursor.getString(COLUMN_INDEX_TITLE);
+                modified[i] = cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
+                snippets[i] = cursor.getString(COLUMN_INDEX_SNIPPET);
+            }
+            next = cursor.getExtras().getString(NotePad.Notes.EXTRA_NEXT_PAGE);
+        }
+    }
+
+    private final LayoutInflater mInflater;
+    private final ContentResolver mResolver;
+
+    // 主线程上的处理器，后台读取的结果通过它交回主线程
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // 所有的读取都在这个线程上依次执行
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // 已经读到的所有页，按顺序排列
+    private ArrayList<PageInfo> mPages = new ArrayList<PageInfo>();
+
+    // 已经读到的行数
+    private int mCount;
+
+    // 下一页的起始位置，已经读到最后一页时为null
+    private String mNextStart;
+
+    // 是否正在读取下一页
+    private boolean mLoadingNext;
+
+    // 最近一次显示的行所在的页，用来决定丢弃哪些页
+    private int mVisiblePage;
+
+    // 已经提交、结果还没有交回主线程的后台读取数
+    private int mPendingLoads;
+
+    // 读取页的次数，只用于测试
+    private volatile int mLoadCount;
+
+    /**
+     * 数据的版本。笔记变化后整个列表重新读取，版本递增，旧版本的读取结果被丢弃。
+     * 后台线程读取它来提前结束过期的读取，所以是volatile的。
+     */
+    private volatile int mGeneration;
+
+    /**
+     * 列表中显示修改时间的格式。只在主线程上使用，所以共用一个实例，不必每一行都创建。
+     */
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    // 格式化时复用的日期对象
+    private final Date mDate = new Date();
+
+    // 笔记发生变化时重新读取列表
+    private final ContentObserver mObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            reload();
+        }
+    };
+
+    PagedNotesAdapter(Context context) {
+        this(LayoutInflater.from(context), context.getContentResolver());
+    }
+
+    PagedNotesAdapter(LayoutInflater inflater, ContentResolver resolver) {
+        mInflater = inflater;
+        mResolver = resolver;
+        mResolver.registerContentObserver(NotePad.Notes.CONTENT_URI, true, mObserver);
+        reload();
+    }
+
+    /**
+     * 停止读取并释放资源。活动销毁时调用，之后不能再使用这个适配器。
+     */
+    void close() {
+        mGeneration++;
+        mResolver.unregisterContentObserver(mObserver);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * 把毫秒时间戳格式化为列表中显示的日期。
+     */
+    String formatDate(long millis) {
+        mDate.setTime(millis);
+        return mDateFormat.format(mDate);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * 返回指定位置的笔记的标题。这一行所在的页还没有读入时返回null。
+     */
+    @Override
+    public Object getItem(int position) {
+        Page rows = mPages.get(position / PAGE_SIZE).rows;
+        return rows == null ? null : rows.titles[position % PAGE_SIZE];
+    }
+
+    /**
+     * 返回指定位置的笔记的ID。这一行所在的页还没有读入时返回-1。
+     */
+    @Override
+    public long getItemId(int position) {
+        Page rows = mPages.get(position / PAGE_SIZE).rows;
+        return rows == null ? -1 : rows.ids[position % PAGE_SIZE];
+    }
+
+    /**
+     * 没有读入的行的ID是占位的-1，读入后才是笔记的ID，同一行的ID会变化，所以ID不是稳定的。
+     */
+    @Override
+    public boolean hasStableIds() {
+        return false;
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        return false;
+    }
+
+    /**
+     * 还没有读入的行只是占位，不能点击。
+     */
+    @Override
+    public boolean isEnabled(int position) {
+        return mPages.get(position / PAGE_SIZE).rows != null;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View view = convertView != null
+                ? convertView : mInflater.inflate(R.layout.noteslistitem, parent, false);
+        TextView title = (TextView) view.findViewById(R.id.tv_title);
+        TextView date = (TextView) view.findViewById(R.id.tv_data);
+        TextView snippet = (TextView) view.findViewById(R.id.tv_snippet);
+
+        int page = position / PAGE_SIZE;
+        Page rows = mPages.get(page).rows;
+        if (rows != null) {
+            title.setText(rows.titles[position % PAGE_SIZE]);
+            date.setText(formatDate(rows.modified[position % PAGE_SIZE]));
+            snippet.setText(rows.snippets[position % PAGE_SIZE]);
+        } else {
+            // 这一页正在读取，先显示空行
+            title.setText(null);
+            date.setText(null);
+            snippet.setText(null);
+        }
+        showPosition(position);
+        return view;
+    }
+
+    /**
+     * 记录最近显示的位置，保证这一页和它前后的页都在内存中，显示到最后一页时开始读取下一页。
+     */
+    void showPosition(int position) {
+        int page = position / PAGE_SIZE;
+        mVisiblePage = page;
+        loadPage(page);
+        if (page > 0) {
+            loadPage(page - 1);
+        }
+        if (page + 1 < mPages.size()) {
+            loadPage(page + 1);
+        } else {
+            loadNextPage();
+        }
+    }
+
+    /**
+     * 是否有还没有完成的后台读取。
+     */
+    boolean isLoading() {
+        return mPendingLoads > 0;
+    }
+
+    /**
+     * 返回读取页的次数，只用于测试。
+     */
+    int getLoadCount() {
+        return mLoadCount;
+    }
+
+    /**
+     * 在后台线程上执行一次读取。读取的结果交回主线程之后，{ @ link # isLoading }才不再计入这次读取。
+     */
+    private void runInBackground(final Runnable load) {
+        mPendingLoads++;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load.run();
+                } finally {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mPendingLoads--;
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * 如果一页已经被丢弃，在后台重新读取它。
+     */
+    private void loadPage(final int page) {
+        final PageInfo info = mPages.get(page);
+        if (info.rows != null || info.loading) {
+            return;
+        }
+        info.loading = true;
+        final int generation = mGeneration;
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                final Page rows = queryPage(info.start);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageLoaded(generation, page, info, rows);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 如果还有没读到的记录，在后台读取下一页。
+     */
+    private void loadNextPage() {
+        if (mNextStart == null || mLoadingNext) {
+            return;
+        }
+        mLoadingNext = true;
+        final String start = mNextStart;
+        final int generation = mGeneration;
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                final Page rows = queryPage(start);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onNextPageLoaded(generation, start, rows);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 笔记发生变化时重新读取可见位置附近的页。
+     */
+    void reload() {
+        reloadFrom(mVisiblePage - MAX_RESIDENT_PAGES / 2);
+    }
+
+    /**
+     * 从第first页的起始位置开始，重新读取到最近显示的页为止，读取在后台完成，完成之前列表继续显示旧的
+     * 数据。first之前的页只保留起始位置，显示到时再读取；除了最后一页以外每一页都是整页，所以它们的
+     * 行数不变。读到的页之后的页被丢弃，向下滚动时再逐页读取。
+     */
+    private void reloadFrom(int first) {
+        final int firstPage = Math.max(Math.min(first, mPages.size() - 1), 0);
+        final String firstStart = firstPage < mPages.size() ? mPages.get(firstPage).start : null;
+        final int visiblePage = mVisiblePage;
+        final int generation = ++mGeneration;
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<PageInfo> pages = new ArrayList<PageInfo>();
+                String start = firstStart;
+                do {
+                    // 有更新的重新读取在等待时，这次的结果已经没有用了
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    Page rows = queryPage(start);
+                    pages.add(new PageInfo(start, rows));
+                    start = rows.next;
+                } while (start != null && firstPage + pages.size() <= visiblePage);
+
+                final String nextStart = start;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onReloaded(generation, firstPage, pages, nextStart);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 在后台线程上读取从start开始的一页。
+     */
+    private Page queryPage(String start) {
+        Uri.Builder builder = NotePad.Notes.CONTENT_PAGE_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                        Integer.toString(PAGE_SIZE));
+        if (start != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, start);
+        }
+        Cursor cursor = mResolver.query(builder.build(), PROJECTION, null, null, null);
+        mLoadCount++;
+        try {
+            return new Page(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void onPageLoaded(int generation, int page, PageInfo info, Page rows) {
+        // 读取开始之后重新读取的结果可能已经替换了这一页(读取开始时版本已经递增，但结果还没有交回)
+        if (generation != mGeneration || page >= mPages.size() || mPages.get(page) != info) {
+            return;
+        }
+        info.loading = false;
+        String expectedNext = page + 1 < mPages.size() ? mPages.get(page + 1).start : mNextStart;
+        if (rows.size != info.size || !TextUtils.equals(rows.next, expectedNext)) {
+            // 这一页在丢弃之后发生了变化，与后面的页接不上，从这一页开始重新读取。
+            reloadFrom(page);
+            return;
+        }
+        info.rows = rows;
+        evictPages();
+        notifyDataSetChanged();
+    }
+
+    private void onNextPageLoaded(int generation, String start, Page rows) {
+        // 同样，重新读取的结果交回之后下一页的起始位置可能已经变了，旧位置读到的页接不上
+        if (generation != mGeneration || !mLoadingNext || !TextUtils.equals(start, mNextStart)) {
+            return;
+        }
+        mLoadingNext = false;
+        if (rows.size > 0) {
+            mPages.add(new PageInfo(start, rows));
+            mCount += rows.size;
+        }
+        mNextStart = rows.next;
+        evictPages();
+        notifyDataSetChanged();
+    }
+
+    private void onReloaded(int generation, int firstPage, ArrayList<PageInfo> reloaded,
+            String nextStart) {
+        if (generation != mGeneration) {
+            return;
+        }
+
+        // 最后一页可能为空(上一页正好满一页时)，空页不占行
+        if (!reloaded.isEmpty() && reloaded.get(reloaded.size() - 1).size == 0) {
+            reloaded.remove(reloaded.size() - 1);
+        }
+
+        // 前面的页的内容可能已经过时，只保留起始位置
+        ArrayList<PageInfo> pages = new ArrayList<PageInfo>(firstPage + reloaded.size());
+        for (int page = 0; page < firstPage; page++) {
+            PageInfo info = mPages.get(page);
+            pages.add(new PageInfo(info.start, info.size));
+        }
+        pages.addAll(reloaded);
+        mPages = pages;
+        mCount = 0;
+        for (PageInfo info : pages) {
+            mCount += info.size;
+        }
+        mNextStart = nextStart;
+        mLoadingNext = false;
+        evictPages();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * 内存中的页超过上限时，丢弃离可见位置最远的页。
+     */
+    private void evictPages() {
+        int resident = 0;
+        for (PageInfo info : mPages) {
+            if (info.rows != null) {
+                resident++;
+            }
+        }
+        while (resident > MAX_RESIDENT_PAGES) {
+            PageInfo farthest = null;
+            int farthestDistance = -1;
+            for (int page = 0; page < mPages.size(); page++) {
+                PageInfo info = mPages.get(page);
+                int distance = Math.abs(page - mVisiblePage);
+                if (info.rows != null && distance > farthestDistance) {
+                    farthest = info;
+                    farthestDistance = distance;
+                }
+            }
+            farthest.rows = null;
+            resident--;
+        }
+    }
+}
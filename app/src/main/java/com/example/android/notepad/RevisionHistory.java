@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * 笔记版本历史的数据库操作。版本历史的含义见{ @ link NotePad.NoteRevisions }。
+ *
+ * 每个版本保存为相对前一个版本的差异：去掉两个版本相同的开头和结尾之后，在position处删除deleted个字符，
+ * 再插入inserted，与编辑日志中的编辑的形式相同。每隔{ @ link # KEYFRAME_INTERVAL }个版本，或者差异
+ * 并不比正文小很多时，保存一个关键版本，即相对空文本的差异(完整的正文)。读取一个版本时从它之前最近的
+ * 关键版本开始依次应用差异，最多应用{ @ link # KEYFRAME_INTERVAL }个。
+ */
+final class RevisionHistory {
+
+    /**
+     * 两个关键版本之间最多的版本数
+     */
+    static final int KEYFRAME_INTERVAL = 16;
+
+    /**
+     * 每个笔记最多保留的关键版本数。更早的版本被删除，所以每个笔记最多保留
+     * KEYFRAME_INTERVAL * MAX_KEYFRAMES个版本。
+     */
+    static final int MAX_KEYFRAMES = 8;
+
+    /**
+     * 是否是关键版本的列名
+     * <P>Type: INTEGER (0或1)</P>
+     */
+    static final String COLUMN_NAME_KEYFRAME = "keyframe";
+
+    /**
+     * 差异开始的位置(字符)的列名
+     * <P>Type: INTEGER</P>
+     */
+    static final String COLUMN_NAME_POSITION = "position";
+
+    /**
+     * 从差异位置开始删除的字符数的列名
+     * <P>Type: INTEGER</P>
+     */
+    static final String COLUMN_NAME_DELETED = "deleted";
+
+    /**
+     * 删除之后在差异位置插入的文本的列名
+     * <P>Type: TEXT</P>
+     */
+    static final String COLUMN_NAME_INSERTED = "inserted";
+
+    /**
+     * 版本是否被固定的列名。固定的版本总是关键版本，不会被{ @ link # prune }删除
+     * <P>Type: INTEGER (0或1)</P>
+     */
+    static final String COLUMN_NAME_PINNED = "pinned";
+
+    // 重建正文读取的列，前四列的顺序与EditJournal.apply()要求的一致
+    private static final String[] DELTA_PROJECTION = new String[] {
+            COLUMN_NAME_POSITION,
+            COLUMN_NAME_DELETED,
+            COLUMN_NAME_INSERTED,
+            NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE,
+            NotePad.NoteRevisions._ID
+    };
+
+    // 一个版本和它之前最近的关键版本之间的所有版本
+    private static final String GROUP_SELECTION = NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID
+            + " = ? AND " + NotePad.NoteRevisions._ID + " <= ? AND " + NotePad.NoteRevisions._ID
+            + " >= (SELECT MAX(" + NotePad.NoteRevisions._ID + ") FROM "
+            + NotePad.NoteRevisions.TABLE_NAME + " WHERE "
+            + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ? AND " + COLUMN_NAME_KEYFRAME
+            + " = 1 AND " + NotePad.NoteRevisions._ID + " <= ?)";
+
+    // 查询单个版本时没有指定投影时返回的列
+    private static final String[] REVISION_COLUMNS = new String[] {
+            NotePad.NoteRevisions._ID,
+            NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID,
+            NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE,
+            NotePad.NoteRevisions.COLUMN_NAME_LENGTH,
+            NotePad.NoteRevisions.COLUMN_NAME_TEXT
+    };
+
+    // 这个类不能实例化
+    private RevisionHistory() {
+    }
+
+    /**
+     * 创建版本表、按笔记读取版本的索引，以及在笔记被删除时删除版本的触发器。
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.NoteRevisions.TABLE_NAME + " ("
+                + NotePad.NoteRevisions._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                + NotePad.NoteRevisions.COLUMN_NAME_LENGTH + " INTEGER NOT NULL,"
+                + COLUMN_NAME_KEYFRAME + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_NAME_POSITION + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_NAME_DELETED + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_NAME_INSERTED + " TEXT NOT NULL DEFAULT ''"
+                + ");");
+
+        db.execSQL("CREATE INDEX note_revisions_note_index ON " + NotePad.NoteRevisions.TABLE_NAME
+                + " (" + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + ", "
+                + NotePad.NoteRevisions._ID + ");");
+
+        db.execSQL("CREATE TRIGGER note_revisions_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN DELETE FROM "
+                + NotePad.NoteRevisions.TABLE_NAME + " WHERE "
+                + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID
+                + "; END;");
+    }
+
+    /**
+     * 添加版本是否被固定的列。已有的版本都没有被固定。
+     */
+    static void addPinnedColumn(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + NotePad.NoteRevisions.TABLE_NAME + " ADD COLUMN "
+                + COLUMN_NAME_PINNED + " INTEGER NOT NULL DEFAULT 0");
+    }
+
+    /**
+     * 固定一个笔记的一个版本，在取消固定之前它不会因为版本太多而被删除。版本被改写为关键版本
+     * (相对空文本的差异)，重建它不依赖之前可能被删除的版本；之后的版本是相对它的正文的差异，仍然有效。
+     * 每个笔记只有一个固定的版本，之前固定的版本被取消固定。应该在记录这个版本的同一个事务中调用。
+     *
+     * @param text 这个版本的完整正文
+     */
+    static void pin(SQLiteDatabase db, long noteId, long revisionId, String text) {
+        unpin(db, noteId);
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME_KEYFRAME, 1);
+        values.put(COLUMN_NAME_POSITION, 0);
+        values.put(COLUMN_NAME_DELETED, 0);
+        values.put(COLUMN_NAME_INSERTED, text);
+        values.put(COLUMN_NAME_PINNED, 1);
+        db.update(NotePad.NoteRevisions.TABLE_NAME, values, NotePad.NoteRevisions._ID + " = ? AND "
+                + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { Long.toString(revisionId), Long.toString(noteId) });
+    }
+
+    /**
+     * 取消一个笔记的固定版本。它在下一次删除旧版本时和其他版本一样被删除。
+     */
+    static void unpin(SQLiteDatabase db, long noteId) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME_PINNED, 0);
+        db.update(NotePad.NoteRevisions.TABLE_NAME, values,
+                NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ? AND " + COLUMN_NAME_PINNED + " = 1",
+                new String[] { Long.toString(noteId) });
+    }
+
+    /**
+     * 把正文记录为笔记的新版本。正文与最新的版本相同时不记录。应该在写入正文的同一个事务中调用。
+     * 超过{ @ link NotePad.Notes # MAX_INLINE_NOTE_LENGTH }的正文不记录版本。
+     *
+     * @return 与正文相同的版本的ID，没有记录时返回-1
+     */
+    static long record(SQLiteDatabase db, long noteId, String text, long now) {
+        if (text == null || text.length() > NotePad.Notes.MAX_INLINE_NOTE_LENGTH) {
+            return -1;
+        }
+
+        Cursor group = queryGroup(db, noteId, Long.MAX_VALUE);
+        String previous;
+        long previousId;
+        int deltas;
+        try {
+            if (!group.moveToLast()) {
+                previous = null;
+                previousId = -1;
+                deltas = 0;
+            } else {
+                previousId = group.getLong(4);
+                deltas = group.getCount() - 1;
+                group.moveToPosition(-1);
+                previous = EditJournal.apply("", group).text;
+            }
+        } finally {
+            group.close();
+        }
+        if (text.equals(previous)) {
+            return previousId;
+        }
+
+        // 关键版本是相对空文本的差异
+        boolean keyframe = previous == null || deltas + 1 >= KEYFRAME_INTERVAL;
+        String base = keyframe ? "" : previous;
+
+        // 两个版本相同的开头和结尾，结尾不与开头重叠
+        int length = Math.min(base.length(), text.length());
+        int prefix = 0;
+        while (prefix < length && base.charAt(prefix) == text.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < length - prefix && base.charAt(base.length() - 1 - suffix)
+                == text.charAt(text.length() - 1 - suffix)) {
+            suffix++;
+        }
+        String inserted = text.substring(prefix, text.length() - suffix);
+
+        // 差异并不比正文小很多时，保存完整的正文，以后重建这个版本和之后的版本都更快
+        if (!keyframe && inserted.length() * 2 >= text.length()) {
+            keyframe = true;
+            prefix = 0;
+            suffix = 0;
+            inserted = text;
+            base = "";
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE, now);
+        values.put(NotePad.NoteRevisions.COLUMN_NAME_LENGTH, text.length());
+        values.put(COLUMN_NAME_KEYFRAME, keyframe ? 1 : 0);
+        values.put(COLUMN_NAME_POSITION, prefix);
+        values.put(COLUMN_NAME_DELETED, base.length() - prefix - suffix);
+        values.put(COLUMN_NAME_INSERTED, inserted);
+        long rowId = db.insertOrThrow(NotePad.NoteRevisions.TABLE_NAME, null, values);
+
+        if (keyframe) {
+            prune(db, noteId);
+        }
+        return rowId;
+    }
+
+    /**
+     * 删除一个笔记最早的版本，只保留最近的{ @ link # MAX_KEYFRAMES }个关键版本和它们之后的版本，
+     * 以及固定的版本。
+     */
+    private static void prune(SQLiteDatabase db, long noteId) {
+        String id = Long.toString(noteId);
+        db.execSQL("DELETE FROM " + NotePad.NoteRevisions.TABLE_NAME + " WHERE "
+                + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                + COLUMN_NAME_PINNED + " = 0 AND "
+                + NotePad.NoteRevisions._ID + " < (SELECT " + NotePad.NoteRevisions._ID + " FROM "
+                + NotePad.NoteRevisions.TABLE_NAME + " WHERE "
+                + NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID + " = ? AND " + COLUMN_NAME_KEYFRAME
+                + " = 1 ORDER BY " + NotePad.NoteRevisions._ID + " DESC LIMIT 1 OFFSET "
+                + (MAX_KEYFRAMES - 1) + ")", new Object[] { id, id });
+    }
+
+    /**
+     * 查询一个版本，包括重建的正文。
+     *
+     * @param projection 要返回的列，见{ @ link NotePad.NoteRevisions }，null表示所有的列
+     * @return 版本存在时包含一行的游标，否则是空的游标
+     * @throws IllegalArgumentException 如果投影中有未知的列
+     */
+    static Cursor query(SQLiteDatabase db, long noteId, long revisionId, String[] projection) {
+        String[] columns = projection != null ? projection : REVISION_COLUMNS;
+        MatrixCursor result = new MatrixCursor(columns, 1);
+
+        Cursor group = queryGroup(db, noteId, revisionId);
+        try {
+            if (!group.moveToLast() || group.getLong(4) != revisionId) {
+                return result;
+            }
+            long created = group.getLong(3);
+            group.moveToPosition(-1);
+            String text = EditJournal.apply("", group).text;
+
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                String column = columns[i];
+                if (NotePad.NoteRevisions._ID.equals(column)) {
+                    row[i] = revisionId;
+                } else if (NotePad.NoteRevisions.COLUMN_NAME_NOTE_ID.equals(column)) {
+                    row[i] = noteId;
+                } else if (NotePad.NoteRevisions.COLUMN_NAME_CREATE_DATE.equals(column)) {
+                    row[i] = created;
+                } else if (NotePad.NoteRevisions.COLUMN_NAME_LENGTH.equals(column)) {
+                    row[i] = text.length();
+                } else if (NotePad.NoteRevisions.COLUMN_NAME_TEXT.equals(column)) {
+                    row[i] = text;
+                } else {
+                    throw new IllegalArgumentException("Unknown column " + column);
+                }
+            }
+            result.addRow(row);
+            return result;
+        } finally {
+            group.close();
+        }
+    }
+
+    /**
+     * 按顺序读取从revisionId之前最近的关键版本到revisionId的所有版本的差异。一次查询读取，
+     * 不会与新版本的记录交错。
+     */
+    private static Cursor queryGroup(SQLiteDatabase db, long noteId, long revisionId) {
+        String id = Long.toString(noteId);
+        String revision = Long.toString(revisionId);
+        return db.query(NotePad.NoteRevisions.TABLE_NAME, DELTA_PROJECTION, GROUP_SELECTION,
+                new String[] { id, revision, id, revision }, null, null,
+                NotePad.NoteRevisions._ID);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.PriorityQueue;
+
+/**
+ * 按相关程度为全文搜索的结果排序。
+ *
+ * 每个笔记的得分是BM25：对每个词项和每一列(标题、内容)，词项在这一列中出现得越多、在所有笔记中越少见、
+ * 这一列越短，得分越高。标题的得分乘以{ @ link # TITLE_WEIGHT }。得分再乘以一个随修改时间衰减的系数，
+ * 新的笔记在得分相近时排在前面，很旧的笔记最多损失{ @ link # RECENCY_FLOOR }以外的得分。
+ *
+ * 词项的统计来自全文索引的matchinfo()，不需要读取笔记的文本。只保留得分最高的几个笔记(一个大小固定的堆)，
+ * 不对所有匹配的笔记排序。
+ */
+final class SearchRanker {
+
+    /**
+     * BM25的词频饱和参数
+     */
+    static final double K1 = 1.2;
+
+    /**
+     * BM25的长度归一化参数
+     */
+    static final double B = 0.75;
+
+    /**
+     * 标题中的匹配相对于内容中的匹配的权重
+     */
+    static final double TITLE_WEIGHT = 3.0;
+
+    /**
+     * 修改时间的系数减半所需的时间(毫秒)
+     */
+    static final long RECENCY_HALF_LIFE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * 修改时间的系数的下限，很旧的笔记至少保留这个比例的得分
+     */
+    static final double RECENCY_FLOOR = 0.5;
+
+    // matchinfo()的格式：词项数、列数、总行数、每列的平均长度、这一行每列的长度、每个词项每列的命中统计
+    private static final String MATCHINFO_FORMAT = "pcnalx";
+
+    // 全文索引的列，与建表时的顺序一致
+    private static final int COLUMN_TITLE = 0;
+
+    // 这个类不能实例化
+    private SearchRanker() {
+    }
+
+    /**
+     * 一个打分的笔记。
+     */
+    private static final class Scored implements Comparable<Scored> {
+        final long id;
+        final double score;
+        final long modified;
+
+        Scored(long id, double score, long modified) {
+            this.id = id;
+            this.score = score;
+            this.modified = modified;
+        }
+
+        // 得分低的在前，得分相同的旧的在前，也就是堆顶是最差的一个
+        @Override
+        public int compareTo(Scored other) {
+            if (score != other.score) {
+                return score < other.score ? -1 : 1;
+            }
+            if (modified != other.modified) {
+                return modified < other.modified ? -1 : 1;
+            }
+            return id > other.id ? -1 : (id < other.id ? 1 : 0);
+        }
+    }
+
+    /**
+     * 返回匹配matchQuery的得分最高的笔记。
+     *
+     * @param ftsTable 全文索引表，docid是笔记的ID，第一列是标题
+     * @param matchQuery MATCH表达式
+     * @param maxResults 最多返回的笔记数
+     * @param now 计算修改时间的系数使用的当前时间
+     * @return 笔记ID，得分从高到低
+     */
+    static long[] topMatches(SQLiteDatabase db, String ftsTable, String matchQuery,
+            int maxResults, long now, CancellationSignal cancellationSignal) {
+        PriorityQueue<Scored> best = new PriorityQueue<Scored>(maxResults + 1);
+        Cursor c = db.rawQuery("SELECT " + ftsTable + ".docid, matchinfo(" + ftsTable + ", '"
+                + MATCHINFO_FORMAT + "'), " + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " FROM " + ftsTable + " JOIN "
+                + NotePad.Notes.TABLE_NAME + " ON " + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes._ID + " = " + ftsTable + ".docid WHERE " + ftsTable + " MATCH ?",
+                new String[] { matchQuery }, cancellationSignal);
+        try {
+            while (c.moveToNext()) {
+                long modified = c.getLong(2);
+                double score = bm25(c.getBlob(1)) * recency(now - modified);
+                best.add(new Scored(c.getLong(0), score, modified));
+                if (best.size() > maxResults) {
+                    best.poll();
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        long[] ids = new long[best.size()];
+        for (int i = ids.length - 1; i >= 0; i--) {
+            ids[i] = best.poll().id;
+        }
+        return ids;
+    }
+
+    /**
+     * 按{ @ link # MATCHINFO_FORMAT }格式的matchinfo()计算一行的BM25得分。
+     */
+    static double bm25(byte[] matchinfo) {
+        // matchinfo()是本机字节序的32位无符号整数数组
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        long rows = info.get(2) & 0xffffffffL;
+        int averages = 3;
+        int lengths = averages + columns;
+        int hits = lengths + columns;
+
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int base = hits + 3 * (phrase * columns + column);
+                long frequency = info.get(base) & 0xffffffffL;
+                if (frequency == 0) {
+                    continue;
+                }
+                long documents = info.get(base + 2) & 0xffffffffL;
+                double idf = Math.log(1 + (rows - documents + 0.5) / (documents + 0.5));
+                long average = Math.max(info.get(averages + column) & 0xffffffffL, 1);
+                long length = info.get(lengths + column) & 0xffffffffL;
+                double norm = K1 * (1 - B + B * length / average);
+                double weight = column == COLUMN_TITLE ? TITLE_WEIGHT : 1;
+                score += weight * idf * frequency * (K1 + 1) / (frequency + norm);
+            }
+        }
+        return score;
+    }
+
+    /**
+     * 修改之后经过ageMillis的笔记的得分系数，从1逐渐衰减到{ @ link # RECENCY_FLOOR }。
+     */
+    static double recency(long ageMillis) {
+        double halfLives = (double) Math.max(ageMillis, 0) / RECENCY_HALF_LIFE_MILLIS;
+        return RECENCY_FLOOR + (1 - RECENCY_FLOOR) * Math.pow(0.5, halfLives);
+    }
+}
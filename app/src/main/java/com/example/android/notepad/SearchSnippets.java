@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 为搜索结果生成匹配位置附近的一段正文，以及标题和这段正文中匹配的位置，见
+ * { @ link NotePad.Notes # COLUMN_NAME_SEARCH_SNIPPET }。
+ *
+ * 只读取正文的前{ @ link # MAX_SCAN_CHARS }个字符(由SQLite截取，不把整个正文读入内存)，每一列最多找出
+ * { @ link # MAX_MATCHES }个匹配，所以很长的笔记也不会拖慢搜索结果。片段在游标移动到一行时才生成，
+ * 列表只为显示出来的行生成片段。
+ */
+final class SearchSnippets {
+
+    /**
+     * 片段最多包含的正文字符数，不包括省略号
+     */
+    static final int SNIPPET_CHARS = 100;
+
+    /**
+     * 最多在正文的这么多个字符中查找匹配
+     */
+    static final int MAX_SCAN_CHARS = 4000;
+
+    /**
+     * 每一列最多找出的匹配数
+     */
+    static final int MAX_MATCHES = 32;
+
+    /**
+     * 片段中第一个匹配之前保留的字符数
+     */
+    static final int LEADING_CHARS = 20;
+
+    /**
+     * 片段的开头或结尾不是正文的开头或结尾时加上的省略号
+     */
+    static final String ELLIPSIS = "…";
+
+    /**
+     * 查询内部使用的正文开头部分的列名
+     */
+    static final String COLUMN_NAME_BODY_PREFIX = "search_body_prefix";
+
+    /**
+     * 正文开头部分的SQL表达式。多取一个字符，用来判断正文是否比查找的部分长
+     */
+    static final String BODY_PREFIX_EXPRESSION = "substr(" + NotePad.Notes.COLUMN_NAME_NOTE
+            + ", 1, " + (MAX_SCAN_CHARS + 1) + ") AS " + COLUMN_NAME_BODY_PREFIX;
+
+    // 由这个类生成的列
+    private static final List<String> COMPUTED_COLUMNS = Arrays.asList(
+            NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET_MATCHES,
+            NotePad.Notes.COLUMN_NAME_SEARCH_TITLE_MATCHES);
+
+    // 按词项匹配时的词项，每个词项不区分大小写地匹配词的开头
+    private final String[] mTerms;
+
+    // 按子串匹配时的子串(ASCII字母小写)
+    private final String mSubstring;
+
+    private SearchSnippets(String[] terms, String substring) {
+        mTerms = terms;
+        mSubstring = substring;
+    }
+
+    /**
+     * 按词项匹配，与{ @ link NotePad.Notes # SEARCH_MODE_TERMS }的规则一致。
+     */
+    static SearchSnippets forTerms(String text) {
+        List<String> terms = new ArrayList<String>();
+        if (text != null) {
+            int start = -1;
+            for (int i = 0; i <= text.length(); i++) {
+                if (i < text.length() && isTermChar(text.charAt(i))) {
+                    if (start < 0) {
+                        start = i;
+                    }
+                } else if (start >= 0) {
+                    terms.add(text.substring(start, i));
+                    start = -1;
+                }
+            }
+        }
+        return new SearchSnippets(terms.toArray(new String[terms.size()]), null);
+    }
+
+    /**
+     * 按子串匹配，与{ @ link NotePad.Notes # SEARCH_MODE_SUBSTRING }的规则一致。
+     */
+    static SearchSnippets forSubstring(String text) {
+        return new SearchSnippets(new String[0],
+                text == null || text.length() == 0 ? null : foldAscii(text));
+    }
+
+    /**
+     * 投影中是否请求了片段或匹配位置。
+     */
+    static boolean isRequested(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (COMPUTED_COLUMNS.contains(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把投影中生成的列换成生成它们需要的列：标题和正文的开头部分。
+     */
+    static String[] sourceProjection(String[] projection) {
+        List<String> result = new ArrayList<String>();
+        for (String column : projection) {
+            if (!COMPUTED_COLUMNS.contains(column) && !result.contains(column)) {
+                result.add(column);
+            }
+        }
+        if (!result.contains(NotePad.Notes.COLUMN_NAME_TITLE)) {
+            result.add(NotePad.Notes.COLUMN_NAME_TITLE);
+        }
+        result.add(COLUMN_NAME_BODY_PREFIX);
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * 返回按projection提供列的游标，生成的列在读取时计算。
+     *
+     * @param source 按{ @ link # sourceProjection }查询的游标，由返回的游标负责关闭
+     */
+    Cursor wrap(Cursor source, String[] projection) {
+        return new SnippetCursor(source, projection);
+    }
+
+    /**
+     * 找出文本中的匹配，最多{ @ link # MAX_MATCHES }个。
+     *
+     * @return 按位置排序的[开始, 结束)对，没有匹配时为空数组
+     */
+    int[] findMatches(String text) {
+        if (text == null) {
+            return new int[0];
+        }
+        int[] matches = new int[MAX_MATCHES * 2];
+        int count = 0;
+        if (mSubstring != null) {
+            String folded = foldAscii(text);
+            int from = 0;
+            while (count < MAX_MATCHES) {
+                int start = folded.indexOf(mSubstring, from);
+                if (start < 0) {
+                    break;
+                }
+                matches[count * 2] = start;
+                matches[count * 2 + 1] = start + mSubstring.length();
+                count++;
+                from = start + mSubstring.length();
+            }
+        } else if (mTerms.length > 0) {
+            // 逐个检查每个词的开头是否是某个词项
+            int i = 0;
+            while (i < text.length() && count < MAX_MATCHES) {
+                if (!isTermChar(text.charAt(i))) {
+                    i++;
+                    continue;
+                }
+                int end = i;
+                while (end < text.length() && isTermChar(text.charAt(end))) {
+                    end++;
+                }
+                int matched = 0;
+                for (String term : mTerms) {
+                    if (term.length() > matched && term.length() <= end - i
+                            && text.regionMatches(true, i, term, 0, term.length())) {
+                        matched = term.length();
+                    }
+                }
+                if (matched > 0) {
+                    matches[count * 2] = i;
+                    matches[count * 2 + 1] = i + matched;
+                    count++;
+                }
+                i = end;
+            }
+        }
+        return Arrays.copyOf(matches, count * 2);
+    }
+
+    /**
+     * 从正文中选出包含最多匹配的一段。没有匹配时取正文的开头。
+     *
+     * @param body 正文的开头部分，最多{ @ link # MAX_SCAN_CHARS }加一个字符，超过
+     *         { @ link # MAX_SCAN_CHARS }时说明后面还有没有查找的正文
+     * @param offsets 输出片段中匹配的[开始, 结束)对
+     * @return 片段，正文为null时返回null
+     */
+    String snippet(String body, List<Integer> offsets) {
+        if (body == null) {
+            return null;
+        }
+        boolean scanTruncated = body.length() > MAX_SCAN_CHARS;
+        if (scanTruncated) {
+            body = body.substring(0, MAX_SCAN_CHARS);
+        }
+        int[] matches = findMatches(body);
+
+        // 以每个匹配为第一个匹配，数出片段中能完整包含的匹配数，取最多的一个
+        int first = 0;
+        int bestLast = 0;
+        int bestCount = 0;
+        int last = 0;
+        for (int i = 0; i < matches.length; i += 2) {
+            if (last < i) {
+                last = i;
+            }
+            while (last + 2 < matches.length
+                    && matches[last + 3] - matches[i] <= SNIPPET_CHARS) {
+                last += 2;
+            }
+            int count = (last - i) / 2 + 1;
+            if (count > bestCount) {
+                bestCount = count;
+                first = i;
+                bestLast = last;
+            }
+        }
+
+        // 第一个匹配之前尽量保留几个字符，但要能包含最后一个匹配
+        int start = 0;
+        if (bestCount > 0) {
+            start = Math.max(matches[first] - LEADING_CHARS, matches[bestLast + 1] - SNIPPET_CHARS);
+            start = Math.max(0, Math.min(start, body.length() - SNIPPET_CHARS));
+        }
+        int end = Math.min(body.length(), start + SNIPPET_CHARS);
+        boolean truncatedStart = start > 0;
+        boolean truncatedEnd = end < body.length() || scanTruncated;
+
+        StringBuilder snippet = new StringBuilder();
+        if (truncatedStart) {
+            snippet.append(ELLIPSIS);
+        }
+        int shift = snippet.length() - start;
+        for (int i = start; i < end; i++) {
+            // 片段显示在一行中，换行和制表符换成空格，长度不变
+            char c = body.charAt(i);
+            snippet.append(c == '\n' || c == '\r' || c == '\t' ? ' ' : c);
+        }
+        if (truncatedEnd) {
+            snippet.append(ELLIPSIS);
+        }
+        for (int i = 0; i < matches.length; i += 2) {
+            if (matches[i] >= start && matches[i + 1] <= end) {
+                offsets.add(matches[i] + shift);
+                offsets.add(matches[i + 1] + shift);
+            }
+        }
+        return snippet.toString();
+    }
+
+    /**
+     * 把匹配位置写成空格分隔的"开始 结束 开始 结束..."。
+     */
+    static String formatOffsets(List<Integer> offsets) {
+        StringBuilder result = new StringBuilder();
+        for (Integer offset : offsets) {
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            result.append(offset);
+        }
+        return result.toString();
+    }
+
+    static String formatOffsets(int[] offsets) {
+        List<Integer> list = new ArrayList<Integer>(offsets.length);
+        for (int offset : offsets) {
+            list.add(offset);
+        }
+        return formatOffsets(list);
+    }
+
+    // 与全文索引的默认分词器一致：ASCII的字母和数字以及所有非ASCII字符组成词
+    private static boolean isTermChar(char c) {
+        return c >= 128 || Character.isLetterOrDigit(c);
+    }
+
+    // 只把ASCII大写字母转为小写，长度不变，位置可以直接对应到原文
+    private static String foldAscii(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] = (char) (chars[i] + ('a' - 'A'));
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 在查询结果上加上生成的列。生成的列在移动到一行之后第一次读取时计算。
+     */
+    private final class SnippetCursor extends AbstractCursor {
+        private final Cursor mSource;
+        private final String[] mColumnNames;
+
+        // 每一列在mSource中的位置，生成的列为-1
+        private final int[] mSourceColumns;
+        private final int mTitleColumn;
+        private final int mBodyColumn;
+
+        // 当前行生成的列，还没有计算时mComputedPosition不等于mPos
+        private int mComputedPosition = -1;
+        private String mSnippet;
+        private String mSnippetMatches;
+        private String mTitleMatches;
+
+        SnippetCursor(Cursor source, String[] projection) {
+            mSource = source;
+            mColumnNames = projection;
+            mSourceColumns = new int[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                mSourceColumns[i] = COMPUTED_COLUMNS.contains(projection[i])
+                        ? -1 : source.getColumnIndexOrThrow(projection[i]);
+            }
+            mTitleColumn = source.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE);
+            mBodyColumn = source.getColumnIndexOrThrow(COLUMN_NAME_BODY_PREFIX);
+        }
+
+        @Override
+        public int getCount() {
+            return mSource.getCount();
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            return mSource.moveToPosition(newPosition);
+        }
+
+        @Override
+        public int getType(int column) {
+            if (mSourceColumns[column] >= 0) {
+                return mSource.getType(mSourceColumns[column]);
+            }
+            return getComputed(column) == null ? Cursor.FIELD_TYPE_NULL : Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            if (mSourceColumns[column] >= 0) {
+                return mSource.getString(mSourceColumns[column]);
+            }
+            return getComputed(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            if (mSourceColumns[column] >= 0) {
+                return mSource.getBlob(mSourceColumns[column]);
+            }
+            String value = getComputed(column);
+            return value == null ? null : value.getBytes();
+        }
+
+        @Override
+        public long getLong(int column) {
+            if (mSourceColumns[column] >= 0) {
+                return mSource.getLong(mSourceColumns[column]);
+            }
+            throw new IllegalArgumentException("Column " + mColumnNames[column] + " is text");
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            if (mSourceColumns[column] >= 0) {
+                return mSource.getDouble(mSourceColumns[column]);
+            }
+            throw new IllegalArgumentException("Column " + mColumnNames[column] + " is text");
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return getType(column) == Cursor.FIELD_TYPE_NULL;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            mSource.close();
+        }
+
+        private String getComputed(int column) {
+            checkPosition();
+            if (mComputedPosition != mPos) {
+                List<Integer> offsets = new ArrayList<Integer>();
+                mSnippet = snippet(mSource.getString(mBodyColumn), offsets);
+                mSnippetMatches = formatOffsets(offsets);
+                mTitleMatches = formatOffsets(findMatches(mSource.getString(mTitleColumn)));
+                mComputedPosition = mPos;
+            }
+            String name = mColumnNames[column];
+            if (NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET.equals(name)) {
+                return mSnippet;
+            } else if (NotePad.Notes.COLUMN_NAME_SEARCH_SNIPPET_MATCHES.equals(name)) {
+                return mSnippetMatches;
+            }
+            return mTitleMatches;
+        }
+    }
+}
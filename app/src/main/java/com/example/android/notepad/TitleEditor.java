@@ -77,13 +77,7 @@ public class TitleEditor extends Activity {
          * 你应该使用android.content。AsyncQueryHandler或android.os.AsyncTask。
          */
 
-        mCursor = managedQuery(
-            mUri,        // 要检索的注释的URI。
-            PROJECTION,  // 列检索
-            null,        //没有使用选择标准，因此不需要列。
-            null,        // 不使用列，所以不需要值。
-            null         // 不需要排序。
-        );
+        mCursor = queryNote();
 
         // 获取EditText框的视图ID
         mText = (EditText) this.findViewById(R.id.title);
@@ -98,12 +92,17 @@ public class TitleEditor extends Activity {
     protected void onResume() {
         super.onResume();
 
-        // 验证在onCreate()中生成的查询实际上是有效的。如果它起作用，那么游标对象不是null。
-        // 如果它是*空*，那么mCursor.getCount()= = 0。
         if (mCursor != null) {
+            // 在暂停时标题可能被修改。提供者可能返回内存中的游标，它的requery()不会重新执行查询，
+            // 所以重新查询一次，否则显示的是旧的标题，onPause()还会用它覆盖新的标题
+            Cursor cursor = queryNote();
+            mCursor.close();
+            mCursor = cursor;
+        }
 
-            // 光标刚刚被检索到，所以它的索引被设置为一个记录* * * * * * *。这使它达到了第一个记录。
-            mCursor.moveToFirst();
+        // 验证在onCreate()中生成的查询实际上是有效的。如果它起作用，那么游标对象不是null。
+        // 如果它是*空*，那么mCursor.getCount()= = 0。
+        if (mCursor != null && mCursor.moveToFirst()) {
 
             // 在EditText对象中显示当前的标题文本。
             mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
@@ -151,6 +150,33 @@ public class TitleEditor extends Activity {
         }
     }
 
+    /**
+     * 活动销毁时关闭游标。
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+        }
+    }
+
+    /**
+     * 查询要编辑标题的笔记。
+     *
+     * 注意：这是在UI线程上完成的，它将阻塞线程，直到查询完成。
+     */
+    private Cursor queryNote() {
+        return getContentResolver().query(
+            mUri,        // 要检索的注释的URI。
+            PROJECTION,  // 列检索
+            null,        //没有使用选择标准，因此不需要列。
+            null,        // 不使用列，所以不需要值。
+            null         // 不需要排序。
+        );
+    }
+
     public void onClickOk(View v) {
         finish();
     }
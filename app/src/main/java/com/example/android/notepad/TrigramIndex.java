@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 标题和内容的三元组索引，用于任意子串的搜索，见{ @ link NotePad.Notes # SEARCH_MODE_SUBSTRING }。
+ *
+ * 文本中每个位置开始的连续三个字符是一个三元组，编码为一个整数(每个字符16位)。文本末尾用\0补齐，
+ * 所以每个位置都有一个三元组，长度不足三个字符的搜索词是这个位置的三元组的前缀。索引表对每个三元组
+ * 保存包含它的笔记(倒排表)。搜索时先取出搜索词的所有三元组，从最短的倒排表开始逐个求交集得到候选笔记，
+ * 再在候选笔记的文本中确认确实包含搜索词。大小写只折叠ASCII字母，与SQLite的lower()和LIKE一致。
+ *
+ * notes表的触发器把被插入、修改标题或内容、删除的笔记放入待处理表，{ @ link # sync }把它们的三元组
+ * 与索引中已有的比较，只增删不同的部分。每次只处理一块笔记，所以即使所有笔记都在等待建立索引，也不会
+ * 长时间持有写锁。搜索不等待待处理的笔记建立索引，而是直接在它们的文本中查找。索引只包含表中保存的
+ * 正文(见{ @ link NotePad.Notes # COLUMN_NAME_NOTE })，与全文索引的范围相同。
+ */
+final class TrigramIndex {
+
+    /**
+     * 倒排表
+     */
+    static final String TABLE_NAME = "note_trigrams";
+
+    /**
+     * 需要重新建立索引的笔记
+     */
+    static final String PENDING_TABLE_NAME = "note_trigrams_pending";
+
+    /**
+     * 三元组的列名
+     * <P>Type: INTEGER</P>
+     */
+    static final String COLUMN_NAME_TRIGRAM = "trigram";
+
+    /**
+     * 笔记ID的列名
+     * <P>Type: INTEGER</P>
+     */
+    static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+    /**
+     * 在一个事务中最多为这么多个笔记重新建立索引
+     */
+    static final int SYNC_CHUNK_SIZE = 100;
+
+    // 选择起始的倒排表时，每个倒排表最多数到这么多行。比这更长的倒排表都一样不适合作为起点
+    private static final int COUNT_LIMIT = 1000;
+
+    // 最多使用搜索词中这么多个三元组(倒排表最短的)求交集。更长的搜索词由最后的确认排除多余的候选
+    private static final int MAX_QUERY_TRIGRAMS = 8;
+
+    // 一个字符的位数
+    private static final int CHAR_BITS = 16;
+
+    // 这个类不能实例化
+    private TrigramIndex() {
+    }
+
+    /**
+     * 创建倒排表、待处理表和维护待处理表的触发器，并把已有的笔记放入待处理表。
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_NAME_TRIGRAM + " INTEGER NOT NULL,"
+                + COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + "PRIMARY KEY (" + COLUMN_NAME_TRIGRAM + ", " + COLUMN_NAME_NOTE_ID + ")"
+                + ") WITHOUT ROWID;");
+
+        // 重新建立一个笔记的索引时读取它已有的三元组
+        db.execSQL("CREATE INDEX note_trigrams_note_index ON " + TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + ");");
+
+        db.execSQL("CREATE TABLE " + PENDING_TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + " INTEGER PRIMARY KEY"
+                + ");");
+
+        String enqueue = " BEGIN INSERT OR IGNORE INTO " + PENDING_TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + ") VALUES (";
+        db.execSQL("CREATE TRIGGER note_trigrams_insert AFTER INSERT ON "
+                + NotePad.Notes.TABLE_NAME + enqueue + "new." + NotePad.Notes._ID + "); END;");
+        db.execSQL("CREATE TRIGGER note_trigrams_update AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " ON " + NotePad.Notes.TABLE_NAME + enqueue + "new." + NotePad.Notes._ID
+                + "); END;");
+        db.execSQL("CREATE TRIGGER note_trigrams_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + enqueue + "old." + NotePad.Notes._ID + "); END;");
+
+        db.execSQL("INSERT INTO " + PENDING_TABLE_NAME + " (" + COLUMN_NAME_NOTE_ID + ") SELECT "
+                + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME);
+    }
+
+    /**
+     * 是否有等待建立索引的笔记。
+     */
+    static boolean hasPending(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM "
+                + PENDING_TABLE_NAME + ")", null) != 0;
+    }
+
+    /**
+     * 为待处理表中最多maxNotes个笔记重新建立索引，并把它们移出待处理表。在一个事务中进行，与并发的调用
+     * 不会重复处理同一个笔记。
+     *
+     * @return 处理的笔记数，小于maxNotes时待处理表已经为空
+     */
+    static int sync(SQLiteDatabase db, int maxNotes) {
+        db.beginTransactionNonExclusive();
+        try {
+            long[] noteIds;
+            Cursor c = db.query(PENDING_TABLE_NAME, new String[] { COLUMN_NAME_NOTE_ID },
+                    null, null, null, null, null, Integer.toString(maxNotes));
+            try {
+                noteIds = new long[c.getCount()];
+                for (int i = 0; c.moveToNext(); i++) {
+                    noteIds[i] = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            if (noteIds.length == 0) {
+                return 0;
+            }
+
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_NAME + " ("
+                    + COLUMN_NAME_TRIGRAM + ", " + COLUMN_NAME_NOTE_ID + ") VALUES (?, ?)");
+            SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE "
+                    + COLUMN_NAME_TRIGRAM + " = ? AND " + COLUMN_NAME_NOTE_ID + " = ?");
+            SQLiteStatement dequeue = db.compileStatement("DELETE FROM " + PENDING_TABLE_NAME
+                    + " WHERE " + COLUMN_NAME_NOTE_ID + " = ?");
+            try {
+                for (long noteId : noteIds) {
+                    reindex(db, noteId, insert, delete);
+                    dequeue.bindLong(1, noteId);
+                    dequeue.executeUpdateDelete();
+                }
+            } finally {
+                insert.close();
+                delete.close();
+                dequeue.close();
+            }
+            db.setTransactionSuccessful();
+            return noteIds.length;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 比较一个笔记现在的三元组与索引中的三元组，插入新增的，删除不再出现的。笔记已经被删除时删除它的所有三元组。
+     */
+    private static void reindex(SQLiteDatabase db, long noteId, SQLiteStatement insert,
+            SQLiteStatement delete) {
+        String id = Long.toString(noteId);
+        long[] current = new long[0];
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE
+        }, NotePad.Notes._ID + " = ?", new String[] { id }, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                current = union(trigrams(c.getString(0)), trigrams(c.getString(1)));
+            }
+        } finally {
+            c.close();
+        }
+
+        long[] indexed;
+        c = db.query(TABLE_NAME, new String[] { COLUMN_NAME_TRIGRAM }, COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { id }, null, null, COLUMN_NAME_TRIGRAM);
+        try {
+            indexed = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                indexed[i] = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+
+        // 两个有序数组的差集
+        int i = 0;
+        int j = 0;
+        while (i < current.length || j < indexed.length) {
+            if (j == indexed.length || (i < current.length && current[i] < indexed[j])) {
+                insert.bindLong(1, current[i++]);
+                insert.bindLong(2, noteId);
+                insert.executeInsert();
+            } else if (i == current.length || indexed[j] < current[i]) {
+                delete.bindLong(1, indexed[j++]);
+                delete.bindLong(2, noteId);
+                delete.executeUpdateDelete();
+            } else {
+                i++;
+                j++;
+            }
+        }
+    }
+
+    /**
+     * 构造选择包含搜索词的笔记的where条件，条件中的参数追加到args。条件用在notes表上。
+     * 候选笔记是索引中包含搜索词的三元组的笔记，加上待处理表中的笔记，后者的索引可能已经过时。
+     *
+     * @param text 要查找的子串，在标题或内容中匹配
+     * @return where条件，搜索词为空时返回null
+     */
+    static String buildSelection(SQLiteDatabase db, String text, List<String> args) {
+        if (text == null || text.length() == 0) {
+            return null;
+        }
+        String folded = fold(text);
+        StringBuilder where = new StringBuilder("((");
+        if (appendIndexedCandidates(db, folded, where, args)) {
+            where.append(" OR ");
+        }
+
+        // 待处理的笔记的索引可能已经过时，总是作为候选
+        where.append(NotePad.Notes._ID).append(" IN (SELECT ").append(COLUMN_NAME_NOTE_ID)
+                .append(" FROM ").append(PENDING_TABLE_NAME).append(')');
+
+        // 三元组都出现不代表它们是连续的，确认候选笔记确实包含搜索词
+        where.append(") AND (instr(lower(").append(NotePad.Notes.COLUMN_NAME_TITLE)
+                .append("), ?) > 0 OR instr(lower(").append(NotePad.Notes.COLUMN_NAME_NOTE)
+                .append("), ?) > 0))");
+        args.add(folded);
+        args.add(folded);
+        return where.toString();
+    }
+
+    /**
+     * 追加选择索引中包含搜索词的所有三元组的笔记的条件。
+     *
+     * @return 是否追加了条件，某个三元组没有出现在任何笔记中时返回false
+     */
+    private static boolean appendIndexedCandidates(SQLiteDatabase db, String folded,
+            StringBuilder where, List<String> args) {
+        if (folded.length() < 3) {
+            // 搜索词是某些三元组的前缀：这些三元组在编码上是连续的一段
+            long low = encode(folded, 0, folded.length());
+            long high = low | ((1L << (CHAR_BITS * (3 - folded.length()))) - 1);
+            where.append(NotePad.Notes._ID).append(" IN (SELECT t0.").append(COLUMN_NAME_NOTE_ID)
+                    .append(" FROM ").append(TABLE_NAME).append(" t0 WHERE t0.")
+                    .append(COLUMN_NAME_TRIGRAM).append(" BETWEEN ? AND ?)");
+            args.add(Long.toString(low));
+            args.add(Long.toString(high));
+            return true;
+        }
+
+        // 从最短的倒排表开始，其余的三元组逐个检查同一个笔记是否也包含
+        long[] trigrams = union(queryTrigrams(folded), new long[0]);
+        long[] order = new long[trigrams.length];
+        for (int i = 0; i < trigrams.length; i++) {
+            long count = countPostings(db, trigrams[i]);
+            if (count == 0) {
+                return false;
+            }
+
+            // 按倒排表的长度排序，长度相同时按原来的顺序
+            order[i] = count * trigrams.length + i;
+        }
+        Arrays.sort(order);
+        where.append(NotePad.Notes._ID).append(" IN (SELECT t0.").append(COLUMN_NAME_NOTE_ID)
+                .append(" FROM ").append(TABLE_NAME).append(" t0 WHERE ");
+        for (int i = 0; i < Math.min(order.length, MAX_QUERY_TRIGRAMS); i++) {
+            long trigram = trigrams[(int) (order[i] % trigrams.length)];
+            if (i == 0) {
+                where.append("t0.").append(COLUMN_NAME_TRIGRAM).append(" = ?");
+            } else {
+                where.append(" AND EXISTS (SELECT 1 FROM ").append(TABLE_NAME).append(" t")
+                        .append(i).append(" WHERE t").append(i).append('.')
+                        .append(COLUMN_NAME_TRIGRAM).append(" = ? AND t").append(i)
+                        .append('.').append(COLUMN_NAME_NOTE_ID).append(" = t0.")
+                        .append(COLUMN_NAME_NOTE_ID).append(')');
+            }
+            args.add(Long.toString(trigram));
+        }
+        where.append(')');
+        return true;
+    }
+
+    /**
+     * 数一个三元组的倒排表的长度，最多数到{ @ link # COUNT_LIMIT }。
+     */
+    private static long countPostings(SQLiteDatabase db, long trigram) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM (SELECT 1 FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_NAME_TRIGRAM + " = ? LIMIT " + COUNT_LIMIT + ")",
+                new String[] { Long.toString(trigram) });
+    }
+
+    /**
+     * 文本中每个位置的三元组，末尾用\0补齐。返回排序并去重的结果。
+     */
+    static long[] trigrams(String text) {
+        if (text == null || text.length() == 0) {
+            return new long[0];
+        }
+        String folded = fold(text);
+        long[] result = new long[folded.length()];
+        for (int i = 0; i < folded.length(); i++) {
+            result[i] = encode(folded, i, Math.min(i + 3, folded.length()));
+        }
+        return union(result, new long[0]);
+    }
+
+    /**
+     * 搜索词中完整的三元组，末尾不补齐。
+     */
+    private static long[] queryTrigrams(String folded) {
+        long[] result = new long[folded.length() - 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = encode(folded, i, i + 3);
+        }
+        return result;
+    }
+
+    /**
+     * 把text中[start, end)的字符编码为三元组，不足三个字符的部分是\0。
+     */
+    private static long encode(String text, int start, int end) {
+        long trigram = 0;
+        for (int i = 0; i < 3; i++) {
+            trigram <<= CHAR_BITS;
+            if (start + i < end) {
+                trigram |= text.charAt(start + i);
+            }
+        }
+        return trigram;
+    }
+
+    /**
+     * 两个数组的并集，排序并去重。
+     */
+    private static long[] union(long[] a, long[] b) {
+        long[] all = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        Arrays.sort(all);
+        int size = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (size == 0 || all[size - 1] != all[i]) {
+                all[size++] = all[i];
+            }
+        }
+        return Arrays.copyOf(all, size);
+    }
+
+    /**
+     * 只把ASCII大写字母转为小写，与SQLite的lower()一致。
+     */
+    private static String fold(String text) {
+        char[] chars = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                if (chars == null) {
+                    chars = text.toCharArray();
+                }
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return chars == null ? text : new String(chars);
+    }
+}